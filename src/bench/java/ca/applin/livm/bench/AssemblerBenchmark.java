@@ -0,0 +1,41 @@
+package ca.applin.livm.bench;
+
+import ca.applin.livm.core.Program;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to assemble a large generated *.lasm file with {@link Program#fromAsmFile(String)}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AssemblerBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    public int lines;
+
+    private Path source;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        source = Workloads.generateLasm(lines);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(source);
+    }
+
+    @Benchmark
+    public Program assemble() {
+        return Program.fromAsmFile(source.toString());
+    }
+}
@@ -0,0 +1,191 @@
+package ca.applin.livm.bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Compares two JMH json result files (as produced by {@code -rf json}) and prints the relative change of every
+ * benchmark found in both files.
+ * <pre>
+ * usage: BaselineComparator &lt;BASELINE JSON&gt; &lt;CURRENT JSON&gt;
+ * </pre>
+ */
+public class BaselineComparator {
+
+    record Result(String key, String mode, double score, double error, String unit) { }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("usage: BaselineComparator <BASELINE JSON> <CURRENT JSON>");
+            System.exit(-1);
+        }
+        Map<String, Result> baseline = read(Path.of(args[0]));
+        Map<String, Result> current = read(Path.of(args[1]));
+        System.out.printf("%-70s %16s %16s %10s%n", "Benchmark", "Baseline", "Current", "Change");
+        for (Result cur : current.values()) {
+            Result base = baseline.get(cur.key);
+            if (base == null) {
+                System.out.printf("%-70s %16s %16.3f %10s%n", cur.key, "-", cur.score, "new");
+                continue;
+            }
+            double change = (cur.score - base.score) / base.score * 100;
+            // for time based modes a lower score is better, show improvements as positive numbers
+            if (!"thrpt".equals(cur.mode)) {
+                change = -change;
+            }
+            System.out.printf("%-70s %16.3f %16.3f %+9.1f%%  %s%n", cur.key, base.score, cur.score, change, cur.unit);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Result> read(Path file) throws IOException {
+        Map<String, Result> results = new LinkedHashMap<>();
+        List<Object> runs = (List<Object>) new JsonReader(Files.readString(file)).read();
+        for (Object o : runs) {
+            Map<String, Object> run = (Map<String, Object>) o;
+            String benchmark = (String) run.get("benchmark");
+            StringBuilder key = new StringBuilder(benchmark.substring(benchmark.lastIndexOf('.', benchmark.lastIndexOf('.') - 1) + 1));
+            Map<String, Object> params = (Map<String, Object>) run.get("params");
+            if (params != null) {
+                key.append(params);
+            }
+            String mode = (String) run.get("mode");
+            addResult(results, key.toString(), mode, (Map<String, Object>) run.get("primaryMetric"));
+            Map<String, Object> secondaries = (Map<String, Object>) run.get("secondaryMetrics");
+            if (secondaries != null) {
+                secondaries.forEach((name, metric) ->
+                        addResult(results, key + ":" + name, mode, (Map<String, Object>) metric));
+            }
+        }
+        return results;
+    }
+
+    private static void addResult(Map<String, Result> results, String key, String mode, Map<String, Object> metric) {
+        double score = ((Number) metric.get("score")).doubleValue();
+        Object error = metric.get("scoreError");
+        results.put(key, new Result(key, mode, score,
+                error instanceof Number n ? n.doubleValue() : Double.NaN, (String) metric.get("scoreUnit")));
+    }
+
+    /**
+     * Just enough of a json reader for JMH result files.
+     */
+    static class JsonReader {
+        private final String src;
+        private int pos;
+
+        JsonReader(String src) {
+            this.src = src;
+        }
+
+        Object read() {
+            skipWhitespaces();
+            char c = src.charAt(pos);
+            return switch (c) {
+                case '{' -> readObject();
+                case '[' -> readArray();
+                case '"' -> readString();
+                case 't', 'f', 'n' -> readLitteral();
+                default -> readNumber();
+            };
+        }
+
+        private Map<String, Object> readObject() {
+            Map<String, Object> object = new LinkedHashMap<>();
+            pos++;
+            skipWhitespaces();
+            if (src.charAt(pos) == '}') {
+                pos++;
+                return object;
+            }
+            while (true) {
+                skipWhitespaces();
+                String name = readString();
+                skipWhitespaces();
+                expect(':');
+                object.put(name, read());
+                skipWhitespaces();
+                if (src.charAt(pos++) == '}') {
+                    return object;
+                }
+            }
+        }
+
+        private List<Object> readArray() {
+            List<Object> array = new ArrayList<>();
+            pos++;
+            skipWhitespaces();
+            if (src.charAt(pos) == ']') {
+                pos++;
+                return array;
+            }
+            while (true) {
+                array.add(read());
+                skipWhitespaces();
+                if (src.charAt(pos++) == ']') {
+                    return array;
+                }
+            }
+        }
+
+        private String readString() {
+            expect('"');
+            StringBuilder sb = new StringBuilder();
+            char c;
+            while ((c = src.charAt(pos++)) != '"') {
+                if (c == '\\') {
+                    char escaped = src.charAt(pos++);
+                    switch (escaped) {
+                        case 'n' -> sb.append('\n');
+                        case 't' -> sb.append('\t');
+                        case 'r' -> sb.append('\r');
+                        case 'b' -> sb.append('\b');
+                        case 'f' -> sb.append('\f');
+                        case 'u' -> {
+                            sb.append((char) Integer.parseInt(src.substring(pos, pos + 4), 16));
+                            pos += 4;
+                        }
+                        default -> sb.append(escaped);
+                    }
+                } else {
+                    sb.append(c);
+                }
+            }
+            return sb.toString();
+        }
+
+        private Object readLitteral() {
+            for (String litteral : List.of("true", "false", "null")) {
+                if (src.startsWith(litteral, pos)) {
+                    pos += litteral.length();
+                    return litteral.equals("null") ? null : Boolean.valueOf(litteral);
+                }
+            }
+            throw new IllegalStateException("Invalid json at " + pos);
+        }
+
+        private Object readNumber() {
+            int start = pos;
+            while (pos < src.length() && "+-0123456789.eE".indexOf(src.charAt(pos)) >= 0) {
+                pos++;
+            }
+            String number = src.substring(start, pos);
+            // JMH writes NaN scores as a string, anything else is a plain number
+            return number.isEmpty() ? Double.NaN : Double.valueOf(number);
+        }
+
+        private void expect(char c) {
+            if (src.charAt(pos++) != c) {
+                throw new IllegalStateException("Expected '" + c + "' at " + (pos - 1));
+            }
+        }
+
+        private void skipWhitespaces() {
+            while (pos < src.length() && Character.isWhitespace(src.charAt(pos))) {
+                pos++;
+            }
+        }
+    }
+}
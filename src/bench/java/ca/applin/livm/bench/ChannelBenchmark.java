@@ -0,0 +1,53 @@
+package ca.applin.livm.bench;
+
+import ca.applin.livm.core.Parameters;
+import ca.applin.livm.core.Program;
+import ca.applin.livm.core.Trap;
+import ca.applin.livm.core.VirtualMachine;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A pipeline of tasks connected by channels, run by the scheduler on {@code carriers} threads: a producer sends
+ * {@value #VALUES} ints through {@value #STAGES} stages to the main code. The time of an operation is the time of a
+ * single hop of a value, from a send to the recv of the next task. With a small {@code capacity}, the tasks are
+ * parked and woken at almost every hop.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChannelBenchmark {
+    static final int STAGES = 4;
+    static final int VALUES = 100_000;
+
+    @Param({"1", "2", "4", "8"})
+    public int carriers;
+
+    @Param({"2", "64"})
+    public int capacity;
+
+    private Program pipeline;
+    private Parameters parameters;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        pipeline = Program.fromAsmFile(Workloads.generatePipeline(STAGES, VALUES, capacity).toString());
+        parameters = Workloads.tasks(carriers);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    // the ints and the nil ending the stream, through the channels of the stages and the one of the main code
+    @OperationsPerInvocation((VALUES + 1) * (STAGES + 1))
+    public Trap hop() {
+        Trap trap = new VirtualMachine(pipeline, parameters).runTasks();
+        if (trap != Trap.OK) {
+            throw new IllegalStateException("pipeline stopped with " + trap);
+        }
+        return trap;
+    }
+}
@@ -0,0 +1,59 @@
+package ca.applin.livm.bench;
+
+import ca.applin.livm.core.Output;
+import ca.applin.livm.core.Parameters;
+import ca.applin.livm.core.Program;
+import ca.applin.livm.core.VirtualMachine;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Warm start from an image: latency of {@link VirtualMachine#restore(String, Parameters)} against running the
+ * initialization it saved, filling a table of {@code words} words.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ImageBenchmark {
+
+    @Param({"1000", "1000000"})
+    public int words;
+
+    private Program program;
+    private Path image;
+    private Parameters parameters;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        program = Program.fromAsmFile(Workloads.generateInit(words).toString());
+        image = Files.createTempFile("livm-image", ".img");
+        parameters = Workloads.discardOutput();
+        VirtualMachine vm = new VirtualMachine(program,
+                Parameters.builder().output(Output.discard()).snapshot(image).build());
+        vm.run();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(image);
+    }
+
+    @Benchmark
+    public VirtualMachine initialize() {
+        VirtualMachine vm = new VirtualMachine(program, parameters);
+        vm.run();
+        return vm;
+    }
+
+    @Benchmark
+    public VirtualMachine restore() {
+        return VirtualMachine.restore(image.toString(), parameters);
+    }
+}
@@ -0,0 +1,59 @@
+package ca.applin.livm.bench;
+
+import ca.applin.livm.core.Parameters;
+import ca.applin.livm.core.Program;
+import ca.applin.livm.core.Trap;
+import ca.applin.livm.core.VirtualMachine;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Dispatch throughput of {@link VirtualMachine#run()}. The {@code instructions} counter is reported as a rate,
+ * which gives the number of retired instructions per second. Run with {@code -prof gc} and divide
+ * {@code gc.alloc.rate.norm} by {@code instructions} per operation to get the allocated bytes per instruction.
+ * {@code checked} compares the interpreter loop with and without the checks removed for verified programms,
+ * {@code registers} the stack interpreter with the register based one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InterpreterBenchmark {
+
+    @Param({"fib.lasm", "loop.lasm", "proc.lasm", "calls"})
+    public String workload;
+
+    @Param({"false", "true"})
+    public boolean checked;
+
+    @Param({"false", "true"})
+    public boolean registers;
+
+    private Program program;
+    private Parameters parameters;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long instructions;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        program = Workloads.program(workload);
+        // PRINT output is not what is measured here
+        parameters = Workloads.discardOutput(checked, registers);
+    }
+
+    @Benchmark
+    public Trap run(Counters counters) {
+        VirtualMachine vm = new VirtualMachine(program, parameters);
+        Trap trap = vm.run();
+        counters.instructions += vm.getRetiredInstructions();
+        return trap;
+    }
+}
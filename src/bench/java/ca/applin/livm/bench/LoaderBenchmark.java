@@ -0,0 +1,55 @@
+package ca.applin.livm.bench;
+
+import ca.applin.livm.core.LiOptions;
+import ca.applin.livm.core.Program;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of loading a *.li file with {@link Program#deserialize(String)}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoaderBenchmark {
+
+    @Param({"10000", "1000000"})
+    public int instructions;
+
+    @Param({"1024", "1048576"})
+    public int dataSize;
+
+    // v1, v2 or v2-deflate
+    @Param({"v1", "v2", "v2-deflate"})
+    public String format;
+
+    private Path file;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        LiOptions options = switch (format) {
+            case "v1" -> LiOptions.V1;
+            case "v2" -> LiOptions.DEFAULT;
+            case "v2-deflate" -> new LiOptions(2, true, false);
+            default -> throw new IllegalArgumentException("Unknown format " + format);
+        };
+        file = Workloads.generateLi(instructions, dataSize, options);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    public Program load() {
+        return Program.deserialize(file.toString());
+    }
+}
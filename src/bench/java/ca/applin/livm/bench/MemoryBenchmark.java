@@ -0,0 +1,57 @@
+package ca.applin.livm.bench;
+
+import ca.applin.livm.core.Parameters;
+import ca.applin.livm.core.Program;
+import ca.applin.livm.core.Trap;
+import ca.applin.livm.core.VirtualMachine;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copies of a block of {@code words} words of VM memory, {@value #COPIED_WORDS} words in total per run: with a single
+ * {@code memcpy} per block ({@code bulk=true}), or with a {@code read} and a {@code store} per word. The
+ * {@code words} counter is the number of words copied per second.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MemoryBenchmark {
+    static final int COPIED_WORDS = 1 << 20;
+
+    // 8 KB and 1 MB blocks
+    @Param({"1024", "131072"})
+    public int words;
+
+    @Param({"true", "false"})
+    public boolean bulk;
+
+    private Program copy;
+    private Parameters parameters;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long words;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        copy = Program.fromAsmFile(Workloads.generateCopy(words, COPIED_WORDS / words, bulk).toString());
+        parameters = Workloads.discardOutput();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public Trap copy(Counters counters) {
+        Trap trap = new VirtualMachine(copy, parameters).run();
+        if (trap != Trap.OK) {
+            throw new IllegalStateException("copy stopped with " + trap);
+        }
+        counters.words += COPIED_WORDS;
+        return trap;
+    }
+}
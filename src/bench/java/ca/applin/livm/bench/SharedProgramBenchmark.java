@@ -0,0 +1,85 @@
+package ca.applin.livm.bench;
+
+import ca.applin.livm.core.Parameters;
+import ca.applin.livm.core.Program;
+import ca.applin.livm.core.VirtualMachine;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of many {@link VirtualMachine} running the same {@link Program} instance at the same time. Each
+ * operation runs {@code machines} machines split over a pool of {@code threads} threads, the {@code instructions}
+ * counter gives the retired instructions per second over all threads. Comparing the rates for the different
+ * {@code threads} values shows how the execution scales with the number of cores.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SharedProgramBenchmark {
+
+    @Param({"calls"})
+    public String workload;
+
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    @Param({"64"})
+    public int machines;
+
+    private Program program;
+    private Parameters parameters;
+    private ExecutorService executor;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long instructions;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        program = Workloads.program(workload);
+        // PRINT output is not what is measured here
+        parameters = Workloads.discardOutput();
+        executor = Executors.newFixedThreadPool(threads);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    public long run(Counters counters) throws InterruptedException, ExecutionException {
+        List<Future<Long>> results = new ArrayList<>(threads);
+        for (int t = 0; t < threads; t++) {
+            int count = machines / threads + (t < machines % threads ? 1 : 0);
+            results.add(executor.submit(() -> {
+                long retired = 0;
+                for (int i = 0; i < count; i++) {
+                    VirtualMachine vm = new VirtualMachine(program, parameters);
+                    vm.run();
+                    retired += vm.getRetiredInstructions();
+                }
+                return retired;
+            }));
+        }
+        long retired = 0;
+        for (Future<Long> result : results) {
+            retired += result.get();
+        }
+        counters.instructions += retired;
+        return retired;
+    }
+}
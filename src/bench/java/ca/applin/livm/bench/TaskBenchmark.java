@@ -0,0 +1,77 @@
+package ca.applin.livm.bench;
+
+import ca.applin.livm.core.Parameters;
+import ca.applin.livm.core.Program;
+import ca.applin.livm.core.Trap;
+import ca.applin.livm.core.VirtualMachine;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tasks started by {@code spawn}, run by the scheduler on {@code carriers} threads:
+ * <ul>
+ *     <li>{@code yieldLatency}: {@value #SWITCH_TASKS} tasks yielding {@value #SWITCHES} times each, the time of an
+ *     operation is the time of a single task switch, the scheduler overhead</li>
+ *     <li>{@code throughput}: {@value #COMPUTE_TASKS} tasks counting down without yielding, preempted at the end of
+ *     their slice. The {@code instructions} rate for each {@code carriers} value shows how the tasks scale across
+ *     cores.</li>
+ * </ul>
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TaskBenchmark {
+    static final int SWITCH_TASKS = 16;
+    static final int SWITCHES = 10_000;
+    static final int COMPUTE_TASKS = 64;
+    static final int COMPUTE_ITERATIONS = 200_000;
+
+    @Param({"1", "2", "4", "8"})
+    public int carriers;
+
+    private Program yielding;
+    private Program computing;
+    private Parameters parameters;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long instructions;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        yielding = Program.fromAsmFile(Workloads.generateTasks(SWITCH_TASKS, SWITCHES, true).toString());
+        computing = Program.fromAsmFile(Workloads.generateTasks(COMPUTE_TASKS, COMPUTE_ITERATIONS, false).toString());
+        parameters = Workloads.tasks(carriers);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @OperationsPerInvocation(SWITCH_TASKS * SWITCHES)
+    public Trap yieldLatency() {
+        return run(yielding);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public Trap throughput(Counters counters) {
+        Trap trap = run(computing);
+        // dup, jnz, addi, nop and jmp at each iteration of a task
+        counters.instructions += (long) COMPUTE_TASKS * COMPUTE_ITERATIONS * 5;
+        return trap;
+    }
+
+    private Trap run(Program program) {
+        Trap trap = new VirtualMachine(program, parameters).runTasks();
+        if (trap != Trap.OK) {
+            throw new IllegalStateException("tasks stopped with " + trap);
+        }
+        return trap;
+    }
+}
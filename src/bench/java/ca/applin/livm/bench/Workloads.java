@@ -0,0 +1,333 @@
+package ca.applin.livm.bench;
+
+import ca.applin.livm.core.Instruction;
+import ca.applin.livm.core.LiOptions;
+import ca.applin.livm.core.Output;
+import ca.applin.livm.core.Parameters;
+import ca.applin.livm.core.Program;
+import ca.applin.livm.core.Word;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Programs used by the benchmarks. Names ending with {@code .lasm} are read from the test resources folder
+ * (overridable with {@code -Dlivm.resources=...}), other names are generated.
+ */
+final class Workloads {
+
+    static final String RESOURCES = System.getProperty("livm.resources", "src/test/resources");
+
+    private static final Output DISCARD = Output.discard();
+
+    // procedure call heavy loop, in the style of proc.lasm but long enough to be measured
+    static final String CALLS = """
+            ;; generated: calls a procedure 100 000 times
+                push 100000
+            .loop:
+                call .work
+                push -1
+                add
+                dup 0
+                jnz .loop
+                halt
+
+            .work
+                dup 0
+                push 3
+                add
+                push 0
+                eq
+                jnz .work-end
+            .work-end
+                ret
+            """;
+
+    private Workloads() { }
+
+    static Program program(String workload) throws IOException {
+        if (workload.endsWith(".lasm")) {
+            return Program.fromAsmFile(Path.of(RESOURCES, workload).toString());
+        }
+        if ("calls".equals(workload)) {
+            Path file = Files.createTempFile("livm-calls", ".lasm");
+            file.toFile().deleteOnExit();
+            Files.writeString(file, CALLS);
+            return Program.fromAsmFile(file.toString());
+        }
+        throw new IllegalArgumentException("Unknown workload " + workload);
+    }
+
+    /**
+     * @return the default parameters, with the output of print discarded.
+     */
+    static Parameters discardOutput() {
+        return discardOutput(false);
+    }
+
+    /**
+     * @param checked keep the run time checks even for the programms proven safe by the verifier
+     */
+    static Parameters discardOutput(boolean checked) {
+        return discardOutput(checked, false);
+    }
+
+    /**
+     * @param registers run the programms proven safe by the verifier on their register translation
+     */
+    static Parameters discardOutput(boolean checked, boolean registers) {
+        return Parameters.builder().output(DISCARD).checked(checked).registers(registers).build();
+    }
+
+    /**
+     * Writes a generated *.lasm file of roughly {@code lines} lines using every syntax element of the assembler:
+     * labels, string litterals, comments and forward references.
+     */
+    static Path generateLasm(int lines) throws IOException {
+        Path file = Files.createTempFile("livm-gen", ".lasm");
+        file.toFile().deleteOnExit();
+        StringBuilder sb = new StringBuilder(lines * 16);
+        sb.append(";; generated program\n");
+        sb.append(".hello: str \"Hello, World!\"\n");
+        for (int i = 0, block = 0; i < lines; i += 10, block++) {
+            sb.append(".block-").append(block).append(":\n");
+            sb.append("    push ").append(block).append("    ;; block number\n");
+            sb.append("    push 0x1F\n");
+            sb.append("    add\n");
+            sb.append("    dup 0\n");
+            sb.append("    load .hello\n");
+            sb.append("    sub\n");
+            sb.append("    dup\n");
+            sb.append("    jnz .block-").append(block + 1).append('\n');
+            sb.append("    print\n");
+        }
+        sb.append(".block-").append(lines / 10 + (lines % 10 == 0 ? 0 : 1)).append(":\n");
+        sb.append("    halt\n");
+        Files.writeString(file, sb);
+        return file;
+    }
+
+    /**
+     * Writes a generated *.lasm file filling a table of {@code words} words allocated with mem, then running
+     * snapshot and halting: the initialization of a programm, saved to an image with {@link Parameters#snapshot}.
+     */
+    static Path generateInit(int words) throws IOException {
+        Path file = Files.createTempFile("livm-init", ".lasm");
+        file.toFile().deleteOnExit();
+        Files.writeString(file, """
+                ;; generated: fills a table of %d words then snapshots
+                    mem %d
+                    push 0
+                .loop:
+                    dup 0
+                    push %d
+                    eq
+                    jnz .done
+                    dup 0
+                    dup 2
+                    dup 2
+                    push 8
+                    mul
+                    add
+                    store
+                    addi 1
+                    jmp .loop
+                .done:
+                    snapshot
+                    halt
+                """.formatted(words, words * 8, words));
+        return file;
+    }
+
+    /**
+     * @return the parameters running the tasks of a programm on {@code carriers} threads, the output discarded.
+     */
+    static Parameters tasks(int carriers) {
+        return Parameters.builder().output(DISCARD).carriers(carriers).build();
+    }
+
+    /**
+     * Writes a generated *.lasm file spawning {@code tasks} tasks, each counting down from {@code iterations} and
+     * yielding at every iteration when {@code yields} is set, or running a nop instead.
+     */
+    static Path generateTasks(int tasks, int iterations, boolean yields) throws IOException {
+        Path file = Files.createTempFile("livm-tasks", ".lasm");
+        file.toFile().deleteOnExit();
+        Files.writeString(file, """
+                ;; generated: spawns %d tasks counting down from %d
+                    push 0
+                .spawn:
+                    dup 0
+                    push %d
+                    eq
+                    jnz .done
+                    push %d
+                    spawn .task
+                    addi 1
+                    jmp .spawn
+                .done:
+                    halt
+
+                .task:
+                    dup 0
+                    jnz .step
+                    halt
+                .step:
+                    addi -1
+                    %s
+                    jmp .task
+                """.formatted(tasks, iterations, tasks, iterations, yields ? "yield" : "nop"));
+        return file;
+    }
+
+    /**
+     * Writes a generated *.lasm file running a pipeline of {@code stages} tasks: a producer sends {@code values}
+     * ints through the stages, each one receiving from a channel of {@code capacity} values and sending to the next,
+     * and the main code receives them from the last one. nil ends the stream.
+     */
+    static Path generatePipeline(int stages, int values, int capacity) throws IOException {
+        Path file = Files.createTempFile("livm-pipeline", ".lasm");
+        file.toFile().deleteOnExit();
+        // each stage receives the channel it sends to first, the channels pile up on the stack of the main code
+        String spawnStage = """
+                    chan %d
+                    dup 1
+                    dup 1
+                    send
+                    dup 1
+                    spawn .stage
+                """.formatted(capacity);
+        Files.writeString(file, """
+                ;; generated: %d ints through a pipeline of %d stages, over channels of capacity %d
+                    chan %d
+                %s    dup %d
+                    spawn .producer
+                    push 0
+                .drain:
+                    dup 1
+                    recv
+                    tag
+                    jnz .done
+                    addi 1
+                    jmp .drain
+                .done:
+                    halt
+
+                .producer:
+                    push %d
+                .send:
+                    dup 0
+                    jnz .next
+                    dup 1
+                    nil
+                    send
+                    halt
+                .next:
+                    dup 1
+                    dup 1
+                    send
+                    addi -1
+                    jmp .send
+
+                .stage:
+                    dup 0
+                    recv
+                .forward:
+                    dup 0
+                    dup 2
+                    recv
+                    dup 0
+                    tag
+                    jnz .last
+                    send
+                    jmp .forward
+                .last:
+                    send
+                    halt
+                """.formatted(values, stages, capacity, capacity, spawnStage.repeat(stages), stages, values));
+        return file;
+    }
+
+    /**
+     * Writes a generated *.lasm file copying a block of {@code words} words to another one {@code repeat} times,
+     * with a single {@code memcpy} when {@code bulk} is set, else with a {@code read} and a {@code store} per word.
+     */
+    static Path generateCopy(int words, int repeat, boolean bulk) throws IOException {
+        Path file = Files.createTempFile("livm-copy", ".lasm");
+        file.toFile().deleteOnExit();
+        int bytes = words * 8;
+        String copy = bulk ? """
+                    lload 0
+                    lload 1
+                    push %d
+                    memcpy
+                    jmp .repeat
+                """.formatted(words) : """
+                    push 0
+                .word:
+                    lload 1
+                    dup 1
+                    add
+                    read
+                    lload 0
+                    dup 2
+                    add
+                    store
+                    addi 8
+                    dup 0
+                    push %d
+                    jeq .copied
+                    jmp .word
+                .copied:
+                    lstore 3
+                    jmp .repeat
+                """.formatted(bytes);
+        Files.writeString(file, """
+                ;; generated: copies %d words %d times
+                    mem %d
+                    mem %d
+                    push %d
+                    push 0
+                    enter 4         ; local 0: dst, local 1: src, local 2: copies left, local 3: unused
+                .repeat:
+                    lload 2
+                    jnz .copy
+                    halt
+                .copy:
+                    lload 2
+                    addi -1
+                    lstore 2
+                %s""".formatted(words, repeat, bytes, bytes, repeat, copy));
+        return file;
+    }
+
+    /**
+     * Writes a generated *.li file containing {@code instructions} instructions and a data section of
+     * {@code dataSize} bytes, in the given format.
+     */
+    static Path generateLi(int instructions, int dataSize, LiOptions options) throws IOException {
+        List<Instruction> instrs = new ArrayList<>(instructions);
+        for (int i = 0; i < instructions; i++) {
+            instrs.add(switch (i % 4) {
+                case 0 -> Instruction.INSTR_PUSH_INT(new Word(i));
+                case 1 -> Instruction.INSTR_DUP(Word.WORD_0);
+                case 2 -> Instruction.INSTR_ADD;
+                default -> Instruction.INSTR_JNZ(new Word(i + 1));
+            });
+        }
+        ByteBuffer data = ByteBuffer.allocate(dataSize);
+        data.position(dataSize);
+        Program program = new Program(instrs, data);
+        Path file = Files.createTempFile("livm-gen", ".li");
+        file.toFile().deleteOnExit();
+        try (PrintStream ps = new PrintStream(Files.newOutputStream(file))) {
+            program.serialize(ps, options);
+        }
+        return file;
+    }
+}
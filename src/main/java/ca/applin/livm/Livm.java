@@ -1,9 +1,22 @@
 package ca.applin.livm;
 
-import ca.applin.livm.core.Parameters;
+import ca.applin.livm.cache.CompilationCache;
+import ca.applin.livm.core.GcStats;
+import ca.applin.livm.core.InvalidProgramException;
+import ca.applin.livm.core.Output;
+import ca.applin.livm.core.Profiler;
 import ca.applin.livm.core.Program;
+import ca.applin.livm.core.Verifier;
 import ca.applin.livm.core.VirtualMachine;
 
+import java.io.BufferedReader;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+
 public class Livm {
     public static void main(String[] args) {
         LivmArgs.init(args);
@@ -13,9 +26,107 @@ public class Livm {
             System.out.println("Running file " + file);
         }
 
-        Program programm = Program.deserialize(file);
-        VirtualMachine machineFromFile = new VirtualMachine(programm, new Parameters(LivmArgs.instance.isDebug()));
-        machineFromFile.runOrFail();
+        if (LivmArgs.instance.isRestore()) {
+            Output output = openOutput();
+            VirtualMachine machine;
+            try {
+                machine = VirtualMachine.restore(file, LivmArgs.instance.toParameters(output));
+            } catch (InvalidProgramException | UncheckedIOException e) {
+                System.err.println("ERROR: " + e.getMessage());
+                System.exit(-1);
+                return;
+            }
+            run(machine, output);
+            return;
+        }
+
+        Program programm;
+        try {
+            programm = LivmArgs.instance.isAsm()
+                    ? assemble(file, LivmArgs.instance.getOptimizationLevel())
+                    : Program.deserialize(file);
+        } catch (InvalidProgramException | UncheckedIOException | IllegalArgumentException e) {
+            System.err.println("ERROR: " + e.getMessage());
+            System.exit(-1);
+            return;
+        }
+        if (LivmArgs.instance.isVerify() || LivmArgs.instance.isDebug()) {
+            Verifier.Result verification = programm.verify();
+            if (LivmArgs.instance.isDebug()) {
+                System.out.println("Verifier: " + verification);
+            }
+            if (!verification.safe() && LivmArgs.instance.isVerify()) {
+                System.err.println("ERROR: " + file + " " + verification);
+                System.exit(-1);
+                return;
+            }
+        }
+        Output output = openOutput();
+        run(new VirtualMachine(programm, LivmArgs.instance.toParameters(output)), output);
+    }
+
+    private static Output openOutput() {
+        try {
+            return LivmArgs.instance.openOutput();
+        } catch (UncheckedIOException e) {
+            System.err.println("ERROR: " + e.getMessage());
+            System.exit(-1);
+            return null;
+        }
+    }
+
+    private static void run(VirtualMachine machineFromFile, Output output) {
+        long start = System.nanoTime();
+        boolean failed = false;
+        try {
+            if (LivmArgs.instance.isInteractive()) {
+                machineFromFile.debugger().interactive(new BufferedReader(new InputStreamReader(System.in)), System.out);
+            } else {
+                machineFromFile.runOrFail();
+            }
+        } catch (UncheckedIOException e) {
+            // the image of a snapshot could not be written
+            System.err.println("ERROR: " + e.getMessage());
+            failed = true;
+        } finally {
+            machineFromFile.flushOutput();
+            output.close();
+        }
+        if (failed) {
+            System.exit(-1);
+        }
+        long elapsed = System.nanoTime() - start;
+        if (LivmArgs.instance.isGcStats()) {
+            GcStats stats = machineFromFile.getGcStats();
+            System.err.println(stats);
+            System.err.printf("gc: throughput %.2f%%\n", 100 * stats.throughput(elapsed));
+        }
+        if (LivmArgs.instance.isProfile()) {
+            writeProfile(machineFromFile.getProfiler(), LivmArgs.instance.getProfileFile());
+        }
+    }
+
+    private static Program assemble(String file, int optimizationLevel) {
+        if (!LivmArgs.instance.isCache()) {
+            return Program.fromAsmFile(file, optimizationLevel);
+        }
+        CompilationCache cache = new CompilationCache(Path.of(LivmArgs.instance.getCacheDirectory()),
+                LivmArgs.instance.getCacheSize());
+        Program programm = cache.fromAsmFile(file, optimizationLevel);
+        if (LivmArgs.instance.isCacheStats()) {
+            System.err.println(cache.stats());
+        }
+        return programm;
+    }
+
+    private static void writeProfile(Profiler profiler, String jsonFile) {
+        profiler.printAnnotatedDisassembly(System.err);
+        try (PrintStream ps = new PrintStream(new FileOutputStream(jsonFile))) {
+            profiler.printJson(ps);
+        } catch (IOException ioe) {
+            System.err.printf("ERROR: could not save profile %s. Cause: %s\n", jsonFile, ioe.getMessage());
+            System.exit(-1);
+        }
     }
 
 }
@@ -1,16 +1,25 @@
 package ca.applin.livm;
 
+import ca.applin.livm.cache.CompilationCache;
+import ca.applin.livm.core.Output;
+import ca.applin.livm.core.Parameters;
+import ca.applin.livm.optimizer.Optimizer;
+
 import java.io.FilterOutputStream;
+import java.nio.file.Path;
 import java.util.List;
 import java.util.function.BiConsumer;
 
 class LivmArgs {
 
+    static final String OUTPUT_STDOUT = "-";
+    static final String OUTPUT_DISCARD = "none";
+
     private static final String HELP_HEADER = "LIVM: the small but powerfull virtual machine!";
     private static final String USAGE =
             """
             usage
-                livm <INPUT FILE> [options]
+                livm [-f] <INPUT FILE> [options]
             """;
 
     public record Argument<T>(String name, String shortStr, String longStr, int argSize, String desc, Class<T> type, T defaultValue,
@@ -21,13 +30,86 @@ class LivmArgs {
     public static final Argument<Boolean> ARG_HELP = new Argument<>("Help", "-h", "--help", 0,
                 "Prints this help information.", Boolean.class, false,
                 (args, value) -> args.help = value);
+    public static final Argument<String> ARG_FILE = new Argument<>("File", "-f", "--file", 1,
+                "The *.li file to run, or *.lasm file with --asm.", String.class, null,
+                (args, value) -> args.file = value);
+    public static final Argument<Boolean> ARG_ASM = new Argument<>("Asm", "-a", "--asm", 0,
+                "Assembles and runs a *.lasm file.", Boolean.class, false,
+                (args, value) -> args.asm = value);
+    public static final Argument<String> ARG_CACHE = new Argument<>("Cache", "-C", "--cache", 1,
+                "Directory of the compilation cache of --asm, programms already assembled are loaded from it.",
+                String.class, null,
+                (args, value) -> args.cacheDirectory = value);
+    public static final Argument<String> ARG_CACHE_SIZE = new Argument<>("Cache size", "-M", "--cache-size", 1,
+                "Maximum size in bytes of the compilation cache.", String.class, String.valueOf(CompilationCache.DEFAULT_MAX_SIZE),
+                (args, value) -> args.cacheSize = Long.parseLong(value));
+    public static final Argument<Boolean> ARG_CACHE_STATS = new Argument<>("Cache stats", "-S", "--cache-stats", 0,
+                "Prints the hits and misses of the compilation cache on stderr.", Boolean.class, false,
+                (args, value) -> args.cacheStats = value);
+    public static final Argument<String> ARG_OPTIMIZATION = new Argument<>("Optimization", "-O", "--optimize", 1,
+                "Optimization level used with --asm, 0 to " + Optimizer.MAX_LEVEL + ".", String.class, "0",
+                (args, value) -> args.optimizationLevel = Integer.parseInt(value));
     public static final Argument<Boolean> ARG_DEBUG = new Argument<>("Debug", "-d", "--debug", 0,
-                "Runs the vm in debug mode.", Boolean.class, false,
+                "Runs the vm in debug mode, tracing every instruction executed.", Boolean.class, false,
                 (args, value) -> args.debug = value);
+    public static final Argument<Boolean> ARG_INTERACTIVE = new Argument<>("Interactive", "-i", "--interactive", 0,
+                "Runs the vm under the debugger, reading commands from stdin.", Boolean.class, false,
+                (args, value) -> args.interactive = value);
+    public static final Argument<String> ARG_MAX_STACK = new Argument<>("Max stack", "-s", "--max-stack", 1,
+                "Maximum number of values on the operand stack.", String.class, String.valueOf(Parameters.DEFAULT_MAX_STACK_SIZE),
+                (args, value) -> args.maxStackSize = Integer.parseInt(value));
+    public static final Argument<String> ARG_MAX_CALLS = new Argument<>("Max calls", "-c", "--max-calls", 1,
+                "Maximum depth of nested procedure calls.", String.class, String.valueOf(Parameters.DEFAULT_MAX_RETURN_STACK_SIZE),
+                (args, value) -> args.maxReturnStackSize = Integer.parseInt(value));
+    public static final Argument<String> ARG_MAX_HEAP = new Argument<>("Max heap", "-m", "--max-heap", 1,
+                "Maximum size in bytes of the memory allocated with mem.", String.class, String.valueOf(Parameters.DEFAULT_MAX_HEAP_SIZE),
+                (args, value) -> args.maxHeapSize = Integer.parseInt(value));
+    public static final Argument<Boolean> ARG_GC_STATS = new Argument<>("Gc stats", "-g", "--gc-stats", 0,
+                "Prints the garbage collector statistics on stderr at the end of the run.", Boolean.class, false,
+                (args, value) -> args.gcStats = value);
+    public static final Argument<Boolean> ARG_JIT = new Argument<>("Jit", "-j", "--jit", 0,
+                "Compiles hot procedures and loops to JVM bytecode.", Boolean.class, false,
+                (args, value) -> args.jit = value);
+    public static final Argument<String> ARG_JIT_THRESHOLD = new Argument<>("Jit threshold", "-t", "--jit-threshold", 1,
+                "Number of calls or loop iterations before compiling.", String.class, String.valueOf(Parameters.DEFAULT_JIT_THRESHOLD),
+                (args, value) -> args.jitThreshold = Integer.parseInt(value));
+    public static final Argument<String> ARG_PROFILE = new Argument<>("Profile", "-p", "--profile", 1,
+                "Profiles the run, prints an annotated disassembly on stderr and writes the JSON profile to the given file.",
+                String.class, null,
+                (args, value) -> args.profileFile = value);
+    public static final Argument<Boolean> ARG_VERIFY = new Argument<>("Verify", "-V", "--verify", 0,
+                "Refuses to run a programm the verifier cannot prove safe.", Boolean.class, false,
+                (args, value) -> args.verify = value);
+    public static final Argument<Boolean> ARG_CHECKED = new Argument<>("Checked", "-k", "--checked", 0,
+                "Keeps the run time stack and jump checks, even for programms proven safe.", Boolean.class, false,
+                (args, value) -> args.checked = value);
+    public static final Argument<Boolean> ARG_REGISTERS = new Argument<>("Registers", "-r", "--registers", 0,
+                "Runs verified programms on their register based translation.", Boolean.class, false,
+                (args, value) -> args.registers = value);
+    public static final Argument<String> ARG_SNAPSHOT = new Argument<>("Snapshot", "-w", "--snapshot", 1,
+                "Writes the state of the vm to the given image file at the first snapshot instruction, then halts.",
+                String.class, null,
+                (args, value) -> args.snapshotFile = value);
+    public static final Argument<Boolean> ARG_RESTORE = new Argument<>("Restore", "-R", "--restore", 0,
+                "Restores the image file written by --snapshot and continues its execution.", Boolean.class, false,
+                (args, value) -> args.restore = value);
+    public static final Argument<String> ARG_CARRIERS = new Argument<>("Carriers", "-P", "--carriers", 1,
+                "Number of threads running the tasks started by spawn.", String.class,
+                String.valueOf(Runtime.getRuntime().availableProcessors()),
+                (args, value) -> args.carriers = Integer.parseInt(value));
+    public static final Argument<String> ARG_SLICE = new Argument<>("Task slice", "-q", "--slice", 1,
+                "Maximum number of instructions a task runs before the next task gets its turn.", String.class,
+                String.valueOf(Parameters.DEFAULT_TASK_SLICE),
+                (args, value) -> args.taskSlice = Integer.parseInt(value));
+    public static final Argument<String> ARG_OUTPUT = new Argument<>("Output", "-o", "--output", 1,
+                "Writes the output of print to the given file, '" + LivmArgs.OUTPUT_STDOUT + "' for stdout or '"
+                + LivmArgs.OUTPUT_DISCARD + "' to discard it.", String.class, LivmArgs.OUTPUT_STDOUT,
+                (args, value) -> args.outputFile = value);
 
     @SuppressWarnings("rawtypes")
     public static final List<Argument> ARGS = List.of(
-            ARG_HELP, ARG_DEBUG
+            ARG_HELP, ARG_FILE, ARG_ASM, ARG_CACHE, ARG_CACHE_SIZE, ARG_CACHE_STATS, ARG_OPTIMIZATION, ARG_DEBUG, ARG_INTERACTIVE, ARG_MAX_STACK, ARG_MAX_CALLS, ARG_MAX_HEAP, ARG_GC_STATS, ARG_JIT, ARG_JIT_THRESHOLD,
+            ARG_PROFILE, ARG_VERIFY, ARG_CHECKED, ARG_REGISTERS, ARG_SNAPSHOT, ARG_RESTORE, ARG_CARRIERS, ARG_SLICE, ARG_OUTPUT
     );
 
     public static void init(String[] args) {
@@ -54,7 +136,6 @@ class LivmArgs {
             return usage;
         }
         LivmArgs parsedArgs = new LivmArgs();
-        parsedArgs.file = args[1];
         for(Argument arg: ARGS) {
             arg.valueSetter.accept(parsedArgs, arg.defaultValue);
             for (int i = 0; i < args.length; i++) {
@@ -69,6 +150,18 @@ class LivmArgs {
                 }
             }
         }
+        // the input file can also be given without -f, as the first argument that is not an option
+        for (int i = 0; i < args.length && parsedArgs.getFile() == null; i++) {
+            String current = args[i];
+            Argument option = ARGS.stream()
+                    .filter(arg -> current.equals(arg.shortStr) || current.equals(arg.longStr))
+                    .findFirst().orElse(null);
+            if (option != null) {
+                i += option.argSize;
+            } else if (!current.startsWith("-")) {
+                parsedArgs.file = current;
+            }
+        }
         // check required args
         if (parsedArgs.getFile() == null) {
             System.err.println(USAGE);
@@ -79,7 +172,28 @@ class LivmArgs {
 
     private boolean help;
     private boolean debug;
+    private boolean interactive;
     private String file;
+    private boolean asm;
+    private String cacheDirectory;
+    private long cacheSize;
+    private boolean cacheStats;
+    private int optimizationLevel;
+    private int maxStackSize;
+    private int maxReturnStackSize;
+    private int maxHeapSize;
+    private boolean gcStats;
+    private boolean jit;
+    private int jitThreshold;
+    private String profileFile;
+    private boolean verify;
+    private boolean checked;
+    private boolean registers;
+    private String snapshotFile;
+    private boolean restore;
+    private int carriers;
+    private int taskSlice;
+    private String outputFile;
 
     public boolean isHelp() {
         return help;
@@ -89,8 +203,129 @@ class LivmArgs {
         return debug;
     }
 
+    public boolean isInteractive() {
+        return interactive;
+    }
+
     public String getFile() {
         return file;
     }
 
+    public boolean isAsm() {
+        return asm;
+    }
+
+    public boolean isCache() {
+        return cacheDirectory != null;
+    }
+
+    public String getCacheDirectory() {
+        return cacheDirectory;
+    }
+
+    public long getCacheSize() {
+        return cacheSize;
+    }
+
+    public boolean isCacheStats() {
+        return cacheStats;
+    }
+
+    public int getOptimizationLevel() {
+        return optimizationLevel;
+    }
+
+    public int getMaxStackSize() {
+        return maxStackSize;
+    }
+
+    public int getMaxReturnStackSize() {
+        return maxReturnStackSize;
+    }
+
+    public int getMaxHeapSize() {
+        return maxHeapSize;
+    }
+
+    public boolean isGcStats() {
+        return gcStats;
+    }
+
+    public boolean isJit() {
+        return jit;
+    }
+
+    public int getJitThreshold() {
+        return jitThreshold;
+    }
+
+    public boolean isProfile() {
+        return profileFile != null;
+    }
+
+    public String getProfileFile() {
+        return profileFile;
+    }
+
+    public boolean isVerify() {
+        return verify;
+    }
+
+    public boolean isChecked() {
+        return checked;
+    }
+
+    public boolean isRegisters() {
+        return registers;
+    }
+
+    public String getSnapshotFile() {
+        return snapshotFile;
+    }
+
+    public boolean isRestore() {
+        return restore;
+    }
+
+    public int getCarriers() {
+        return carriers;
+    }
+
+    public int getTaskSlice() {
+        return taskSlice;
+    }
+
+    public String getOutputFile() {
+        return outputFile;
+    }
+
+    /**
+     * Opens the output given with --output.
+     */
+    public Output openOutput() {
+        return switch (outputFile) {
+            case OUTPUT_STDOUT -> Output.stdout();
+            case OUTPUT_DISCARD -> Output.discard();
+            default -> Output.toFile(outputFile);
+        };
+    }
+
+    public Parameters toParameters(Output output) {
+        return Parameters.builder()
+                .debug(debug || interactive)
+                .maxStackSize(maxStackSize)
+                .maxReturnStackSize(maxReturnStackSize)
+                .jit(jit)
+                .jitThreshold(jitThreshold)
+                .profile(isProfile())
+                .maxHeapSize(maxHeapSize)
+                .output(output)
+                .checked(checked)
+                .registers(registers)
+                .snapshot(snapshotFile == null ? null : Path.of(snapshotFile))
+                .carriers(carriers)
+                .taskSlice(taskSlice)
+                .build();
+    }
+
 }
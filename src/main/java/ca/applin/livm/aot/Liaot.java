@@ -0,0 +1,169 @@
+package ca.applin.livm.aot;
+
+import ca.applin.livm.core.AotCode;
+import ca.applin.livm.core.AotCompiler;
+import ca.applin.livm.core.InvalidProgramException;
+import ca.applin.livm.core.Program;
+import ca.applin.livm.optimizer.Optimizer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.CodeSource;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.stream.Stream;
+
+/**
+ * Compiles a programm ahead of time to a runnable jar: the class generated by the {@link AotCompiler}, the programm
+ * and the classes of livm running it, without any other dependency.
+ */
+public class Liaot {
+
+    // classes of livm copied to the jar
+    private static final String LIVM_PACKAGE = "ca/applin/livm/";
+
+    private static void usage() {
+        System.out.println(
+                """
+                usage:
+                liaot <INPUT FILE> [-o <OUTPUT JAR>] [-O <LEVEL>]
+
+                <INPUT FILE>           a *.li file, or a *.lasm file assembled first
+                -o <OUTPUT JAR>        the jar to write, the input file with the .jar extension by default
+                -O <LEVEL>             optimization level of a *.lasm file, 0 (default) to 3
+                """
+        );
+    }
+
+    public static String file;
+    public static String outputFile;
+    public static int optimizationLevel;
+
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            System.err.println("ERROR: Missing input file");
+            usage();
+            System.exit(-1);
+        }
+        initArgs(args);
+        Program program;
+        byte[] compiled;
+        try {
+            program = file.endsWith(".lasm")
+                    ? Program.fromAsmFile(file, optimizationLevel)
+                    : Program.deserialize(file);
+            compiled = AotCompiler.compile(program);
+        } catch (InvalidProgramException | UncheckedIOException | IllegalArgumentException e) {
+            System.err.println("ERROR: " + e.getMessage());
+            System.exit(-1);
+            return;
+        }
+        if (outputFile == null) {
+            int extension = file.lastIndexOf('.');
+            outputFile = (extension > file.lastIndexOf('/') ? file.substring(0, extension) : file) + ".jar";
+        }
+        try (OutputStream out = Files.newOutputStream(Path.of(outputFile))) {
+            writeJar(program, compiled, out);
+        } catch (IOException | URISyntaxException e) {
+            System.err.printf("ERROR: could not write jar %s. Cause: %s\n", outputFile, e.getMessage());
+            System.exit(-1);
+        }
+    }
+
+    private static void writeJar(Program program, byte[] compiled, OutputStream out)
+            throws IOException, URISyntaxException {
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().put(Attributes.Name.MAIN_CLASS, AotCompiler.CLASS_NAME);
+        try (JarOutputStream jar = new JarOutputStream(out, manifest)) {
+            ByteArrayOutputStream li = new ByteArrayOutputStream();
+            try (PrintStream ps = new PrintStream(li)) {
+                program.serialize(ps);
+            }
+            jar.putNextEntry(new JarEntry(AotCode.PROGRAM_RESOURCE.substring(1)));
+            li.writeTo(jar);
+            jar.closeEntry();
+            String generated = AotCompiler.CLASS_NAME.replace('.', '/') + ".class";
+            jar.putNextEntry(new JarEntry(generated));
+            jar.write(compiled);
+            jar.closeEntry();
+            copyLivmClasses(jar);
+        }
+    }
+
+    // from the jar or the directory of the classes of livm
+    private static void copyLivmClasses(JarOutputStream jar) throws IOException, URISyntaxException {
+        CodeSource source = AotCode.class.getProtectionDomain().getCodeSource();
+        if (source == null) {
+            throw new IOException("the classes of livm cannot be found, liaot must run on a JVM");
+        }
+        Path location = Path.of(source.getLocation().toURI());
+        if (Files.isDirectory(location)) {
+            List<Path> classes;
+            try (Stream<Path> files = Files.walk(location.resolve(LIVM_PACKAGE))) {
+                classes = files.filter(Files::isRegularFile).sorted().toList();
+            }
+            for (Path file : classes) {
+                jar.putNextEntry(new JarEntry(location.relativize(file).toString().replace('\\', '/')));
+                Files.copy(file, jar);
+                jar.closeEntry();
+            }
+            return;
+        }
+        try (JarFile livm = new JarFile(location.toFile())) {
+            Enumeration<JarEntry> entries = livm.entries();
+            while (entries.hasMoreElements()) {
+                JarEntry entry = entries.nextElement();
+                if (entry.isDirectory() || !entry.getName().startsWith(LIVM_PACKAGE)) {
+                    continue;
+                }
+                jar.putNextEntry(new JarEntry(entry.getName()));
+                try (InputStream in = livm.getInputStream(entry)) {
+                    in.transferTo(jar);
+                }
+                jar.closeEntry();
+            }
+        }
+    }
+
+    private static void initArgs(String[] args) {
+        file = args[0];
+        for (int i = 1; i < args.length; i += 2) {
+            if (i + 1 >= args.length) {
+                incorrectArguments();
+            }
+            switch (args[i]) {
+                case "-o" -> outputFile = args[i + 1];
+                case "-O" -> {
+                    try {
+                        optimizationLevel = Integer.parseInt(args[i + 1]);
+                    } catch (NumberFormatException nfe) {
+                        incorrectArguments();
+                    }
+                    if (optimizationLevel < 0 || optimizationLevel > Optimizer.MAX_LEVEL) {
+                        incorrectArguments();
+                    }
+                }
+                default -> incorrectArguments();
+            }
+        }
+    }
+
+    private static void incorrectArguments() {
+        System.err.println("ERROR: Incorrect argument");
+        usage();
+        System.exit(-1);
+    }
+}
@@ -0,0 +1,288 @@
+package ca.applin.livm.cache;
+
+import ca.applin.livm.core.InvalidProgramException;
+import ca.applin.livm.core.Program;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Properties;
+import java.util.stream.Stream;
+
+/**
+ * On disk cache of assembled programms, so launching the same *.lasm file again loads the *.li file assembled the
+ * first time instead of running the {@code LasmParser}.
+ * <p>
+ * Entries are keyed by the SHA-256 of the source file, the optimization level and {@link #FORMAT}, the version
+ * of the assembler output which must change whenever the same source would be assembled differently. Each entry is
+ * the serialized *.li file, named after its key:
+ * <pre>
+ *     DIR/lock            locked while the index is changed, by any process using the cache
+ *     DIR/stats           hits, misses and evictions, in the properties format
+ *     DIR/entries/KEY.li
+ * </pre>
+ * Entries are written to a temporary file then atomically renamed, so a reader never sees a partial entry, and
+ * loading an entry does not need the lock. The last modified time of an entry is its last use: once the entries
+ * take more than the maximum size, the least recently used ones are deleted.
+ */
+public final class CompilationCache {
+    public static final long DEFAULT_MAX_SIZE = 64L * 1024 * 1024;
+    // changes whenever the assembler output changes for the same source
+    public static final String FORMAT = "li-3";
+
+    private static final String ENTRY_SUFFIX = ".li";
+    // file locks are held by the JVM, threads of the same JVM also have to wait for each other
+    private static final Object JVM_LOCK = new Object();
+
+    private final Path directory;
+    private final Path entries;
+    private final long maxSize;
+
+    public record Stats(long hits, long misses, long evictions, int entries, long size) {
+        public double hitRate() {
+            return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("cache: %d hits, %d misses (%.1f%% hit rate), %d evictions, %d entries, %d bytes",
+                    hits, misses, 100 * hitRate(), evictions, entries, size);
+        }
+    }
+
+    public CompilationCache(Path directory, long maxSize) {
+        this.directory = directory;
+        this.entries = directory.resolve("entries");
+        this.maxSize = maxSize;
+        try {
+            Files.createDirectories(entries);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot create cache directory " + directory, e);
+        }
+    }
+
+    /**
+     * @return the programm assembled from the file, loaded from the cache when it was already assembled with the
+     * same optimization level.
+     */
+    public Program fromAsmFile(String file, int optimizationLevel) {
+        String key = key(file, optimizationLevel);
+        Path entry = entries.resolve(key + ENTRY_SUFFIX);
+        Program cached = load(entry);
+        if (cached != null) {
+            return cached;
+        }
+        Program program = Program.fromAsmFile(file, optimizationLevel);
+        store(entry, program);
+        return program;
+    }
+
+    /**
+     * @return the statistics of the cache, shared by all the processes using it.
+     */
+    public Stats stats() {
+        return locked(() -> {
+            Properties counters = readCounters();
+            List<Path> files = listEntries();
+            long size = 0;
+            for (Path file : files) {
+                size += sizeOf(file);
+            }
+            return new Stats(counter(counters, "hits"), counter(counters, "misses"),
+                    counter(counters, "evictions"), files.size(), size);
+        });
+    }
+
+    // only an entry read back whole is a hit, the others are assembled again and replaced
+    private Program load(Path entry) {
+        Program program = null;
+        if (Files.exists(entry)) {
+            try {
+                program = Program.deserialize(entry.toString());
+            } catch (UncheckedIOException | InvalidProgramException e) {
+                // evicted since, or damaged
+            }
+        }
+        boolean hit = program != null;
+        locked(() -> {
+            if (hit) {
+                try {
+                    // last use, for the eviction
+                    Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+                } catch (NoSuchFileException e) {
+                    // evicted once read, the programm was still loaded from it
+                }
+            }
+            increment(hit ? "hits" : "misses", 1);
+            return null;
+        });
+        return program;
+    }
+
+    private void store(Path entry, Program program) {
+        Path temporary = null;
+        try {
+            temporary = Files.createTempFile(entries, "tmp-", ".part");
+            PrintStream ps = new PrintStream(Files.newOutputStream(temporary));
+            try (ps) {
+                program.serialize(ps);
+            }
+            // a PrintStream keeps its write errors to itself, a truncated entry must not be moved in place
+            if (ps.checkError()) {
+                throw new IOException("could not write " + temporary);
+            }
+            Files.move(temporary, entry, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            deleteIfExists(temporary);
+            // the cache is an optimization, the programm was assembled anyway
+            System.err.println("WARNING: could not write to the compilation cache " + directory + ": " + e.getMessage());
+            return;
+        }
+        locked(() -> {
+            evict();
+            return null;
+        });
+    }
+
+    // deletes the least recently used entries until the entries fit in maxSize, with the lock held
+    private void evict() throws IOException {
+        record Entry(Path path, long size, long lastUse) { }
+        List<Entry> all = new ArrayList<>();
+        long total = 0;
+        for (Path file : listEntries()) {
+            try {
+                long size = Files.size(file);
+                all.add(new Entry(file, size, Files.getLastModifiedTime(file).toMillis()));
+                total += size;
+            } catch (NoSuchFileException e) {
+                // deleted by a process not taking the lock
+            }
+        }
+        if (total <= maxSize) {
+            return;
+        }
+        all.sort(Comparator.comparingLong(Entry::lastUse));
+        long evicted = 0;
+        for (Entry entry : all) {
+            if (total <= maxSize) {
+                break;
+            }
+            Files.deleteIfExists(entry.path);
+            total -= entry.size;
+            evicted++;
+        }
+        increment("evictions", evicted);
+    }
+
+    private List<Path> listEntries() throws IOException {
+        try (Stream<Path> files = Files.list(entries)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(ENTRY_SUFFIX)).toList();
+        }
+    }
+
+    private static void deleteIfExists(Path file) {
+        if (file == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            // a stray part file only takes some space, the entries are still right
+        }
+    }
+
+    private static long sizeOf(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private void increment(String counter, long by) throws IOException {
+        Properties counters = readCounters();
+        counters.setProperty(counter, String.valueOf(counter(counters, counter) + by));
+        Path stats = directory.resolve("stats");
+        Path temporary = directory.resolve("stats.part");
+        try (OutputStream out = Files.newOutputStream(temporary)) {
+            counters.store(out, "livm compilation cache");
+        }
+        Files.move(temporary, stats, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private Properties readCounters() throws IOException {
+        Properties counters = new Properties();
+        Path stats = directory.resolve("stats");
+        if (Files.exists(stats)) {
+            try (InputStream in = Files.newInputStream(stats)) {
+                counters.load(in);
+            }
+        }
+        return counters;
+    }
+
+    private static long counter(Properties counters, String name) {
+        try {
+            return Long.parseLong(counters.getProperty(name, "0"));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private interface LockedAction<T> {
+        T run() throws IOException;
+    }
+
+    private <T> T locked(LockedAction<T> action) {
+        synchronized (JVM_LOCK) {
+            try (FileChannel channel = FileChannel.open(directory.resolve("lock"),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                FileLock lock = channel.lock();
+                try {
+                    return action.run();
+                } finally {
+                    lock.release();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot access the compilation cache " + directory, e);
+            }
+        }
+    }
+
+    /**
+     * @return the hex SHA-256 of the source file, the optimization level and the format of the entries.
+     */
+    static String key(String file, int optimizationLevel) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        try (FileChannel channel = FileChannel.open(Path.of(file), StandardOpenOption.READ)) {
+            ByteBuffer source = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            digest.update(source);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read " + file, e);
+        }
+        digest.update((FORMAT + " -O " + optimizationLevel).getBytes());
+        return HexFormat.of().formatHex(digest.digest());
+    }
+}
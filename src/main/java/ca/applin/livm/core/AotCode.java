@@ -0,0 +1,49 @@
+package ca.applin.livm.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A programm compiled ahead of time by the {@link AotCompiler}: the class generated for it extends this one, with a
+ * method per procedure, and is packaged with the programm and the classes of livm in a runnable jar by
+ * {@code liaot}.
+ * <p>
+ * The machine runs the compiled code like the code compiled by the jit, without waiting for the code to be hot:
+ * the interpreter enters it at every call and backward jump, and executes the instructions the compiled code
+ * leaves to it (traps, unsupported instructions), so the output and the traps are the ones of the interpreter.
+ */
+public abstract class AotCode implements CompiledCode {
+    // name of the *.li file of the programm in the jar
+    public static final String PROGRAM_RESOURCE = "/programm.li";
+
+    // JVM frames of compiled procedures a call can nest, deeper calls go through the interpreter. The frames
+    // running are counted by each machine, see VirtualMachine#compiledDepth, so the code has no state of its own
+    static final int MAX_DEPTH = 1000;
+
+    /**
+     * Runs the programm of the jar to completion, printing on stdout. Called by the main method of the generated
+     * class.
+     */
+    protected static void run(AotCode code) {
+        Program programm;
+        try (InputStream in = code.getClass().getResourceAsStream(PROGRAM_RESOURCE)) {
+            if (in == null) {
+                throw new InvalidProgramException("missing " + PROGRAM_RESOURCE);
+            }
+            programm = Program.deserialize(ByteBuffer.wrap(in.readAllBytes()), PROGRAM_RESOURCE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("could not load " + PROGRAM_RESOURCE + ". Cause: " + e.getMessage(), e);
+        }
+        Output output = Output.stdout();
+        Parameters parameters = Parameters.builder().output(output).build();
+        VirtualMachine machine = new VirtualMachine(programm, parameters, code);
+        try {
+            machine.runOrFail();
+        } finally {
+            machine.flushOutput();
+            output.close();
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package ca.applin.livm.core;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodTooLargeException;
+import org.objectweb.asm.MethodVisitor;
+
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Compiles a whole {@link Program} ahead of time to a JVM class extending {@link AotCode}.
+ * <p>
+ * The main code and every procedure (the targets of {@code call}, {@code tailcall} and {@code spawn}) get a method of
+ * their own, compiled by the {@link JitCompiler} like a region of the jit but without following the calls: a call to
+ * another procedure is a call to its method, which returns to the return site of the call, and a recursion stays in
+ * the method. Jumps become JVM gotos between the basic blocks, the JVM does not need structured control flow.
+ * <p>
+ * The {@code execute} method of the class dispatches the addresses the interpreter enters compiled code from, the
+ * procedures and the targets of backward jumps, to the method of their procedure. A procedure too big for a JVM
+ * method is left to the interpreter.
+ */
+public final class AotCompiler {
+    public static final String CLASS_NAME = "ca.applin.livm.core.AotProgram";
+
+    private static final String INTERNAL_NAME = CLASS_NAME.replace('.', '/');
+    private static final String VM = "ca/applin/livm/core/VirtualMachine";
+    private static final String AOT_CODE = "ca/applin/livm/core/AotCode";
+
+    private final Program program;
+    private final int[] opcodes;
+    private final int[] operands;
+    private final int size;
+    // targets of the backward jumps, where the interpreter enters compiled code like at the procedures
+    private final BitSet loops;
+
+    private AotCompiler(Program program) {
+        this.program = program;
+        this.opcodes = program.opcodes();
+        this.operands = program.operands();
+        this.size = opcodes.length;
+        this.loops = new BitSet(size);
+        for (int ip = 0; ip < size; ip++) {
+            switch (opcodes[ip]) {
+                case Opcodes.JMP, Opcodes.JNZ, Opcodes.JEQ -> {
+                    if (operands[ip] >= 0 && operands[ip] <= ip) {
+                        loops.set(operands[ip]);
+                    }
+                }
+                default -> { }
+            }
+        }
+    }
+
+    /**
+     * @return the class file of the {@link AotCode} of the programm, named {@link #CLASS_NAME}, with a main method
+     * running the programm stored in the jar.
+     * @throws IllegalArgumentException if the programm has too many procedures and loops for a JVM class
+     */
+    public static byte[] compile(Program program) {
+        return new AotCompiler(program).compile();
+    }
+
+    private byte[] compile() {
+        BitSet procedures = new BitSet(size);
+        procedures.set(0);
+        for (int ip = 0; ip < size; ip++) {
+            // tasks start at the target of spawn
+            if ((opcodes[ip] == Opcodes.CALL || opcodes[ip] == Opcodes.TAILCALL || opcodes[ip] == Opcodes.SPAWN)
+                    && operands[ip] >= 0 && operands[ip] < size) {
+                procedures.set(operands[ip]);
+            }
+        }
+        // procedures whose method is too large are removed, the others are compiled again without calling them
+        while (true) {
+            try {
+                return emit(procedures);
+            } catch (MethodTooLargeException e) {
+                if (!e.getMethodName().startsWith("p")) {
+                    throw new IllegalArgumentException("too many procedures and loops to compile " + program.size()
+                            + " instructions", e);
+                }
+                procedures.clear(Integer.parseInt(e.getMethodName().substring(1)));
+            }
+        }
+    }
+
+    private byte[] emit(BitSet procedures) {
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES) {
+            @Override
+            protected String getCommonSuperClass(String type1, String type2) {
+                return "java/lang/Object";
+            }
+        };
+        cw.visit(V17, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, INTERNAL_NAME, null, AOT_CODE, null);
+        emitConstructor(cw);
+        emitMain(cw);
+
+        JitCompiler compiler = new JitCompiler(program, null);
+        // entries of the interpreter, in the method of the first procedure having them as a basic block
+        Map<Integer, Integer> owners = new LinkedHashMap<>();
+        for (int entry = procedures.nextSetBit(0); entry >= 0; entry = procedures.nextSetBit(entry + 1)) {
+            BitSet leaders = compiler.compileProcedure(cw, INTERNAL_NAME, entry, procedures);
+            owners.putIfAbsent(entry, entry);
+            for (int leader = leaders.nextSetBit(0); leader >= 0; leader = leaders.nextSetBit(leader + 1)) {
+                if (loops.get(leader)) {
+                    owners.putIfAbsent(leader, entry);
+                }
+            }
+        }
+        emitExecute(cw, owners);
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    private static void emitConstructor(ClassWriter cw) {
+        MethodVisitor init = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+        init.visitCode();
+        init.visitVarInsn(ALOAD, 0);
+        init.visitMethodInsn(INVOKESPECIAL, AOT_CODE, "<init>", "()V", false);
+        init.visitInsn(RETURN);
+        init.visitMaxs(0, 0);
+        init.visitEnd();
+    }
+
+    private static void emitMain(ClassWriter cw) {
+        MethodVisitor main = cw.visitMethod(ACC_PUBLIC | ACC_STATIC, "main", "([Ljava/lang/String;)V", null, null);
+        main.visitCode();
+        main.visitTypeInsn(NEW, INTERNAL_NAME);
+        main.visitInsn(DUP);
+        main.visitMethodInsn(INVOKESPECIAL, INTERNAL_NAME, "<init>", "()V", false);
+        main.visitMethodInsn(INVOKESTATIC, AOT_CODE, "run", "(L" + AOT_CODE + ";)V", false);
+        main.visitInsn(RETURN);
+        main.visitMaxs(0, 0);
+        main.visitEnd();
+    }
+
+    // execute(vm, entry): calls the method owning the entry, any other address goes back to the interpreter
+    private static void emitExecute(ClassWriter cw, Map<Integer, Integer> owners) {
+        MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "execute", "(L" + VM + ";I)I", null, null);
+        mv.visitCode();
+        int[] keys = owners.keySet().stream().mapToInt(Integer::intValue).sorted().toArray();
+        Map<Integer, Label> methods = new LinkedHashMap<>();
+        Label[] targets = new Label[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            targets[i] = methods.computeIfAbsent(owners.get(keys[i]), owner -> new Label());
+        }
+        Label unknown = new Label();
+        mv.visitVarInsn(ILOAD, 2);
+        mv.visitLookupSwitchInsn(unknown, keys, targets);
+        for (Map.Entry<Integer, Label> method : methods.entrySet()) {
+            mv.visitLabel(method.getValue());
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitVarInsn(ALOAD, 1);
+            mv.visitVarInsn(ILOAD, 2);
+            mv.visitMethodInsn(INVOKEVIRTUAL, INTERNAL_NAME, JitCompiler.procedureName(method.getKey()),
+                    "(L" + VM + ";I)I", false);
+            mv.visitInsn(IRETURN);
+        }
+        mv.visitLabel(unknown);
+        mv.visitVarInsn(ILOAD, 2);
+        mv.visitInsn(IRETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+    }
+}
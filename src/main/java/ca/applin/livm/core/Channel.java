@@ -0,0 +1,109 @@
+package ca.applin.livm.core;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded channel of values between tasks, created by {@code chan}: a lock-free ring buffer any number of tasks
+ * send to and receive from at the same time.
+ * <p>
+ * Each slot of the ring has a sequence number telling the position it is ready for: the position of the next send
+ * when it is free, that position + 1 once it holds the value sent there. Senders claim the next position with a CAS
+ * on the tail, receivers with a CAS on the head, then write the value or read it and hand the slot over by updating
+ * its sequence. A full or an empty ring is seen on the sequence of the slot, without ever waiting for a lock.
+ * <p>
+ * Tasks blocked on a full or an empty channel are not waiting on their carrier thread: they are parked by the
+ * {@link Scheduler} in the waiters of the channel, and woken by the next receive or send.
+ */
+final class Channel {
+    // returned by poll, not a value: a channel whose id is out of the range of ints
+    static final long EMPTY = -1L;
+
+    private final long[] values;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    // next positions to receive from and to send to
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    // tasks parked on a receive from the empty channel and on a send to the full channel
+    final Queue<Scheduler.Waiter> receivers = new ConcurrentLinkedQueue<>();
+    final Queue<Scheduler.Waiter> senders = new ConcurrentLinkedQueue<>();
+
+    /**
+     * @param capacity rounded up to a power of two, and to at least 2 for the sequences to tell a full slot from a
+     *                 free one
+     */
+    Channel(int capacity) {
+        int size = capacity <= 2 ? 2 : Integer.highestOneBit(capacity - 1) << 1;
+        this.values = new long[size];
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.mask = size - 1;
+    }
+
+    /**
+     * @return false if the channel is full
+     */
+    boolean offer(long value) {
+        long position = tail.get();
+        while (true) {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    values[index] = value;
+                    // a volatile write, ordered before the sender looks for parked receivers
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                // the slot still holds the value sent a lap ago
+                return false;
+            } else {
+                // another sender got the position
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * @return the value received, {@link #EMPTY} if the channel is empty
+     */
+    long poll() {
+        long position = head.get();
+        while (true) {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - (position + 1);
+            if (difference == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    long value = values[index];
+                    // the slot is free for the send one lap later
+                    sequences.set(index, position + mask + 1);
+                    return value;
+                }
+                position = head.get();
+            } else if (difference < 0) {
+                return EMPTY;
+            } else {
+                position = head.get();
+            }
+        }
+    }
+
+    // checked again by a task once parked, a value sent before it was queued as a waiter would not wake it
+    boolean isEmpty() {
+        long position = head.get();
+        return sequences.get((int) position & mask) - (position + 1) < 0;
+    }
+
+    boolean isFull() {
+        long position = tail.get();
+        return sequences.get((int) position & mask) - position < 0;
+    }
+}
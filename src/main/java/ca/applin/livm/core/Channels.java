@@ -0,0 +1,55 @@
+package ca.applin.livm.core;
+
+import java.util.Arrays;
+
+/**
+ * The channels created by a machine and by the tasks it spawns, shared by all of them. A channel value holds the
+ * index of its channel here.
+ * <p>
+ * Channels are created under a lock, which is rare, and looked up without any: a task only gets a channel value
+ * through {@code chan}, {@code spawn} or another channel, which all happen after the channel was stored.
+ */
+final class Channels {
+    static final int MAX_CHANNELS = 1 << 16;
+    static final int MAX_CAPACITY = 1 << 16;
+
+    private volatile Channel[] channels = new Channel[8];
+    private int count;
+
+    /**
+     * @return the value of a new channel, {@link Value#NIL} if the capacity is not between 1 and
+     * {@link #MAX_CAPACITY} or if there are already {@link #MAX_CHANNELS} channels
+     */
+    synchronized long create(int capacity) {
+        if (capacity < 1 || capacity > MAX_CAPACITY || count == MAX_CHANNELS) {
+            return Value.NIL;
+        }
+        Channel[] channels = this.channels;
+        if (count == channels.length) {
+            channels = Arrays.copyOf(channels, channels.length * 2);
+        }
+        channels[count] = new Channel(capacity);
+        this.channels = channels;
+        return Value.channel(count++);
+    }
+
+    /**
+     * @return the channel of the value, null if it is not a channel value
+     */
+    Channel get(long value) {
+        if (!Value.isChannel(value)) {
+            return null;
+        }
+        Channel[] channels = this.channels;
+        int id = Value.address(value);
+        return id >= 0 && id < channels.length ? channels[id] : null;
+    }
+
+    synchronized int size() {
+        return count;
+    }
+
+    synchronized Channel[] all() {
+        return Arrays.copyOf(channels, count);
+    }
+}
@@ -0,0 +1,16 @@
+package ca.applin.livm.core;
+
+/**
+ * A region of a {@link Program} compiled to JVM bytecode by the {@link JitCompiler}.
+ */
+interface CompiledCode {
+
+    /**
+     * Runs the compiled region starting at the instruction {@code entry}, using and updating the registers and
+     * stacks of the virtual machine.
+     * @return the address of the next instruction the interpreter must execute. When the compiled code cannot
+     * execute an instruction (trap, unsupported instruction, jump outside the region), it returns that instruction
+     * address without executing it, so the interpreter can take over.
+     */
+    int execute(VirtualMachine vm, int entry);
+}
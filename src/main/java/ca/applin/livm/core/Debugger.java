@@ -0,0 +1,399 @@
+package ca.applin.livm.core;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Debugging engine of a {@link VirtualMachine} running with {@link Parameters#debug}, see
+ * {@link VirtualMachine#debugger()}.
+ * <p>
+ * The interpreter loop knows nothing about debugging. Breakpoints are set by patching a {@code break} instruction
+ * over the code, the machine running in debug mode has a copy of the code of its own for that. Between breakpoints
+ * the machine runs at full speed, stepping and tracing run it one instruction at a time.
+ * <p>
+ * Watch expressions are evaluated each time the machine stops:
+ * <ul>
+ *     <li>{@code ip}, {@code sp}, {@code rsp}, {@code fp}: the registers</li>
+ *     <li>{@code stack[N]}: the Nth value from the top of the operand stack, 0 being the top</li>
+ *     <li>{@code rstack[N]}: the Nth slot from the top of the return stack</li>
+ *     <li>{@code local[N]}: the local N of the current frame</li>
+ *     <li>{@code mem[ADDR]}: the word at ADDR in the heap</li>
+ *     <li>{@code data[ADDR]}: the int at ADDR in the data section</li>
+ * </ul>
+ * Numbers are decimal, or hexadecimal with a {@code 0x} prefix.
+ */
+public final class Debugger {
+    // values of the stacks shown by the trace after each instruction
+    static final int TRACE_STACK_DEPTH = 8;
+
+    private static final String HELP = """
+            break <ip>       sets a breakpoint
+            delete <ip>      removes a breakpoint
+            step [n]         executes the next n instructions, 1 by default
+            continue         runs until a breakpoint, a trap or the end of the programm
+            stack [n]        prints the top n values of the operand stack, all by default
+            rstack [n]       prints the top n return addresses, all by default
+            list [ip]        prints the code around ip, the current instruction by default
+            print <expr>     prints the value of an expression
+            watch <expr>     prints the value of an expression each time the machine stops
+            unwatch <expr>   removes a watch expression
+            quit             stops debugging
+            expressions: ip, sp, rsp, fp, stack[N], rstack[N], local[N], mem[ADDR], data[ADDR]""";
+
+    private final VirtualMachine vm;
+    // the code of the machine, patched with the breakpoints
+    private final int[] opcodes;
+    // original opcode of each patched instruction
+    private final Map<Integer, Integer> breakpoints = new TreeMap<>();
+    private final List<String> watches = new ArrayList<>();
+
+    Debugger(VirtualMachine vm) {
+        this.vm = vm;
+        this.opcodes = vm.program().opcodes();
+    }
+
+    public void addBreakpoint(int ip) {
+        if (ip < 0 || ip >= opcodes.length) {
+            throw new IllegalArgumentException("No instruction at " + ip);
+        }
+        if (!breakpoints.containsKey(ip)) {
+            breakpoints.put(ip, opcodes[ip]);
+            opcodes[ip] = Opcodes.BREAK;
+        }
+    }
+
+    /**
+     * @return false if there was no breakpoint at ip.
+     */
+    public boolean removeBreakpoint(int ip) {
+        Integer original = breakpoints.remove(ip);
+        if (original == null) {
+            return false;
+        }
+        opcodes[ip] = original;
+        return true;
+    }
+
+    public Set<Integer> getBreakpoints() {
+        return Collections.unmodifiableSet(breakpoints.keySet());
+    }
+
+    /**
+     * @return the instruction at ip as written in the programm, breakpoints are not shown.
+     */
+    public Instruction instructionAt(int ip) {
+        if (ip < 0 || ip >= opcodes.length) {
+            return null;
+        }
+        Integer original = breakpoints.get(ip);
+        Instruction.Type type = Instruction.Type.fromOpcode(original != null ? original : opcodes[ip]);
+        return type.operandCount() == 0
+                ? new Instruction(type)
+                : new Instruction(type, new Word(vm.program().operands()[ip]));
+    }
+
+    /**
+     * Executes the instruction at the instruction pointer, a breakpoint on it is ignored.
+     * @return the trap raised by the instruction, {@link Trap#BREAKPOINT} for a break written in the programm,
+     * after which the machine is on the next instruction.
+     */
+    public Trap step() {
+        if (vm.isHalted()) {
+            return Trap.OK;
+        }
+        int ip = vm.ip;
+        Integer original = ip >= 0 && ip < opcodes.length ? breakpoints.get(ip) : null;
+        if (original != null) {
+            opcodes[ip] = original;
+        }
+        Trap trap;
+        try {
+            if (vm.getProfiler() != null) {
+                vm.getProfiler().record(vm);
+            }
+            trap = vm.run(1);
+        } finally {
+            if (original != null) {
+                opcodes[ip] = Opcodes.BREAK;
+            }
+        }
+        if (trap == Trap.BREAKPOINT) {
+            vm.ip++;
+        }
+        return trap;
+    }
+
+    /**
+     * Runs the machine until it reaches a breakpoint, halts or raises a trap. A breakpoint on the current
+     * instruction is ignored, so resuming after a breakpoint does not stop on it again.
+     * @return {@link Trap#BREAKPOINT} when stopped on a breakpoint, whose instruction is not executed yet.
+     */
+    public Trap resume() {
+        Trap trap = step();
+        if (trap != Trap.OK || vm.isHalted()) {
+            return trap;
+        }
+        if (vm.getProfiler() != null) {
+            // every instruction must be recorded
+            while (trap == Trap.OK && !vm.isHalted() && !breakpoints.containsKey(vm.ip)) {
+                trap = step();
+            }
+            return trap == Trap.OK && breakpoints.containsKey(vm.ip) ? Trap.BREAKPOINT : trap;
+        }
+        trap = vm.run();
+        if (trap == Trap.BREAKPOINT) {
+            if (breakpoints.containsKey(vm.ip)) {
+                // the patched break is not an instruction of the programm
+                vm.retired--;
+            } else {
+                vm.ip++;
+            }
+        }
+        return trap;
+    }
+
+    /**
+     * Runs the machine until it halts or raises a trap, printing each instruction before it is executed and the
+     * top of the operand stack after. Breakpoints are ignored.
+     */
+    public Trap trace(PrintStream out) {
+        Trap trap = Trap.OK;
+        while (!vm.isHalted()) {
+            vm.flushOutput();
+            Instruction instruction = instructionAt(vm.ip);
+            if (instruction != null) {
+                out.println(instruction.toAsm());
+            }
+            trap = step();
+            if (trap != Trap.OK && trap != Trap.BREAKPOINT
+                    || instruction == null || instruction.type == Instruction.Type.HALT) {
+                break;
+            }
+            vm.flushOutput();
+            printStack(out, TRACE_STACK_DEPTH);
+        }
+        return trap == Trap.BREAKPOINT ? Trap.OK : trap;
+    }
+
+    public void printStack(PrintStream out, int depth) {
+        out.println("Stack:");
+        if (vm.sp == 0) {
+            out.println("    [EMPTY]");
+        }
+        int shown = Math.min(depth, vm.sp);
+        for (int i = vm.sp - 1; i >= vm.sp - shown; i--) {
+            out.println("    Word[" + Value.toString(vm.stack[i]) + "]");
+        }
+        if (shown < vm.sp) {
+            out.printf("    ... %d more%n", vm.sp - shown);
+        }
+    }
+
+    public void printReturnStack(PrintStream out, int depth) {
+        out.println("Return stack:");
+        if (vm.rsp == 0) {
+            out.println("    [EMPTY]");
+        }
+        int shown = Math.min(depth, vm.rsp);
+        for (int i = vm.rsp - 1; i >= vm.rsp - shown; i--) {
+            int address = vm.returnStack[i];
+            if (address < 0 && i > 0) {
+                // a frame: its number of locals above the frame pointer of the previous frame
+                out.printf("    frame  %d locals, previous fp=%d%n", ~address, vm.returnStack[--i]);
+                continue;
+            }
+            out.printf("    %5d  %s%n", address, address < opcodes.length ? instructionAt(address).toAsm() : "");
+        }
+        if (shown < vm.rsp) {
+            out.printf("    ... %d more%n", vm.rsp - shown);
+        }
+    }
+
+    public void addWatch(String expression) {
+        evaluate(expression);
+        watches.add(expression);
+    }
+
+    public boolean removeWatch(String expression) {
+        return watches.remove(expression);
+    }
+
+    public void printWatches(PrintStream out) {
+        for (String watch : watches) {
+            out.printf("    %s = %s%n", watch, evaluate(watch));
+        }
+    }
+
+    /**
+     * @return the value of the expression, formatted as by print.
+     * @throws IllegalArgumentException if the expression is not valid.
+     */
+    public String evaluate(String expression) {
+        String expr = expression.strip();
+        switch (expr) {
+            case "ip" -> {
+                return String.valueOf(vm.ip);
+            }
+            case "sp" -> {
+                return String.valueOf(vm.sp);
+            }
+            case "rsp" -> {
+                return String.valueOf(vm.rsp);
+            }
+            case "fp" -> {
+                return String.valueOf(vm.fp);
+            }
+            default -> { }
+        }
+        int open = expr.indexOf('[');
+        if (open < 0 || !expr.endsWith("]")) {
+            throw new IllegalArgumentException("Invalid expression " + expression);
+        }
+        String name = expr.substring(0, open);
+        int index = parseNumber(expr.substring(open + 1, expr.length() - 1).strip());
+        return switch (name) {
+            case "stack" -> index < 0 || index >= vm.sp ? "<empty>" : Value.toString(vm.stack[vm.sp - 1 - index]);
+            case "rstack" -> index < 0 || index >= vm.rsp ? "<empty>" : String.valueOf(vm.returnStack[vm.rsp - 1 - index]);
+            case "local" -> vm.rsp == 0 || index < 0 || index >= ~vm.returnStack[vm.rsp - 1] || vm.fp + index >= vm.sp
+                    ? "<no local>"
+                    : Value.toString(vm.stack[vm.fp + index]);
+            case "mem" -> {
+                Heap heap = vm.heapIfAllocated();
+                yield heap == null || !heap.isValidWord(index) ? "<unallocated>" : Value.toString(heap.getWord(index));
+            }
+            case "data" -> {
+                var data = vm.program().dataSection();
+                yield index < 0 || index > data.capacity() - 4 ? "<out of data section>"
+                        : String.valueOf(data.getInt(index));
+            }
+            default -> throw new IllegalArgumentException("Invalid expression " + expression);
+        };
+    }
+
+    /**
+     * Reads debugger commands from in until the programm ends or the quit command, see the help command. The
+     * machine stops before its first instruction.
+     */
+    public void interactive(BufferedReader in, PrintStream out) {
+        out.println("livm debugger, 'help' for the list of commands");
+        printLocation(out);
+        while (true) {
+            out.print("(livm) ");
+            out.flush();
+            String line;
+            try {
+                line = in.readLine();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (line == null) {
+                return;
+            }
+            String[] words = line.strip().split("\\s+", 2);
+            String argument = words.length > 1 ? words[1] : null;
+            try {
+                switch (words[0]) {
+                    case "" -> { }
+                    case "h", "help" -> out.println(HELP);
+                    case "b", "break" -> {
+                        addBreakpoint(parseNumber(required(argument)));
+                        out.println("Breakpoints: " + breakpoints.keySet());
+                    }
+                    case "d", "delete" -> {
+                        if (!removeBreakpoint(parseNumber(required(argument)))) {
+                            out.println("No breakpoint at " + argument);
+                        }
+                    }
+                    case "s", "step" -> {
+                        int count = argument == null ? 1 : parseNumber(argument);
+                        Trap trap = Trap.OK;
+                        for (int i = 0; i < count && trap == Trap.OK && !vm.isHalted(); i++) {
+                            trap = step();
+                        }
+                        if (stopped(trap, out)) {
+                            return;
+                        }
+                    }
+                    case "c", "continue" -> {
+                        if (stopped(resume(), out)) {
+                            return;
+                        }
+                    }
+                    case "st", "stack" -> printStack(out, argument == null ? Integer.MAX_VALUE : parseNumber(argument));
+                    case "rs", "rstack" -> printReturnStack(out, argument == null ? Integer.MAX_VALUE : parseNumber(argument));
+                    case "l", "list" -> list(out, argument == null ? vm.ip : parseNumber(argument));
+                    case "p", "print" -> out.println(evaluate(required(argument)));
+                    case "w", "watch" -> addWatch(required(argument));
+                    case "unwatch" -> {
+                        if (!removeWatch(required(argument).strip())) {
+                            out.println("No watch " + argument);
+                        }
+                    }
+                    case "q", "quit" -> {
+                        return;
+                    }
+                    default -> out.println("Unknown command " + words[0] + ", 'help' for the list of commands");
+                }
+            } catch (IllegalArgumentException e) {
+                out.println(e.getMessage());
+            }
+        }
+    }
+
+    // prints where the machine stopped, returns true when the programm is over
+    private boolean stopped(Trap trap, PrintStream out) {
+        vm.flushOutput();
+        if (trap != Trap.OK && trap != Trap.BREAKPOINT) {
+            out.printf("Error: %s - %s ip=%d%n", trap.name(), instructionAt(vm.ip), vm.ip);
+            printStack(out, TRACE_STACK_DEPTH);
+            return true;
+        }
+        if (vm.isHalted()) {
+            out.printf("Halted (ip=%d)%n", vm.ip);
+            return true;
+        }
+        if (trap == Trap.BREAKPOINT) {
+            out.print("Breakpoint ");
+        }
+        printLocation(out);
+        return false;
+    }
+
+    private void printLocation(PrintStream out) {
+        Instruction instruction = instructionAt(vm.ip);
+        out.printf("%5d  %s%n", vm.ip, instruction == null ? "<end>" : instruction.toAsm());
+        printWatches(out);
+    }
+
+    private void list(PrintStream out, int around) {
+        int from = Math.max(0, around - 5);
+        int to = Math.min(opcodes.length, around + 6);
+        for (int ip = from; ip < to; ip++) {
+            out.printf("%s%s%5d  %s%n", ip == vm.ip ? "=>" : "  ", breakpoints.containsKey(ip) ? "*" : " ", ip,
+                    instructionAt(ip).toAsm());
+        }
+    }
+
+    private static String required(String argument) {
+        if (argument == null) {
+            throw new IllegalArgumentException("Missing argument");
+        }
+        return argument;
+    }
+
+    private static int parseNumber(String text) {
+        try {
+            return text.startsWith("0x") ? Integer.parseUnsignedInt(text.substring(2), 16) : Integer.parseInt(text);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid number " + text);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package ca.applin.livm.core;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Mark and sweep collector for the objects allocated with {@code new} in the {@link Heap}.
+ * <p>
+ * The collector is precise: only the {@link Value} tagged as pointers are references, ints are never mistaken for
+ * addresses. The roots are the values of the operand stack and the words of the blocks allocated with {@code mem},
+ * which the programm frees itself. The return stack only holds code addresses and is not scanned. Every word of a
+ * reachable object is scanned the same way. A pointer inside an object (ie to its second word) does not keep it
+ * alive.
+ * <p>
+ * A collection runs when the objects allocated since the previous one reach the amount of memory that was alive
+ * after it (at least {@link #MIN_THRESHOLD} bytes), or when the heap is full.
+ */
+final class GarbageCollector {
+    static final long MIN_THRESHOLD = 1024 * 1024;
+
+    private final Heap heap;
+    private long allocatedSinceCollection;
+    private long threshold = MIN_THRESHOLD;
+
+    // objects marked but not scanned yet
+    private int[] work = new int[256];
+    private int workSize;
+
+    private long collections;
+    private long totalPauseNanos;
+    private long maxPauseNanos;
+    private long freedObjects;
+    private long freedBytes;
+    private long liveBytes;
+
+    GarbageCollector(Heap heap) {
+        this.heap = heap;
+    }
+
+    boolean shouldCollect() {
+        return allocatedSinceCollection >= threshold;
+    }
+
+    void allocated(int blockSize) {
+        allocatedSinceCollection += blockSize;
+    }
+
+    void collect(long[] roots, int rootCount) {
+        long start = System.nanoTime();
+        for (int i = 0; i < rootCount; i++) {
+            mark(roots[i]);
+        }
+        for (int block = heap.nextBlock(0); block != Heap.NIL; block = heap.nextBlock(block + heap.blockSizeAt(block))) {
+            if ((heap.header(block) & (Heap.FREE_BIT | Heap.MANAGED_BIT)) == 0) {
+                scan(block);
+            }
+        }
+        while (workSize > 0) {
+            scan(work[--workSize]);
+        }
+        long live = 0;
+        for (int block = heap.nextBlock(0); block != Heap.NIL; block = heap.nextBlock(block + heap.blockSizeAt(block))) {
+            int header = heap.header(block);
+            if ((header & Heap.FREE_BIT) != 0 || (header & Heap.MANAGED_BIT) == 0) {
+                continue;
+            }
+            if ((header & Heap.MARK_BIT) != 0) {
+                heap.setHeader(block, header & ~Heap.MARK_BIT);
+                live += heap.blockSizeAt(block);
+            } else {
+                freedObjects++;
+                freedBytes += heap.blockSizeAt(block);
+                heap.release(block);
+            }
+        }
+        liveBytes = live;
+        allocatedSinceCollection = 0;
+        threshold = Math.max(MIN_THRESHOLD, live);
+
+        long pause = System.nanoTime() - start;
+        collections++;
+        totalPauseNanos += pause;
+        maxPauseNanos = Math.max(maxPauseNanos, pause);
+    }
+
+    private void mark(long value) {
+        if (!Value.isPointer(value)) {
+            return;
+        }
+        int block = heap.objectAt(Value.address(value));
+        if (block == Heap.NIL) {
+            return;
+        }
+        int header = heap.header(block);
+        if ((header & Heap.MANAGED_BIT) == 0 || (header & Heap.MARK_BIT) != 0) {
+            return;
+        }
+        heap.setHeader(block, header | Heap.MARK_BIT);
+        if (workSize == work.length) {
+            work = Arrays.copyOf(work, workSize * 2);
+        }
+        work[workSize++] = block;
+    }
+
+    private void scan(int block) {
+        int end = block + heap.blockSizeAt(block);
+        for (int addr = block + Heap.HEADER; addr + Heap.WORD <= end; addr += Heap.WORD) {
+            mark(heap.getWord(addr));
+        }
+    }
+
+    // the state saved in an image: the allocations counters then the statistics
+    static final int IMAGE_SIZE = 8 * Long.BYTES;
+
+    void writeTo(ByteBuffer image) {
+        image.putLong(allocatedSinceCollection).putLong(threshold)
+                .putLong(collections).putLong(totalPauseNanos).putLong(maxPauseNanos)
+                .putLong(freedObjects).putLong(freedBytes).putLong(liveBytes);
+    }
+
+    void readFrom(ByteBuffer image) {
+        allocatedSinceCollection = image.getLong();
+        threshold = image.getLong();
+        collections = image.getLong();
+        totalPauseNanos = image.getLong();
+        maxPauseNanos = image.getLong();
+        freedObjects = image.getLong();
+        freedBytes = image.getLong();
+        liveBytes = image.getLong();
+    }
+
+    GcStats stats() {
+        return new GcStats(collections, totalPauseNanos, maxPauseNanos, freedObjects, freedBytes, liveBytes,
+                heap.allocatedBytes(), heap.capacity());
+    }
+}
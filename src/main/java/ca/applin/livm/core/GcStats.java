@@ -0,0 +1,37 @@
+package ca.applin.livm.core;
+
+/**
+ * Statistics of the {@link GarbageCollector} of a machine.
+ * @param collections number of collections
+ * @param totalPauseNanos time spent collecting
+ * @param maxPauseNanos longest collection
+ * @param freedObjects objects freed by all the collections
+ * @param freedBytes bytes freed by all the collections
+ * @param liveBytes bytes of the objects still alive after the last collection
+ * @param allocatedBytes bytes of all the blocks currently allocated, objects and mem blocks
+ * @param heapCapacity current size of the heap
+ */
+public record GcStats(long collections, long totalPauseNanos, long maxPauseNanos, long freedObjects,
+                      long freedBytes, long liveBytes, long allocatedBytes, long heapCapacity) {
+
+    public static final GcStats NONE = new GcStats(0, 0, 0, 0, 0, 0, 0, 0);
+
+    public double averagePauseNanos() {
+        return collections == 0 ? 0 : (double) totalPauseNanos / collections;
+    }
+
+    /**
+     * @return the share of elapsedNanos not spent collecting, from 0 to 1.
+     */
+    public double throughput(long elapsedNanos) {
+        return elapsedNanos <= 0 ? 1 : 1 - Math.min(1, (double) totalPauseNanos / elapsedNanos);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("gc: %d collections, pause total %.3f ms, max %.3f ms, avg %.3f ms, "
+                        + "freed %d objects (%d bytes), live %d bytes, allocated %d bytes, heap %d bytes",
+                collections, totalPauseNanos / 1e6, maxPauseNanos / 1e6, averagePauseNanos() / 1e6,
+                freedObjects, freedBytes, liveBytes, allocatedBytes, heapCapacity);
+    }
+}
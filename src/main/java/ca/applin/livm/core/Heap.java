@@ -0,0 +1,422 @@
+package ca.applin.livm.core;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * The memory of a {@link VirtualMachine}, allocated with {@code mem} and released with {@code free}.
+ * <p>
+ * The heap lives off the JVM heap in a direct buffer, which is replaced by one twice as big when it is full, up to
+ * {@link Parameters#maxHeapSize}. Addresses are offsets in the buffer, so they stay valid when it grows.
+ * <p>
+ * Each block starts with an 8 bytes header holding its size, the address given to the programm is the one right
+ * after the header, so 0 is never a valid address. Memory is accessed by 8 bytes words holding a {@link Value}. Block sizes are rounded to a size class:
+ * <ul>
+ *     <li>small blocks, up to {@link #MAX_SMALL_BLOCK} bytes, use power of 2 size classes starting at
+ *     {@link #MIN_BLOCK}. Freed blocks go to the free list of their class and are reused as is.</li>
+ *     <li>large blocks are rounded to a multiple of {@link #MAX_SMALL_BLOCK} bytes and freed ones are kept in a
+ *     single first fit free list. A large free block is reused whole.</li>
+ * </ul>
+ * New blocks are cut at the end of the used part of the buffer when their free list is empty. Free lists are
+ * linked through the first word of the free blocks.
+ * <p>
+ * Blocks allocated with {@code new} are objects managed by the {@link GarbageCollector}: they cannot be freed by
+ * the programm, the collector frees them once they are not reachable anymore.
+ */
+final class Heap {
+    static final int HEADER = 8;
+    static final int WORD = 8;
+    static final int MIN_BLOCK = 16;
+    static final int MAX_SMALL_BLOCK = 4096;
+    static final int INITIAL_CAPACITY = 64 * 1024;
+
+    private static final int SMALL_CLASSES = Integer.numberOfTrailingZeros(MAX_SMALL_BLOCK)
+            - Integer.numberOfTrailingZeros(MIN_BLOCK) + 1;
+    // flags in the low bits of the header, sizes are multiples of MIN_BLOCK so the low bits are unused
+    static final int FREE_BIT = 1,
+                     MANAGED_BIT = 2, // object allocated with new, owned by the garbage collector
+                     MARK_BIT = 4,    // reached by the current collection
+                     FLAGS = MIN_BLOCK - 1;
+    static final int NIL = -1;
+    // ints at the start of an image of the heap, padded to 8 bytes
+    private static final int IMAGE_HEADER = (int) align((3 + SMALL_CLASSES) * Integer.BYTES);
+
+    private final int maxCapacity;
+    private ByteBuffer memory;
+    // end of the used part of the buffer, new blocks are cut from here
+    private int top;
+    private final int[] freeLists = new int[SMALL_CLASSES];
+    private int largeFreeList = NIL;
+    // start of every block ever cut, indexed by offset / MIN_BLOCK
+    private final BitSet blockStarts = new BitSet();
+
+    private long allocatedBytes;
+
+    private final GarbageCollector gc;
+
+    Heap(int maxCapacity) {
+        this.maxCapacity = maxCapacity;
+        this.memory = ByteBuffer.allocateDirect(Math.min(INITIAL_CAPACITY, maxCapacity));
+        this.gc = new GarbageCollector(this);
+        Arrays.fill(freeLists, NIL);
+    }
+
+    /**
+     * @return the address of a block of at least size bytes, or 0 when the heap is full.
+     */
+    int allocate(int size) {
+        return allocate(size, 0);
+    }
+
+    /**
+     * Allocates an object of the given number of 8 bytes slots, all set to the int 0. A collection is run first when
+     * enough memory was allocated since the previous one, or when the heap is full.
+     * @param roots the operand stack, its first rootCount values are the roots of the collection
+     * @return the address of the object, or 0 when the heap is full even after a collection.
+     */
+    int allocateObject(int slots, long[] roots, int rootCount) {
+        if (slots < 0 || slots > (maxCapacity - HEADER) / WORD) {
+            return 0;
+        }
+        int size = slots * WORD;
+        if (gc.shouldCollect()) {
+            gc.collect(roots, rootCount);
+        }
+        int addr = allocate(size, MANAGED_BIT);
+        if (addr == 0) {
+            gc.collect(roots, rootCount);
+            addr = allocate(size, MANAGED_BIT);
+            if (addr == 0) {
+                return 0;
+            }
+        }
+        for (int i = 0; i < size; i += WORD) {
+            memory.putLong(addr + i, Value.FALSE);
+        }
+        gc.allocated(blockSizeAt(addr - HEADER));
+        return addr;
+    }
+
+    private int allocate(int size, int flags) {
+        if (size < 0 || size > maxCapacity - HEADER) {
+            return 0;
+        }
+        int blockSize = blockSize(size);
+        int block = blockSize <= MAX_SMALL_BLOCK ? takeSmall(blockSize) : takeLarge(blockSize);
+        if (block == NIL) {
+            block = cut(blockSize);
+            if (block == NIL) {
+                return 0;
+            }
+        } else {
+            // a reused large block can be bigger than asked, it keeps its size
+            blockSize = blockSizeAt(block);
+        }
+        memory.putInt(block, blockSize | flags);
+        allocatedBytes += blockSize;
+        return block + HEADER;
+    }
+
+    /**
+     * @return false if addr is not the address of a block allocated with mem.
+     */
+    boolean free(int addr) {
+        int block = objectAt(addr);
+        if (block == NIL || (memory.getInt(block) & MANAGED_BIT) != 0) {
+            return false;
+        }
+        release(block);
+        return true;
+    }
+
+    /**
+     * Puts a block back in its free list.
+     */
+    void release(int block) {
+        int blockSize = blockSizeAt(block);
+        memory.putInt(block, blockSize | FREE_BIT);
+        if (blockSize <= MAX_SMALL_BLOCK) {
+            int sizeClass = sizeClass(blockSize);
+            memory.putInt(block + HEADER, freeLists[sizeClass]);
+            freeLists[sizeClass] = block;
+        } else {
+            memory.putInt(block + HEADER, largeFreeList);
+            largeFreeList = block;
+        }
+        allocatedBytes -= blockSize;
+    }
+
+    /**
+     * @return the block whose address is addr if it is allocated, NIL otherwise.
+     */
+    int objectAt(int addr) {
+        int block = addr - HEADER;
+        if (!isBlock(block) || (memory.getInt(block) & FREE_BIT) != 0) {
+            return NIL;
+        }
+        return block;
+    }
+
+    /**
+     * @return the first block starting at or after offset, NIL if there is none.
+     */
+    int nextBlock(int offset) {
+        int index = blockStarts.nextSetBit((offset + MIN_BLOCK - 1) / MIN_BLOCK);
+        return index < 0 || index * MIN_BLOCK >= top ? NIL : index * MIN_BLOCK;
+    }
+
+    int header(int block) {
+        return memory.getInt(block);
+    }
+
+    void setHeader(int block, int header) {
+        memory.putInt(block, header);
+    }
+
+    int blockSizeAt(int block) {
+        return memory.getInt(block) & ~FLAGS;
+    }
+
+    GarbageCollector gc() {
+        return gc;
+    }
+
+    /**
+     * @return true if the word at addr is in the used part of the heap.
+     */
+    boolean isValidWord(int addr) {
+        return addr >= HEADER && addr <= top - WORD;
+    }
+
+    long getWord(int addr) {
+        return memory.getLong(addr);
+    }
+
+    void putWord(int addr, long value) {
+        memory.putLong(addr, value);
+    }
+
+    /**
+     * @return true if the words words starting at addr are all in the used part of the heap.
+     */
+    boolean isValidRegion(int addr, int words) {
+        return addr >= HEADER && words >= 0 && (long) addr + (long) words * WORD <= top;
+    }
+
+    /**
+     * Copies words words from src to dst in a single bulk transfer, the regions may overlap.
+     */
+    void copyWords(int dst, int src, int words) {
+        memory.put(dst, memory, src, words * WORD);
+    }
+
+    /**
+     * Copies count bytes of the data section from src to the words at dst, each byte as an int.
+     */
+    void copyBytes(int dst, ByteBuffer data, int src, int count) {
+        for (int i = 0; i < count; i++) {
+            memory.putLong(dst + i * WORD, Value.fromInt(data.get(src + i) & 0xFF));
+        }
+    }
+
+    /**
+     * Sets words words from dst to value: the first word is written, then the words already set are copied after
+     * them, doubling the size of the filled region with each bulk transfer.
+     */
+    void fillWords(int dst, long value, int words) {
+        if (words == 0) {
+            return;
+        }
+        memory.putLong(dst, value);
+        for (int filled = 1; filled < words; filled += Math.min(filled, words - filled)) {
+            memory.put(dst + filled * WORD, memory, dst, Math.min(filled, words - filled) * WORD);
+        }
+    }
+
+    /**
+     * Compares the words words at a and at b, the first difference is found by a vectorized
+     * {@link ByteBuffer#mismatch(ByteBuffer)}.
+     * @return 0 if they are the same, else the comparison of the first two words differing, see {@link #compare}
+     */
+    int compareWords(int a, int b, int words) {
+        int mismatch = memory.slice(a, words * WORD).mismatch(memory.slice(b, words * WORD));
+        if (mismatch < 0) {
+            return 0;
+        }
+        int offset = mismatch & -WORD;
+        return compare(memory.getLong(a + offset), memory.getLong(b + offset));
+    }
+
+    /**
+     * Compares the words at a to the count bytes of the data section at b, each byte as an int.
+     */
+    int compareBytes(int a, ByteBuffer data, int b, int count) {
+        for (int i = 0; i < count; i++) {
+            int result = compare(memory.getLong(a + i * WORD), Value.fromInt(data.get(b + i) & 0xFF));
+            if (result != 0) {
+                return result;
+            }
+        }
+        return 0;
+    }
+
+    // -1, 0 or 1: ints by their value, other values by their bits
+    private static int compare(long fst, long snd) {
+        return Value.areInts(fst, snd)
+                ? Integer.compare(Value.toInt(fst), Value.toInt(snd))
+                : Long.signum(Long.compare(fst, snd));
+    }
+
+    // bytes of the blocks currently allocated, headers included
+    long allocatedBytes() {
+        return allocatedBytes;
+    }
+
+    int capacity() {
+        return memory.capacity();
+    }
+
+    /**
+     * @return the number of bytes written by {@link #writeTo(ByteBuffer)}, a multiple of 8.
+     */
+    long imageSize() {
+        return IMAGE_HEADER + Long.BYTES + GarbageCollector.IMAGE_SIZE
+                + (long) blockStarts.toLongArray().length * Long.BYTES + align(top);
+    }
+
+    /**
+     * Saves the heap to an image: its allocator state and garbage collector, then the used part of the memory.
+     * <pre>
+     *     top, largeFreeList, the number of words of blockStarts and the free lists, as ints padded to 8 bytes
+     *     allocatedBytes, the state of the GarbageCollector, the words of blockStarts, as longs
+     *     the memory up to top, padded to 8 bytes
+     * </pre>
+     */
+    void writeTo(ByteBuffer image) {
+        long[] starts = blockStarts.toLongArray();
+        int start = image.position();
+        image.putInt(top).putInt(largeFreeList).putInt(starts.length);
+        for (int freeList : freeLists) {
+            image.putInt(freeList);
+        }
+        image.position(start + IMAGE_HEADER);
+        image.putLong(allocatedBytes);
+        gc.writeTo(image);
+        for (long word : starts) {
+            image.putLong(word);
+        }
+        image.put(image.position(), memory, 0, top);
+        image.position(image.position() + (int) align(top));
+    }
+
+    /**
+     * Loads a heap saved by {@link #writeTo(ByteBuffer)}, its memory is copied to a new buffer.
+     * @throws InvalidProgramException if the heap does not fit in maxCapacity
+     */
+    static Heap readFrom(ByteBuffer image, int maxCapacity) {
+        int start = image.position();
+        int top = image.getInt();
+        int largeFreeList = image.getInt();
+        int words = image.getInt();
+        if (top < 0 || top > maxCapacity) {
+            throw new InvalidProgramException("heap of " + top + " bytes larger than the maximum of " + maxCapacity);
+        }
+        if (words < 0 || (long) words * Long.BYTES > image.remaining()) {
+            throw new InvalidProgramException("truncated heap");
+        }
+        Heap heap = new Heap(maxCapacity);
+        heap.largeFreeList = largeFreeList;
+        for (int i = 0; i < SMALL_CLASSES; i++) {
+            heap.freeLists[i] = image.getInt();
+        }
+        image.position(start + IMAGE_HEADER);
+        heap.allocatedBytes = image.getLong();
+        heap.gc.readFrom(image);
+        long[] starts = new long[words];
+        image.asLongBuffer().get(starts);
+        image.position(image.position() + words * Long.BYTES);
+        heap.blockStarts.or(BitSet.valueOf(starts));
+        if (top > image.remaining()) {
+            throw new InvalidProgramException("truncated heap");
+        }
+        if (top > heap.memory.capacity()) {
+            heap.grow(top);
+        }
+        heap.memory.put(0, image, image.position(), top);
+        heap.top = top;
+        image.position(image.position() + (int) align(top));
+        return heap;
+    }
+
+    private static long align(long size) {
+        return (size + Long.BYTES - 1) & -Long.BYTES;
+    }
+
+    private static int blockSize(int size) {
+        int needed = Math.max(size + HEADER, MIN_BLOCK);
+        if (needed <= MAX_SMALL_BLOCK) {
+            return Integer.highestOneBit(needed - 1) << 1;
+        }
+        return (needed + MAX_SMALL_BLOCK - 1) / MAX_SMALL_BLOCK * MAX_SMALL_BLOCK;
+    }
+
+    private static int sizeClass(int blockSize) {
+        return Integer.numberOfTrailingZeros(blockSize) - Integer.numberOfTrailingZeros(MIN_BLOCK);
+    }
+
+    private boolean isBlock(int block) {
+        return block >= 0 && block < top && block % MIN_BLOCK == 0 && blockStarts.get(block / MIN_BLOCK);
+    }
+
+    private int takeSmall(int blockSize) {
+        int sizeClass = sizeClass(blockSize);
+        int block = freeLists[sizeClass];
+        if (block != NIL) {
+            freeLists[sizeClass] = memory.getInt(block + HEADER);
+        }
+        return block;
+    }
+
+    private int takeLarge(int blockSize) {
+        int previous = NIL;
+        for (int block = largeFreeList; block != NIL; block = memory.getInt(block + HEADER)) {
+            int size = blockSizeAt(block);
+            if (size >= blockSize) {
+                int next = memory.getInt(block + HEADER);
+                if (previous == NIL) {
+                    largeFreeList = next;
+                } else {
+                    memory.putInt(previous + HEADER, next);
+                }
+                return block;
+            }
+            previous = block;
+        }
+        return NIL;
+    }
+
+    private int cut(int blockSize) {
+        long end = (long) top + blockSize;
+        if (end > maxCapacity) {
+            return NIL;
+        }
+        if (end > memory.capacity()) {
+            grow((int) end);
+        }
+        int block = top;
+        top = (int) end;
+        blockStarts.set(block / MIN_BLOCK);
+        return block;
+    }
+
+    private void grow(int minCapacity) {
+        long capacity = memory.capacity();
+        while (capacity < minCapacity) {
+            capacity *= 2;
+        }
+        ByteBuffer grown = ByteBuffer.allocateDirect((int) Math.min(capacity, maxCapacity));
+        grown.put(0, memory, 0, top);
+        memory = grown;
+    }
+}
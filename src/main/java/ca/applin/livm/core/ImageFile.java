@@ -0,0 +1,150 @@
+package ca.applin.livm.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads and writes the images of a {@link VirtualMachine}, described in {@code docs/livm-file-format.md}: its
+ * registers, its stacks and its heap, with the programm it runs as a version 2 *.li file. The data section is part of
+ * the programm, the machine never writes to it.
+ * <p>
+ * Every section starts at a multiple of 8 bytes, so the image is written and read through a memory mapping with
+ * bulk copies only. The programm is decoded from the mapping like a *.li file, its data section staying a view of
+ * the image.
+ * <p>
+ * An image is taken between two instructions, so the state it holds is reached by running the programm from its
+ * start: the proof of the {@link Verifier} still holds for it, and a restored machine runs unchecked under the same
+ * conditions as a new one.
+ */
+final class ImageFile {
+    static final short MAGIC_BYTES = (short) 0xFAB5;
+    static final int VERSION = 1;
+
+    // flags
+    static final int HAS_HEAP = 1;
+
+    // u2 magic, u2 version, u4 flags, u4 ip, u4 sp, u4 rsp, u4 fp, u8 retired, u4 programm length, u4 padding
+    static final int HEADER_SIZE = 40;
+
+    private ImageFile() { }
+
+    static void write(VirtualMachine vm, Path image) {
+        ByteArrayOutputStream program = new ByteArrayOutputStream();
+        try {
+            LiFile.write(vm.program(), LiOptions.DEFAULT, program);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        Heap heap = vm.heapIfAllocated();
+        long size = HEADER_SIZE + align(program.size()) + (long) vm.sp * Long.BYTES
+                + align((long) vm.rsp * Integer.BYTES) + (heap == null ? 0 : heap.imageSize());
+        if (size > Integer.MAX_VALUE) {
+            throw new UncheckedIOException(new IOException("image of " + size + " bytes is too large"));
+        }
+        // written next to the image then renamed, a restore never sees a partial image
+        Path temporary = image.resolveSibling(image.getFileName() + ".part");
+        try {
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                MappedByteBuffer out = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                out.order(ByteOrder.BIG_ENDIAN);
+                out.putShort(MAGIC_BYTES).putShort((short) VERSION).putInt(heap == null ? 0 : HAS_HEAP)
+                        .putInt(vm.ip).putInt(vm.sp).putInt(vm.rsp).putInt(vm.fp).putLong(vm.retired)
+                        .putInt(program.size()).putInt(0);
+                out.put(program.toByteArray());
+                out.position(HEADER_SIZE + (int) align(program.size()));
+                out.asLongBuffer().put(vm.stack, 0, vm.sp);
+                out.position(out.position() + vm.sp * Long.BYTES);
+                out.asIntBuffer().put(vm.returnStack, 0, vm.rsp);
+                out.position(out.position() + (int) align((long) vm.rsp * Integer.BYTES));
+                if (heap != null) {
+                    heap.writeTo(out);
+                }
+                out.force();
+            }
+            Files.move(temporary, image, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new UncheckedIOException("could not write image " + image + ". Cause: " + e.getMessage(), e);
+        }
+    }
+
+    static VirtualMachine read(String image, Parameters parameters) {
+        ByteBuffer content;
+        try (FileChannel channel = FileChannel.open(Path.of(image), StandardOpenOption.READ)) {
+            content = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException e) {
+            throw new UncheckedIOException("could not load image " + image + ". Cause: " + e.getMessage(), e);
+        }
+        try {
+            return read(content.order(ByteOrder.BIG_ENDIAN), image, parameters);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new InvalidProgramException(image + " is truncated", e);
+        }
+    }
+
+    private static VirtualMachine read(ByteBuffer in, String image, Parameters parameters) {
+        if (in.remaining() < HEADER_SIZE || in.getShort() != MAGIC_BYTES) {
+            throw new InvalidProgramException(image + " is not a livm image");
+        }
+        int version = in.getShort();
+        if (version != VERSION) {
+            throw new InvalidProgramException(image + " is an image of unsupported version " + version);
+        }
+        int flags = in.getInt();
+        int ip = in.getInt();
+        int sp = in.getInt();
+        int rsp = in.getInt();
+        int fp = in.getInt();
+        long retired = in.getLong();
+        int programLength = in.getInt();
+        in.getInt();
+        if (programLength < 0 || programLength > in.remaining()) {
+            throw new InvalidProgramException(image + " is truncated");
+        }
+        Program program = Program.deserialize(in.slice(HEADER_SIZE, programLength), image);
+        // the instruction before ip is the snapshot which took the image
+        if (ip <= 0 || ip > program.size() || program.opcodes()[ip - 1] != Opcodes.SNAPSHOT) {
+            throw new InvalidProgramException(image + " does not stop after a snapshot, at ip=" + ip);
+        }
+        if (sp < 0 || sp > parameters.maxStackSize || rsp < 0 || rsp > parameters.maxReturnStackSize) {
+            throw new InvalidProgramException(String.format("the stacks of %s, %d values and %d calls, do not fit in "
+                    + "the maximum of %d and %d", image, sp, rsp, parameters.maxStackSize, parameters.maxReturnStackSize));
+        }
+        if (fp < 0 || fp > sp) {
+            throw new InvalidProgramException(image + " has a frame pointer out of the stack, fp=" + fp);
+        }
+        in.position(HEADER_SIZE + (int) align(programLength));
+
+        VirtualMachine vm = new VirtualMachine(program, parameters);
+        long[] stack = new long[Math.max(sp, vm.stack.length)];
+        in.asLongBuffer().get(stack, 0, sp);
+        in.position(in.position() + sp * Long.BYTES);
+        int[] returnStack = new int[Math.max(rsp, vm.returnStack.length)];
+        in.asIntBuffer().get(returnStack, 0, rsp);
+        in.position(in.position() + (int) align((long) rsp * Integer.BYTES));
+        Heap heap = null;
+        if ((flags & HAS_HEAP) != 0) {
+            try {
+                heap = Heap.readFrom(in, parameters.maxHeapSize);
+            } catch (InvalidProgramException e) {
+                throw new InvalidProgramException(image + ": " + e.getMessage(), e);
+            }
+        }
+        vm.restore(ip, stack, sp, returnStack, rsp, fp, retired, heap);
+        return vm;
+    }
+
+    private static long align(long size) {
+        return (size + Long.BYTES - 1) & -Long.BYTES;
+    }
+}
@@ -22,9 +22,47 @@ public class Instruction {
         CALL("CALL", 1),
         RET("RET", 0),
         DUMP("DUMP", 0),
-        PRINT("PRINT", 0)
+        PRINT("PRINT", 0),
+
+        // superinstructions, fusing common pairs of instructions (see Superinstructions)
+        JEQ("JEQ", 1),           // eq; jnz addr
+        ADDI("ADDI", 1),         // push k; add
+        DUP2("DUP2", 0),         // dup 1; dup 1
+        TAILCALL("TAILCALL", 1), // call addr; ret
+
+        FREE("FREE", 0),
+        NEW("NEW", 1),
+        STORE("STORE", 0),
+        NIL("NIL", 0),
+        SYM("SYM", 1),
+        TAG("TAG", 0),
+        BREAK("BREAK", 0),       // raises a BREAKPOINT trap, patched in the code by the Debugger
+
+        // call frames
+        ENTER("ENTER", 1),        // the n values on top of the stack become the locals of a new frame
+        LOAD_LOCAL("LLOAD", 1),   // pushes the local n of the frame
+        STORE_LOCAL("LSTORE", 1), // pops the top of the stack into the local n of the frame
+
+        SNAPSHOT("SNAPSHOT", 0),  // saves the state of the machine to an image and halts, see ImageFile
+
+        // tasks, see Scheduler
+        SPAWN("SPAWN", 1),        // starts a task at addr, the value on top of the stack moved to its stack
+        YIELD("YIELD", 0),        // ends the time slice of the task
+
+        // channels between tasks, see Channel
+        CHAN("CHAN", 1),          // pushes a new channel of capacity n
+        SEND("SEND", 0),          // sends the value on top of the stack to the channel under it
+        RECV("RECV", 0),          // replaces the channel on top of the stack by a value received from it
+        TRYRECV("TRYRECV", 0),    // recv without blocking, pushes 1 if a value was received, else nil and 0
+
+        // bulk memory, n words with a single bounds check
+        MEMCPY("MEMCPY", 0),      // dst, src, n: copies n words from src, or n bytes of the data section, to dst
+        MEMSET("MEMSET", 0),      // dst, value, n: sets n words from dst to value
+        MEMCMP("MEMCMP", 0)       // a, b, n: pushes -1, 0 or 1, comparing n words at a to n words at b
         ;
 
+        private static final Type[] VALUES = values();
+
         public final String asm;
         public final int operandCount;
 
@@ -34,12 +72,18 @@ public class Instruction {
         }
 
         public static Type fromByte(byte b) {
-            for (Type type: Type.values()) {
-                if (((byte) type.ordinal()) == b) {
-                    return type;
-                }
+            return fromOpcode(b & 0xFF);
+        }
+
+        public static Type fromOpcode(int opcode) {
+            if (opcode < 0 || opcode >= VALUES.length) {
+                throw new RuntimeException(opcode + " is not a valid Instruction byte.");
             }
-            throw new RuntimeException(b + " is not a valid Instruction byte.");
+            return VALUES[opcode];
+        }
+
+        public int opcode() {
+            return this.ordinal();
         }
 
         public byte asByte() {
@@ -52,8 +96,9 @@ public class Instruction {
         }
     }
 
-    public Instruction.Type type;
-    public Word operand;
+    // instructions are immutable, the same instance can be shared by many programms
+    public final Instruction.Type type;
+    public final Word operand;
 
     public Instruction(Type type, Word word) {
         this.type = type;
@@ -76,18 +121,32 @@ public class Instruction {
         return String.format("%s%s", type.asm, operand == null ? "" : " " + operand.word());
     }
 
-    public static Instruction INSTR_NOP   = new Instruction(Type.NOP);
-    public static Instruction INSTR_PRINT = new Instruction(Type.PRINT);
-    public static Instruction INSTR_DUMP  = new Instruction(Type.DUMP);
-    public static Instruction INSTR_ADD   = new Instruction(Type.ADD);
-    public static Instruction INSTR_SUB   = new Instruction(Type.SUB);
-    public static Instruction INSTR_MUL   = new Instruction(Type.MUL);
-    public static Instruction INSTR_DIV   = new Instruction(Type.DIV);
-    public static Instruction INSTR_EQ    = new Instruction(Type.EQ);
-    public static Instruction INSTR_RET   = new Instruction(Type.RET);
-    public static Instruction INSTR_HALT  = new Instruction(Type.HALT);
-    public static Instruction INSTR_READ  = new Instruction(Type.READ);
-    public static Instruction INSTR_DUP   = new Instruction(Type.DUP, new Word(0));
+    public static final Instruction INSTR_NOP   = new Instruction(Type.NOP);
+    public static final Instruction INSTR_PRINT = new Instruction(Type.PRINT);
+    public static final Instruction INSTR_DUMP  = new Instruction(Type.DUMP);
+    public static final Instruction INSTR_ADD   = new Instruction(Type.ADD);
+    public static final Instruction INSTR_SUB   = new Instruction(Type.SUB);
+    public static final Instruction INSTR_MUL   = new Instruction(Type.MUL);
+    public static final Instruction INSTR_DIV   = new Instruction(Type.DIV);
+    public static final Instruction INSTR_EQ    = new Instruction(Type.EQ);
+    public static final Instruction INSTR_RET   = new Instruction(Type.RET);
+    public static final Instruction INSTR_HALT  = new Instruction(Type.HALT);
+    public static final Instruction INSTR_READ  = new Instruction(Type.READ);
+    public static final Instruction INSTR_DUP   = new Instruction(Type.DUP, new Word(0));
+    public static final Instruction INSTR_DUP2  = new Instruction(Type.DUP2);
+    public static final Instruction INSTR_FREE  = new Instruction(Type.FREE);
+    public static final Instruction INSTR_STORE = new Instruction(Type.STORE);
+    public static final Instruction INSTR_NIL   = new Instruction(Type.NIL);
+    public static final Instruction INSTR_TAG   = new Instruction(Type.TAG);
+    public static final Instruction INSTR_BREAK = new Instruction(Type.BREAK);
+    public static final Instruction INSTR_SNAPSHOT = new Instruction(Type.SNAPSHOT);
+    public static final Instruction INSTR_YIELD = new Instruction(Type.YIELD);
+    public static final Instruction INSTR_SEND  = new Instruction(Type.SEND);
+    public static final Instruction INSTR_RECV  = new Instruction(Type.RECV);
+    public static final Instruction INSTR_TRYRECV = new Instruction(Type.TRYRECV);
+    public static final Instruction INSTR_MEMCPY = new Instruction(Type.MEMCPY);
+    public static final Instruction INSTR_MEMSET = new Instruction(Type.MEMSET);
+    public static final Instruction INSTR_MEMCMP = new Instruction(Type.MEMCMP);
 
     public static Instruction INSTR_MEM(Word value) {
         return new Instruction(Type.MEM, value);
@@ -97,6 +156,14 @@ public class Instruction {
         return new Instruction(Type.MOV, value);
     }
 
+    public static Instruction INSTR_NEW(Word slots) {
+        return new Instruction(Type.NEW, slots);
+    }
+
+    public static Instruction INSTR_SYM(Word id) {
+        return new Instruction(Type.SYM, id);
+    }
+
     public static Instruction INSTR_LOAD(Word addr) {
         return new Instruction(Type.LOAD, addr);
     }
@@ -121,4 +188,36 @@ public class Instruction {
         return new Instruction(Type.DUP, operand);
     }
 
+    public static Instruction INSTR_JEQ(Word addr) {
+        return new Instruction(Type.JEQ, addr);
+    }
+
+    public static Instruction INSTR_ADDI(Word operand) {
+        return new Instruction(Type.ADDI, operand);
+    }
+
+    public static Instruction INSTR_TAILCALL(Word addr) {
+        return new Instruction(Type.TAILCALL, addr);
+    }
+
+    public static Instruction INSTR_ENTER(Word locals) {
+        return new Instruction(Type.ENTER, locals);
+    }
+
+    public static Instruction INSTR_LOAD_LOCAL(Word local) {
+        return new Instruction(Type.LOAD_LOCAL, local);
+    }
+
+    public static Instruction INSTR_STORE_LOCAL(Word local) {
+        return new Instruction(Type.STORE_LOCAL, local);
+    }
+
+    public static Instruction INSTR_SPAWN(Word addr) {
+        return new Instruction(Type.SPAWN, addr);
+    }
+
+    public static Instruction INSTR_CHAN(Word capacity) {
+        return new Instruction(Type.CHAN, capacity);
+    }
+
 }
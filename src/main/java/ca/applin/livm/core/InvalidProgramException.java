@@ -0,0 +1,16 @@
+package ca.applin.livm.core;
+
+/**
+ * Thrown when a *.li file cannot be loaded because its content is not a valid programm.
+ */
+public class InvalidProgramException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public InvalidProgramException(String message) {
+        super(message);
+    }
+
+    public InvalidProgramException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
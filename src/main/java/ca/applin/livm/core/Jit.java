@@ -0,0 +1,81 @@
+package ca.applin.livm.core;
+
+import java.lang.invoke.MethodHandles;
+import java.util.Arrays;
+
+/**
+ * Tiered execution support for the {@link VirtualMachine}. The interpreter reports every call target and
+ * backward jump target to {@link #enter(int)}, once an address was reached {@code threshold} times the region
+ * starting there is compiled by the {@link JitCompiler} and the interpreter transfers execution to it, including
+ * in the middle of a running loop.
+ * <p>
+ * The tasks of a programm share its jit (see {@link Scheduler}). Counters and compiled code are updated without
+ * synchronization: a lost increment only delays a compilation, and a region compiled by two tasks at once is
+ * compiled twice. The compiled code has no state, it can run on any thread once published.
+ */
+final class Jit {
+    private static final int FAILED = Integer.MIN_VALUE;
+
+    private final JitCompiler compiler;
+    private final int threshold;
+    private final int[] counters;
+    private final CompiledCode[] compiled;
+    private boolean enabled;
+
+    // runs the code compiled ahead of time from every address, nothing is compiled at run time
+    Jit(Program program, AotCode code) {
+        this.compiler = null;
+        this.threshold = 0;
+        this.counters = null;
+        this.compiled = new CompiledCode[program.size()];
+        Arrays.fill(compiled, code);
+        this.enabled = false;
+    }
+
+    Jit(Program program, int threshold) {
+        this.compiler = new JitCompiler(program, MethodHandles.lookup());
+        this.threshold = threshold;
+        this.counters = new int[program.size()];
+        this.compiled = new CompiledCode[program.size()];
+        this.enabled = true;
+    }
+
+    /**
+     * @return the compiled code to run from addr, or null when the interpreter should keep going.
+     */
+    CompiledCode enter(int addr) {
+        if (addr >= compiled.length) {
+            return null;
+        }
+        CompiledCode code = compiled[addr];
+        if (code != null || !enabled) {
+            return code;
+        }
+        if (++counters[addr] < threshold) {
+            return null;
+        }
+        return compile(addr);
+    }
+
+    private CompiledCode compile(int addr) {
+        JitCompiler.Region region;
+        try {
+            region = compiler.compile(addr);
+        } catch (Throwable t) {
+            // hidden classes are not available everywhere (ie native images), keep interpreting
+            enabled = false;
+            return null;
+        }
+        if (region == null) {
+            counters[addr] = FAILED;
+            return null;
+        }
+        region.entries().stream().forEach(entry -> {
+            if (compiled[entry] == null) {
+                compiled[entry] = region.code();
+            }
+        });
+        compiled[addr] = region.code();
+        return region.code();
+    }
+}
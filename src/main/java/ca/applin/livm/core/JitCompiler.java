@@ -0,0 +1,899 @@
+package ca.applin.livm.core;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodTooLargeException;
+import org.objectweb.asm.MethodVisitor;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.List;
+
+import static org.objectweb.asm.Opcodes.*;
+
+/**
+ * Compiles a hot region of a {@link Program} to a JVM hidden class implementing {@link CompiledCode}, and the
+ * procedures of a programm to the methods of an {@link AotCode} class for the {@link AotCompiler}.
+ * <p>
+ * The region is every instruction reachable from the entry point, following jumps, calls and the return sites of
+ * those calls. Each basic block becomes straight line JVM code and jumps become JVM gotos, so there is no
+ * dispatch left. The stack array, sp and rsp are kept in JVM locals and the sp adjustments of a block are folded
+ * into constant offsets, sp being updated once per block. The block checks once on entry that the stack holds
+ * enough values and has enough room for all of its instructions.
+ * <p>
+ * Instructions the compiled code cannot execute (failed check, instruction not supported by the compiler, jump
+ * outside the region) are not executed: the code stores the registers back in the virtual machine and returns the
+ * address of that instruction, for the interpreter to execute it and raise the trap if needed.
+ */
+final class JitCompiler {
+    // bigger regions could hit the 64KB limit of a JVM method
+    static final int MAX_REGION_SIZE = 1024;
+
+    private static final String VM = "ca/applin/livm/core/VirtualMachine";
+    private static final String COMPILED_CODE = "ca/applin/livm/core/CompiledCode";
+    private static final String CLASS_NAME = "ca/applin/livm/core/JitRegion";
+
+    // local variables of the generated execute method
+    private static final int L_VM = 1,
+                             L_ENTRY = 2,
+                             L_STACK = 3,
+                             L_SP = 4,
+                             L_RSTACK = 5,
+                             L_RSP = 6,
+                             L_RETIRED = 7, // long, takes 2 slots
+                             L_NEXT = 9,
+                             L_A = 10,      // long
+                             L_B = 12,      // long
+                             L_R = 14;      // long
+
+    private final int[] opcodes;
+    private final int[] operands;
+    private final int size;
+    private final int dataSize;
+    private final MethodHandles.Lookup lookup;
+
+    JitCompiler(Program program, MethodHandles.Lookup lookup) {
+        this.opcodes = program.opcodes();
+        this.operands = program.operands();
+        this.size = opcodes.length;
+        this.dataSize = program.dataSection().capacity();
+        this.lookup = lookup;
+    }
+
+    /**
+     * The compiled code and the addresses it can be entered from.
+     */
+    record Region(CompiledCode code, BitSet entries) { }
+
+    /**
+     * @return the compiled region starting at entry, or null if the region is too big to be compiled.
+     */
+    Region compile(int entry) throws ReflectiveOperationException {
+        BitSet region = new BitSet(size);
+        BitSet leaders = new BitSet(size);
+        BitSet returnSites = new BitSet(size);
+        if (!discover(entry, region, leaders, returnSites, MAX_REGION_SIZE, null)) {
+            return null;
+        }
+        byte[] bytes;
+        try {
+            bytes = new RegionEmitter(region, leaders, returnSites, CLASS_NAME, null).emit();
+        } catch (MethodTooLargeException e) {
+            return null;
+        }
+        MethodHandles.Lookup hidden = lookup.defineHiddenClass(bytes, true);
+        try {
+            CompiledCode code = (CompiledCode) hidden.findConstructor(hidden.lookupClass(), MethodType.methodType(void.class))
+                    .invoke();
+            return new Region(code, leaders);
+        } catch (ReflectiveOperationException | RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    /**
+     * Compiles the procedure entered at entry, or the main code for 0, to the method {@link #procedureName(int)} of
+     * the {@link AotCode} class being written to cw. Its code is every instruction reachable from the entry without
+     * following the calls: calls and tail calls to the procedures compiled in the same class call their method.
+     * @param procedures the entries of the procedures compiled in the class
+     * @return the addresses the method can be entered from.
+     */
+    BitSet compileProcedure(ClassWriter cw, String className, int entry, BitSet procedures) {
+        BitSet region = new BitSet(size);
+        BitSet leaders = new BitSet(size);
+        BitSet returnSites = new BitSet(size);
+        discover(entry, region, leaders, returnSites, Integer.MAX_VALUE, procedures);
+        new RegionEmitter(region, leaders, returnSites, className, procedures).emitMethod(cw, procedureName(entry));
+        return leaders;
+    }
+
+    static String procedureName(int entry) {
+        return "p" + entry;
+    }
+
+    // with procedures, calls are only followed to the entry itself, a recursion
+    private boolean discover(int entry, BitSet region, BitSet leaders, BitSet returnSites, int maxSize,
+                             BitSet procedures) {
+        Deque<Integer> work = new ArrayDeque<>();
+        leaders.set(entry);
+        work.push(entry);
+        while (!work.isEmpty()) {
+            int ip = work.pop();
+            if (ip < 0 || ip >= size || region.get(ip)) {
+                continue;
+            }
+            region.set(ip);
+            if (region.cardinality() > maxSize) {
+                return false;
+            }
+            int target = operands[ip];
+            boolean followed = procedures == null || target == entry;
+            switch (opcodes[ip]) {
+                case Opcodes.JMP -> addTarget(target, leaders, work);
+                case Opcodes.TAILCALL -> {
+                    if (followed) {
+                        addTarget(target, leaders, work);
+                    }
+                }
+                case Opcodes.JNZ, Opcodes.JEQ -> {
+                    addTarget(target, leaders, work);
+                    addTarget(ip + 1, leaders, work);
+                }
+                case Opcodes.CALL -> {
+                    if (followed) {
+                        addTarget(target, leaders, work);
+                    }
+                    if (!isTailCall(ip)) {
+                        addTarget(ip + 1, leaders, work);
+                        if (ip + 1 < size) {
+                            returnSites.set(ip + 1);
+                        }
+                    }
+                }
+                case Opcodes.RET, Opcodes.HALT -> { }
+                default -> {
+                    if (isSupported(opcodes[ip]) && !isLoadOutOfData(ip)) {
+                        work.push(ip + 1);
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    // call x; ret runs as tailcall x, see VirtualMachine
+    private boolean isTailCall(int ip) {
+        return ip + 1 < size && opcodes[ip + 1] == Opcodes.RET;
+    }
+
+    private void addTarget(int target, BitSet leaders, Deque<Integer> work) {
+        if (target >= 0 && target < size) {
+            leaders.set(target);
+            work.push(target);
+        }
+    }
+
+    private static boolean isSupported(int opcode) {
+        return switch (opcode) {
+            case Opcodes.NOP, Opcodes.HALT, Opcodes.PUSH, Opcodes.LOAD, Opcodes.ADD, Opcodes.SUB, Opcodes.MUL,
+                    Opcodes.DIV, Opcodes.DUP, Opcodes.EQ, Opcodes.JMP, Opcodes.JNZ, Opcodes.CALL, Opcodes.RET,
+                    Opcodes.PRINT, Opcodes.JEQ, Opcodes.ADDI, Opcodes.DUP2, Opcodes.TAILCALL -> true;
+            default -> false;
+        };
+    }
+
+    // a load the interpreter traps on, unverified programs are compiled too
+    private boolean isLoadOutOfData(int ip) {
+        return opcodes[ip] == Opcodes.LOAD && (operands[ip] < 0 || operands[ip] > dataSize - Integer.BYTES);
+    }
+
+    private boolean isTerminator(int ip) {
+        return switch (opcodes[ip]) {
+            case Opcodes.JMP, Opcodes.JNZ, Opcodes.CALL, Opcodes.RET, Opcodes.HALT, Opcodes.JEQ, Opcodes.TAILCALL -> true;
+            default -> !isSupported(opcodes[ip]) || isLoadOutOfData(ip);
+        };
+    }
+
+    private class RegionEmitter {
+        private final BitSet region;
+        private final BitSet leaders;
+        private final BitSet returnSites;
+        private final String className;
+        // entries of the procedures compiled to methods of the same AotCode class, null for the jit
+        private final BitSet procedures;
+        private final Label[] labels;
+        private final Label exit = new Label();
+        private final List<Runnable> stubs = new ArrayList<>();
+        private MethodVisitor mv;
+
+        // sp offset not yet applied to the sp local, and instructions executed but not yet added to retired
+        private int pendingSp;
+        private int pendingRetired;
+
+        RegionEmitter(BitSet region, BitSet leaders, BitSet returnSites, String className, BitSet procedures) {
+            this.region = region;
+            this.leaders = leaders;
+            this.returnSites = returnSites;
+            this.className = className;
+            this.procedures = procedures;
+            this.labels = new Label[size];
+            leaders.stream().forEach(ip -> labels[ip] = new Label());
+        }
+
+        byte[] emit() {
+            ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES) {
+                @Override
+                protected String getCommonSuperClass(String type1, String type2) {
+                    return "java/lang/Object";
+                }
+            };
+            cw.visit(V17, ACC_FINAL | ACC_SUPER, className, null, "java/lang/Object", new String[] { COMPILED_CODE });
+
+            MethodVisitor init = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+            init.visitCode();
+            init.visitVarInsn(ALOAD, 0);
+            init.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+            init.visitInsn(RETURN);
+            init.visitMaxs(0, 0);
+            init.visitEnd();
+
+            emitMethod(cw, "execute");
+            cw.visitEnd();
+            return cw.toByteArray();
+        }
+
+        // the method running the region, with the signature of CompiledCode.execute
+        void emitMethod(ClassWriter cw, String name) {
+            mv = cw.visitMethod(ACC_PUBLIC, name, "(L" + VM + ";I)I", null, null);
+            mv.visitCode();
+            emitPrologue();
+            int previous = -1;
+            for (int ip = region.nextSetBit(0); ip >= 0; ip = region.nextSetBit(ip + 1)) {
+                if (leaders.get(ip)) {
+                    if (previous >= 0 && previous == ip - 1 && !isTerminator(previous)) {
+                        materialize();
+                    }
+                    mv.visitLabel(labels[ip]);
+                    emitBlockGuard(ip);
+                }
+                emitInstruction(ip);
+                if (!isTerminator(ip) && ip + 1 == size) {
+                    exitTo(size);
+                }
+                previous = ip;
+            }
+            stubs.forEach(Runnable::run);
+            emitEpilogue();
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+
+        private void emitPrologue() {
+            loadRegisters();
+
+            // entry points, any other address goes back to the interpreter
+            int[] keys = leaders.stream().toArray();
+            Label[] targets = new Label[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                targets[i] = labels[keys[i]];
+            }
+            Label unknownEntry = new Label();
+            mv.visitVarInsn(ILOAD, L_ENTRY);
+            mv.visitLookupSwitchInsn(unknownEntry, keys, targets);
+            mv.visitLabel(unknownEntry);
+            mv.visitVarInsn(ILOAD, L_ENTRY);
+            mv.visitVarInsn(ISTORE, L_NEXT);
+            mv.visitJumpInsn(GOTO, exit);
+        }
+
+        private void emitEpilogue() {
+            mv.visitLabel(exit);
+            storeRegisters();
+            mv.visitVarInsn(ILOAD, L_NEXT);
+            mv.visitInsn(IRETURN);
+        }
+
+        private void loadRegisters() {
+            mv.visitVarInsn(ALOAD, L_VM);
+            mv.visitFieldInsn(GETFIELD, VM, "stack", "[J");
+            mv.visitVarInsn(ASTORE, L_STACK);
+            mv.visitVarInsn(ALOAD, L_VM);
+            mv.visitFieldInsn(GETFIELD, VM, "sp", "I");
+            mv.visitVarInsn(ISTORE, L_SP);
+            mv.visitVarInsn(ALOAD, L_VM);
+            mv.visitFieldInsn(GETFIELD, VM, "returnStack", "[I");
+            mv.visitVarInsn(ASTORE, L_RSTACK);
+            mv.visitVarInsn(ALOAD, L_VM);
+            mv.visitFieldInsn(GETFIELD, VM, "rsp", "I");
+            mv.visitVarInsn(ISTORE, L_RSP);
+            mv.visitVarInsn(ALOAD, L_VM);
+            mv.visitFieldInsn(GETFIELD, VM, "retired", "J");
+            mv.visitVarInsn(LSTORE, L_RETIRED);
+        }
+
+        private void storeRegisters() {
+            mv.visitVarInsn(ALOAD, L_VM);
+            mv.visitVarInsn(ILOAD, L_SP);
+            mv.visitFieldInsn(PUTFIELD, VM, "sp", "I");
+            mv.visitVarInsn(ALOAD, L_VM);
+            mv.visitVarInsn(ILOAD, L_RSP);
+            mv.visitFieldInsn(PUTFIELD, VM, "rsp", "I");
+            mv.visitVarInsn(ALOAD, L_VM);
+            mv.visitVarInsn(LLOAD, L_RETIRED);
+            mv.visitFieldInsn(PUTFIELD, VM, "retired", "J");
+        }
+
+        /**
+         * Checks on block entry that the stack holds enough values and has enough free slots for every
+         * instruction of the block, otherwise the interpreter executes the block.
+         */
+        private void emitBlockGuard(int start) {
+            int depth = 0, needed = 0, growth = 0;
+            for (int ip = start; ip < size && region.get(ip); ip++) {
+                if (ip != start && leaders.get(ip)) {
+                    break;
+                }
+                int required = switch (opcodes[ip]) {
+                    case Opcodes.DUP -> operands[ip] + 1;
+                    case Opcodes.ADD, Opcodes.SUB, Opcodes.MUL, Opcodes.DIV, Opcodes.EQ, Opcodes.JEQ, Opcodes.DUP2 -> 2;
+                    case Opcodes.PRINT, Opcodes.JNZ, Opcodes.ADDI -> 1;
+                    default -> 0;
+                };
+                needed = Math.max(needed, required - depth);
+                depth += stackEffect(opcodes[ip]);
+                growth = Math.max(growth, depth);
+                if (isTerminator(ip)) {
+                    break;
+                }
+            }
+            Label bail = deoptStub(start);
+            if (needed > 0) {
+                mv.visitVarInsn(ILOAD, L_SP);
+                pushInt(needed);
+                mv.visitJumpInsn(IF_ICMPLT, bail);
+            }
+            if (growth > 0) {
+                mv.visitVarInsn(ALOAD, L_STACK);
+                mv.visitInsn(ARRAYLENGTH);
+                mv.visitVarInsn(ILOAD, L_SP);
+                mv.visitInsn(ISUB);
+                pushInt(growth);
+                mv.visitJumpInsn(IF_ICMPLT, bail);
+            }
+        }
+
+        private int stackEffect(int opcode) {
+            return switch (opcode) {
+                case Opcodes.PUSH, Opcodes.LOAD, Opcodes.DUP -> 1;
+                case Opcodes.DUP2 -> 2;
+                case Opcodes.ADD, Opcodes.SUB, Opcodes.MUL, Opcodes.DIV, Opcodes.EQ, Opcodes.PRINT, Opcodes.JNZ -> -1;
+                case Opcodes.JEQ -> -2;
+                default -> 0;
+            };
+        }
+
+        private void emitInstruction(int ip) {
+            int operand = operands[ip];
+            switch (opcodes[ip]) {
+                case Opcodes.NOP -> pendingRetired++;
+
+                case Opcodes.PUSH -> {
+                    mv.visitVarInsn(ALOAD, L_STACK);
+                    pushIndex(0);
+                    pushLong(Value.fromInt(operand));
+                    mv.visitInsn(LASTORE);
+                    pendingSp++;
+                    pendingRetired++;
+                }
+
+                case Opcodes.LOAD -> {
+                    // the interpreter raises the ILLEGAL_MEMORY_ACCESS
+                    if (isLoadOutOfData(ip)) {
+                        exitTo(ip);
+                        return;
+                    }
+                    mv.visitVarInsn(ALOAD, L_STACK);
+                    pushIndex(0);
+                    mv.visitVarInsn(ALOAD, L_VM);
+                    pushInt(operand);
+                    mv.visitMethodInsn(INVOKEVIRTUAL, VM, "load", "(I)I", false);
+                    mv.visitInsn(I2L);
+                    mv.visitInsn(ICONST_1);
+                    mv.visitInsn(LSHL);
+                    mv.visitInsn(LASTORE);
+                    pendingSp++;
+                    pendingRetired++;
+                }
+
+                case Opcodes.DUP -> {
+                    mv.visitVarInsn(ALOAD, L_STACK);
+                    pushIndex(0);
+                    mv.visitVarInsn(ALOAD, L_STACK);
+                    pushIndex(-1 - operand);
+                    mv.visitInsn(LALOAD);
+                    mv.visitInsn(LASTORE);
+                    pendingSp++;
+                    pendingRetired++;
+                }
+
+                // ints only, the interpreter handles pointer arithmetic and type errors
+                case Opcodes.ADD -> {
+                    loadOperands();
+                    checkInts(ip);
+                    mv.visitVarInsn(LLOAD, L_A);
+                    mv.visitVarInsn(LLOAD, L_B);
+                    mv.visitInsn(LADD);
+                    mv.visitVarInsn(LSTORE, L_R);
+                    checkOverflow(ip);
+                    mv.visitVarInsn(ALOAD, L_STACK);
+                    pushIndex(-2);
+                    mv.visitVarInsn(LLOAD, L_R);
+                    mv.visitInsn(LASTORE);
+                    pendingSp--;
+                    pendingRetired++;
+                }
+
+                case Opcodes.ADDI -> {
+                    mv.visitVarInsn(ALOAD, L_STACK);
+                    pushIndex(-1);
+                    mv.visitInsn(LALOAD);
+                    mv.visitVarInsn(LSTORE, L_B);
+                    mv.visitVarInsn(LLOAD, L_B);
+                    mv.visitInsn(L2I);
+                    mv.visitInsn(ICONST_1);
+                    mv.visitInsn(IAND);
+                    mv.visitJumpInsn(IFNE, deoptStub(ip));
+                    mv.visitVarInsn(LLOAD, L_B);
+                    pushLong(Value.fromInt(operand));
+                    mv.visitInsn(LADD);
+                    mv.visitVarInsn(LSTORE, L_R);
+                    checkOverflow(ip);
+                    mv.visitVarInsn(ALOAD, L_STACK);
+                    pushIndex(-1);
+                    mv.visitVarInsn(LLOAD, L_R);
+                    mv.visitInsn(LASTORE);
+                    pendingRetired++;
+                }
+
+                case Opcodes.DUP2 -> {
+                    mv.visitVarInsn(ALOAD, L_STACK);
+                    pushIndex(0);
+                    mv.visitVarInsn(ALOAD, L_STACK);
+                    pushIndex(-2);
+                    mv.visitInsn(LALOAD);
+                    mv.visitInsn(LASTORE);
+                    mv.visitVarInsn(ALOAD, L_STACK);
+                    pushIndex(1);
+                    mv.visitVarInsn(ALOAD, L_STACK);
+                    pushIndex(-1);
+                    mv.visitInsn(LALOAD);
+                    mv.visitInsn(LASTORE);
+                    pendingSp += 2;
+                    pendingRetired++;
+                }
+
+                // computed on the untagged ints, wrapping like the interpreter
+                case Opcodes.SUB, Opcodes.MUL -> {
+                    loadOperands();
+                    checkInts(ip);
+                    mv.visitVarInsn(ALOAD, L_STACK);
+                    pushIndex(-2);
+                    untag(L_A);
+                    untag(L_B);
+                    mv.visitInsn(opcodes[ip] == Opcodes.SUB ? ISUB : IMUL);
+                    tag();
+                    mv.visitInsn(LASTORE);
+                    pendingSp--;
+                    pendingRetired++;
+                }
+
+                case Opcodes.DIV -> {
+                    loadOperands();
+                    checkInts(ip);
+                    mv.visitVarInsn(LLOAD, L_B);
+                    mv.visitInsn(LCONST_0);
+                    mv.visitInsn(LCMP);
+                    mv.visitJumpInsn(IFEQ, deoptStub(ip));
+                    mv.visitVarInsn(ALOAD, L_STACK);
+                    pushIndex(-2);
+                    untag(L_A);
+                    untag(L_B);
+                    mv.visitInsn(IDIV);
+                    tag();
+                    mv.visitInsn(LASTORE);
+                    pendingSp--;
+                    pendingRetired++;
+                }
+
+                case Opcodes.EQ -> {
+                    loadOperands();
+                    Label notEqual = new Label();
+                    Label done = new Label();
+                    mv.visitVarInsn(ALOAD, L_STACK);
+                    pushIndex(-2);
+                    mv.visitVarInsn(LLOAD, L_A);
+                    mv.visitVarInsn(LLOAD, L_B);
+                    mv.visitInsn(LCMP);
+                    mv.visitJumpInsn(IFNE, notEqual);
+                    pushLong(Value.TRUE);
+                    mv.visitJumpInsn(GOTO, done);
+                    mv.visitLabel(notEqual);
+                    pushLong(Value.FALSE);
+                    mv.visitLabel(done);
+                    mv.visitInsn(LASTORE);
+                    pendingSp--;
+                    pendingRetired++;
+                }
+
+                case Opcodes.PRINT -> {
+                    mv.visitVarInsn(ALOAD, L_VM);
+                    mv.visitVarInsn(ALOAD, L_STACK);
+                    pushIndex(-1);
+                    mv.visitInsn(LALOAD);
+                    mv.visitMethodInsn(INVOKEVIRTUAL, VM, "print", "(J)V", false);
+                    pendingSp--;
+                    pendingRetired++;
+                }
+
+                case Opcodes.JMP -> {
+                    if (!isValidTarget(operand)) {
+                        exitTo(ip);
+                        return;
+                    }
+                    pendingRetired++;
+                    jumpTo(operand);
+                }
+
+                // frames are left by the interpreter
+                case Opcodes.TAILCALL -> {
+                    if (!isValidTarget(operand)) {
+                        exitTo(ip);
+                        return;
+                    }
+                    Label noFrame = new Label();
+                    mv.visitVarInsn(ILOAD, L_RSP);
+                    mv.visitJumpInsn(IFLE, noFrame);
+                    emitFrameGuard(ip);
+                    mv.visitLabel(noFrame);
+                    tailCallTo(ip, operand);
+                }
+
+                case Opcodes.JNZ -> {
+                    if (!isValidTarget(operand)) {
+                        exitTo(ip);
+                        return;
+                    }
+                    mv.visitVarInsn(ALOAD, L_STACK);
+                    pushIndex(-1);
+                    mv.visitInsn(LALOAD);
+                    mv.visitVarInsn(LSTORE, L_A);
+                    pendingSp--;
+                    pendingRetired++;
+                    materialize();
+                    // jumps unless the value is 0 or nil
+                    Label notTaken = new Label();
+                    mv.visitVarInsn(LLOAD, L_A);
+                    mv.visitInsn(LCONST_0);
+                    mv.visitInsn(LCMP);
+                    mv.visitJumpInsn(IFEQ, notTaken);
+                    mv.visitVarInsn(LLOAD, L_A);
+                    pushLong(Value.NIL);
+                    mv.visitInsn(LCMP);
+                    mv.visitJumpInsn(IFNE, region.get(operand) ? labels[operand] : exitStub(operand));
+                    mv.visitLabel(notTaken);
+                    if (ip + 1 == size) {
+                        exitTo(size);
+                    }
+                }
+
+                case Opcodes.JEQ -> {
+                    if (!isValidTarget(operand)) {
+                        exitTo(ip);
+                        return;
+                    }
+                    loadOperands();
+                    pendingSp -= 2;
+                    pendingRetired++;
+                    materialize();
+                    mv.visitVarInsn(LLOAD, L_A);
+                    mv.visitVarInsn(LLOAD, L_B);
+                    mv.visitInsn(LCMP);
+                    mv.visitJumpInsn(IFEQ, region.get(operand) ? labels[operand] : exitStub(operand));
+                    if (ip + 1 == size) {
+                        exitTo(size);
+                    }
+                }
+
+                case Opcodes.CALL -> {
+                    if (!isValidTarget(operand)) {
+                        exitTo(ip);
+                        return;
+                    }
+                    if (isTailCall(ip)) {
+                        // a plain call in the main code, done by the interpreter
+                        mv.visitVarInsn(ILOAD, L_RSP);
+                        mv.visitJumpInsn(IFLE, deoptStub(ip));
+                        emitFrameGuard(ip);
+                        tailCallTo(ip, operand);
+                        return;
+                    }
+                    mv.visitVarInsn(ILOAD, L_RSP);
+                    mv.visitVarInsn(ALOAD, L_RSTACK);
+                    mv.visitInsn(ARRAYLENGTH);
+                    mv.visitJumpInsn(IF_ICMPGE, deoptStub(ip));
+                    boolean invoked = isInvoked(operand);
+                    if (invoked) {
+                        emitDepthGuard(ip);
+                    }
+                    mv.visitVarInsn(ALOAD, L_RSTACK);
+                    mv.visitVarInsn(ILOAD, L_RSP);
+                    pushInt(ip);
+                    mv.visitInsn(IASTORE);
+                    mv.visitIincInsn(L_RSP, 1);
+                    pendingRetired++;
+                    if (invoked) {
+                        invoke(operand, ip + 1);
+                    } else {
+                        jumpTo(operand);
+                    }
+                }
+
+                case Opcodes.RET -> {
+                    mv.visitVarInsn(ILOAD, L_RSP);
+                    mv.visitJumpInsn(IFLE, deoptStub(ip));
+                    emitFrameGuard(ip);
+                    mv.visitIincInsn(L_RSP, -1);
+                    mv.visitVarInsn(ALOAD, L_RSTACK);
+                    mv.visitVarInsn(ILOAD, L_RSP);
+                    mv.visitInsn(IALOAD);
+                    mv.visitInsn(ICONST_1);
+                    mv.visitInsn(IADD);
+                    mv.visitVarInsn(ISTORE, L_NEXT);
+                    pendingRetired++;
+                    materialize();
+                    int[] keys = returnSites.stream().toArray();
+                    if (keys.length == 0) {
+                        mv.visitJumpInsn(GOTO, exit);
+                    } else {
+                        Label[] targets = new Label[keys.length];
+                        for (int i = 0; i < keys.length; i++) {
+                            targets[i] = labels[keys[i]];
+                        }
+                        mv.visitVarInsn(ILOAD, L_NEXT);
+                        mv.visitLookupSwitchInsn(exit, keys, targets);
+                    }
+                }
+
+                case Opcodes.HALT -> {
+                    mv.visitVarInsn(ALOAD, L_VM);
+                    mv.visitInsn(ICONST_1);
+                    mv.visitFieldInsn(PUTFIELD, VM, "halt", "Z");
+                    pendingRetired++;
+                    exitTo(ip);
+                }
+
+                // not compiled, executed by the interpreter
+                default -> exitTo(ip);
+            }
+        }
+
+        // the tail call at ip, once the checks of the return stack are done
+        private void tailCallTo(int ip, int target) {
+            if (isInvoked(target)) {
+                emitDepthGuard(ip);
+                pendingRetired++;
+                invoke(target, -1);
+            } else {
+                pendingRetired++;
+                jumpTo(target);
+            }
+        }
+
+        // true if target is run by calling the method of its procedure, with the aot
+        private boolean isInvoked(int target) {
+            return procedures != null && target >= 0 && target < size && !region.get(target) && procedures.get(target);
+        }
+
+        // goes back to the interpreter at ip when the compiled procedures already take AotCode.MAX_DEPTH JVM frames
+        private void emitDepthGuard(int ip) {
+            mv.visitVarInsn(ALOAD, L_VM);
+            mv.visitFieldInsn(GETFIELD, VM, "compiledDepth", "I");
+            pushInt(AotCode.MAX_DEPTH);
+            mv.visitJumpInsn(IF_ICMPGE, deoptStub(ip));
+        }
+
+        /**
+         * Runs the procedure at target with the method compiled for it, the registers going through the virtual
+         * machine. The method returns where it stopped: at the return site of the call, the code continues here,
+         * anywhere else (trap, unsupported instruction, return to another caller, halt), this method stops there too.
+         * @param returnSite address following the call, -1 for a tail call
+         */
+        private void invoke(int target, int returnSite) {
+            materialize();
+            storeRegisters();
+            addDepth(1);
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitVarInsn(ALOAD, L_VM);
+            pushInt(target);
+            mv.visitMethodInsn(INVOKEVIRTUAL, className, procedureName(target), "(L" + VM + ";I)I", false);
+            mv.visitVarInsn(ISTORE, L_NEXT);
+            addDepth(-1);
+            loadRegisters();
+            if (returnSite < 0 || returnSite >= size || !region.get(returnSite)) {
+                mv.visitJumpInsn(GOTO, exit);
+                return;
+            }
+            mv.visitVarInsn(ALOAD, L_VM);
+            mv.visitFieldInsn(GETFIELD, VM, "halt", "Z");
+            mv.visitJumpInsn(IFNE, exit);
+            mv.visitVarInsn(ILOAD, L_NEXT);
+            pushInt(returnSite);
+            mv.visitJumpInsn(IF_ICMPNE, exit);
+            mv.visitJumpInsn(GOTO, labels[returnSite]);
+        }
+
+        private void addDepth(int delta) {
+            mv.visitVarInsn(ALOAD, L_VM);
+            mv.visitInsn(DUP);
+            mv.visitFieldInsn(GETFIELD, VM, "compiledDepth", "I");
+            pushInt(delta);
+            mv.visitInsn(IADD);
+            mv.visitFieldInsn(PUTFIELD, VM, "compiledDepth", "I");
+        }
+
+        // goes back to the interpreter at ip when a frame is on top of the return stack, rsp must be positive
+        private void emitFrameGuard(int ip) {
+            mv.visitVarInsn(ALOAD, L_RSTACK);
+            mv.visitVarInsn(ILOAD, L_RSP);
+            mv.visitInsn(ICONST_1);
+            mv.visitInsn(ISUB);
+            mv.visitInsn(IALOAD);
+            mv.visitJumpInsn(IFLT, deoptStub(ip));
+        }
+
+        private boolean isValidTarget(int target) {
+            return target >= 0 && target <= size;
+        }
+
+        // loads the top of the stack in L_A and the value below in L_B
+        private void loadOperands() {
+            mv.visitVarInsn(ALOAD, L_STACK);
+            pushIndex(-1);
+            mv.visitInsn(LALOAD);
+            mv.visitVarInsn(LSTORE, L_A);
+            mv.visitVarInsn(ALOAD, L_STACK);
+            pushIndex(-2);
+            mv.visitInsn(LALOAD);
+            mv.visitVarInsn(LSTORE, L_B);
+        }
+
+        // leaves the instruction at ip to the interpreter unless L_A and L_B are both ints
+        private void checkInts(int ip) {
+            mv.visitVarInsn(LLOAD, L_A);
+            mv.visitVarInsn(LLOAD, L_B);
+            mv.visitInsn(LOR);
+            mv.visitInsn(L2I);
+            mv.visitInsn(ICONST_1);
+            mv.visitInsn(IAND);
+            mv.visitJumpInsn(IFNE, deoptStub(ip));
+        }
+
+        // same test as Value.isOverflow on L_R
+        private void checkOverflow(int ip) {
+            mv.visitVarInsn(LLOAD, L_R);
+            pushInt(32);
+            mv.visitInsn(LSHR);
+            mv.visitVarInsn(LLOAD, L_R);
+            pushInt(63);
+            mv.visitInsn(LSHR);
+            mv.visitInsn(LCMP);
+            mv.visitJumpInsn(IFNE, deoptStub(ip));
+        }
+
+        // pushes the int value of the tagged int in the given local
+        private void untag(int local) {
+            mv.visitVarInsn(LLOAD, local);
+            mv.visitInsn(ICONST_1);
+            mv.visitInsn(LSHR);
+            mv.visitInsn(L2I);
+        }
+
+        // replaces the int on top of the JVM stack by the tagged value
+        private void tag() {
+            mv.visitInsn(I2L);
+            mv.visitInsn(ICONST_1);
+            mv.visitInsn(LSHL);
+        }
+
+        private void pushLong(long value) {
+            if (value == 0 || value == 1) {
+                mv.visitInsn(LCONST_0 + (int) value);
+            } else {
+                mv.visitLdcInsn(value);
+            }
+        }
+
+        // pushes sp + offset on the JVM stack, taking the pending sp offset into account
+        private void pushIndex(int offset) {
+            mv.visitVarInsn(ILOAD, L_SP);
+            int total = pendingSp + offset;
+            if (total != 0) {
+                pushInt(total);
+                mv.visitInsn(IADD);
+            }
+        }
+
+        private void pushInt(int value) {
+            if (value >= -1 && value <= 5) {
+                mv.visitInsn(ICONST_0 + value);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                mv.visitIntInsn(BIPUSH, value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                mv.visitIntInsn(SIPUSH, value);
+            } else {
+                mv.visitLdcInsn(value);
+            }
+        }
+
+        // applies the pending sp offset and retired instructions
+        private void materialize() {
+            emitMaterialize(pendingSp, pendingRetired);
+            pendingSp = 0;
+            pendingRetired = 0;
+        }
+
+        private void emitMaterialize(int spOffset, int retiredCount) {
+            if (spOffset != 0) {
+                mv.visitIincInsn(L_SP, spOffset);
+            }
+            if (retiredCount != 0) {
+                mv.visitVarInsn(LLOAD, L_RETIRED);
+                mv.visitLdcInsn((long) retiredCount);
+                mv.visitInsn(LADD);
+                mv.visitVarInsn(LSTORE, L_RETIRED);
+            }
+        }
+
+        private void jumpTo(int target) {
+            materialize();
+            if (target < size && region.get(target)) {
+                mv.visitJumpInsn(GOTO, labels[target]);
+            } else {
+                exitTo(target);
+            }
+        }
+
+        private void exitTo(int next) {
+            materialize();
+            pushInt(next);
+            mv.visitVarInsn(ISTORE, L_NEXT);
+            mv.visitJumpInsn(GOTO, exit);
+        }
+
+        // exit without executing the instruction at ip, emitted after the code of the region
+        private Label deoptStub(int ip) {
+            Label stub = new Label();
+            int spOffset = pendingSp;
+            int retiredCount = pendingRetired;
+            stubs.add(() -> {
+                mv.visitLabel(stub);
+                emitMaterialize(spOffset, retiredCount);
+                pushInt(ip);
+                mv.visitVarInsn(ISTORE, L_NEXT);
+                mv.visitJumpInsn(GOTO, exit);
+            });
+            return stub;
+        }
+
+        // exit to the given address once the registers are already materialized
+        private Label exitStub(int next) {
+            return deoptStub(next);
+        }
+    }
+}
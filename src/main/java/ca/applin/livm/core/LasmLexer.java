@@ -0,0 +1,188 @@
+package ca.applin.livm.core;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Single pass lexer of the lasm syntax, reading the source in place from a byte buffer, usually a mapped file.
+ * The source is ASCII except in string litterals, whose bytes are taken as is.
+ * <p>
+ * Tokens are not materialized: {@link #next()} returns the kind of the next token and its bytes are found between
+ * {@link #start()} and {@link #end()}. Strings are only built for the tokens that need one, see {@link #text()}.
+ * <ul>
+ *     <li>{@link #WORD}: a run of bytes that are not spaces or quotes, ie {@code push}, {@code .loop:}, {@code 0xFF}</li>
+ *     <li>{@link #STRING}: a litteral between double or single quotes, the quotes are part of the token</li>
+ *     <li>{@link #EOL}: end of a line, comments from {@code ;} to the end of the line are skipped</li>
+ *     <li>{@link #EOF}: end of the source, always preceded by an {@link #EOL}</li>
+ * </ul>
+ */
+final class LasmLexer {
+    static final int WORD = 0,
+                     STRING = 1,
+                     EOL = 2,
+                     EOF = 3;
+
+    private final ByteBuffer source;
+    private final int limit;
+    private int position;
+    private int start;
+    private int end;
+    // line of the current token, starting at 1
+    private int line = 1;
+    private boolean atEol;
+    private boolean eolReturned;
+
+    LasmLexer(ByteBuffer source) {
+        this.source = source;
+        this.limit = source.limit();
+        this.position = source.position();
+    }
+
+    int next() {
+        if (atEol) {
+            atEol = false;
+            line++;
+        }
+        while (position < limit) {
+            byte b = source.get(position);
+            switch (b) {
+                case ' ', '\t', '\r', '\f' -> position++;
+                case '\n' -> {
+                    start = position;
+                    end = ++position;
+                    atEol = true;
+                    return EOL;
+                }
+                case ';' -> {
+                    while (position < limit && source.get(position) != '\n') {
+                        position++;
+                    }
+                }
+                case '"', '\'' -> {
+                    start = position++;
+                    while (position < limit && source.get(position) != b) {
+                        if (source.get(position) == '\n') {
+                            throw new IllegalArgumentException("Unterminated string litteral at line " + line);
+                        }
+                        position++;
+                    }
+                    if (position == limit) {
+                        throw new IllegalArgumentException("Unterminated string litteral at line " + line);
+                    }
+                    end = ++position;
+                    return STRING;
+                }
+                default -> {
+                    start = position;
+                    while (position < limit && !isDelimiter(source.get(position))) {
+                        position++;
+                    }
+                    end = position;
+                    return WORD;
+                }
+            }
+        }
+        start = end = position;
+        // a last line without a line feed still ends with an EOL
+        if (!eolReturned) {
+            eolReturned = true;
+            if (start == 0 || source.get(start - 1) != '\n') {
+                return EOL;
+            }
+        }
+        return EOF;
+    }
+
+    private static boolean isDelimiter(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\f' || b == '\n' || b == '"' || b == '\'' || b == ';';
+    }
+
+    int start() {
+        return start;
+    }
+
+    int end() {
+        return end;
+    }
+
+    int line() {
+        return line;
+    }
+
+    byte byteAt(int offset) {
+        return source.get(offset);
+    }
+
+    boolean startsWith(char c) {
+        return end > start && source.get(start) == c;
+    }
+
+    boolean endsWith(char c) {
+        return end > start && source.get(end - 1) == c;
+    }
+
+    /**
+     * @return the current token as a string.
+     */
+    String text() {
+        return text(start, end);
+    }
+
+    String text(int from, int to) {
+        return new String(bytes(from, to), StandardCharsets.UTF_8);
+    }
+
+    byte[] bytes(int from, int to) {
+        byte[] bytes = new byte[to - from];
+        source.get(from, bytes);
+        return bytes;
+    }
+
+    /**
+     * Parses the token between start and end as an int: decimal or hexadecimal with a {@code 0x} prefix, with an
+     * optional sign and {@code _} separators.
+     * @throws NumberFormatException if the token is not a number or does not fit in an int.
+     */
+    int intValue(int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (source.get(i) == '-' || source.get(i) == '+')) {
+            negative = source.get(i) == '-';
+            i++;
+        }
+        int radix = 10;
+        if (i + 1 < end && source.get(i) == '0' && (source.get(i + 1) == 'x' || source.get(i + 1) == 'X')) {
+            radix = 16;
+            i += 2;
+        }
+        long value = 0;
+        boolean digits = false;
+        for (; i < end; i++) {
+            byte b = source.get(i);
+            if (b == '_') {
+                continue;
+            }
+            int digit = Character.digit(b, radix);
+            if (digit < 0) {
+                throw invalidNumber(start, end);
+            }
+            value = value * radix + digit;
+            if (value > 1L + Integer.MAX_VALUE) {
+                throw invalidNumber(start, end);
+            }
+            digits = true;
+        }
+        if (!digits) {
+            throw invalidNumber(start, end);
+        }
+        value = negative ? -value : value;
+        if (value > Integer.MAX_VALUE) {
+            throw invalidNumber(start, end);
+        }
+        return (int) value;
+    }
+
+    private NumberFormatException invalidNumber(int start, int end) {
+        return new NumberFormatException("For input string: \"" + text(start, end) + "\" at line " + line);
+    }
+}
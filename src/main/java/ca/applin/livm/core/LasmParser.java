@@ -1,278 +1,243 @@
 package ca.applin.livm.core;
 
-import java.io.FileReader;
+import ca.applin.livm.optimizer.Optimizer;
+
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
-import java.util.function.Function;
-import java.util.regex.MatchResult;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import static ca.applin.livm.core.Instruction.*;
-import static ca.applin.livm.core.Instruction.INSTR_HALT;
 
+/**
+ * Assembles lasm source files. The file is mapped and read in a single pass by a {@link LasmLexer}: mnemonics are
+ * looked up and operands parsed straight from the bytes of the file, strings are only built for labels.
+ */
 public class LasmParser {
 
-    public record ResolvableLabel(Instruction instruction, String label, int line) { }
-    record Pair<A, B>(A fst, B snd) { }
+    // the instruction at address uses a label defined later in the file
+    public record ResolvableLabel(int address, Instruction instruction, String label, int line) { }
     public static final String COMMENTS = ";";
 
-    private List<Instruction> instrs = new ArrayList<>();
+    // most operands an instruction can be given, more are only counted for the error message
+    private static final int MAX_OPERANDS = 4;
+    // the str directive is not an instruction
+    private static final int STR_DIRECTIVE = -1;
+    private static final int UNKNOWN = -2;
+
+    // mnemonics packed in a long, one upper case byte per character, sorted for a binary search
+    private static final long[] MNEMONIC_KEYS;
+    private static final int[] MNEMONIC_CODES;
+
+    static {
+        Instruction.Type[] types = Instruction.Type.values();
+        long[][] entries = new long[types.length][];
+        for (Instruction.Type type : types) {
+            entries[type.ordinal()] = new long[] {pack(type.asm), type == Instruction.Type.STR ? STR_DIRECTIVE : type.opcode()};
+        }
+        Arrays.sort(entries, Comparator.comparingLong(entry -> entry[0]));
+        MNEMONIC_KEYS = new long[entries.length];
+        MNEMONIC_CODES = new int[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            MNEMONIC_KEYS[i] = entries[i][0];
+            MNEMONIC_CODES[i] = (int) entries[i][1];
+        }
+    }
+
+    private final List<Instruction> instrs = new ArrayList<>();
     private ByteBuffer dataSection = ByteBuffer.allocate(Program.DEFAULT_DATA_SECTION_SIZE);
 
     private final List<ResolvableLabel> instrWithUnknownLabels = new ArrayList<>();
     private final Map<String, Integer> labels = new HashMap<>();
-    private final List<String> lines = new ArrayList<>();
-    private int lineNum = 1;
+    private final Optimizer optimizer;
+
+    // operands of the current line, as token offsets in the source
+    private final int[] operandStarts = new int[MAX_OPERANDS];
+    private final int[] operandEnds = new int[MAX_OPERANDS];
+    private final int[] operandKinds = new int[MAX_OPERANDS];
+    private int operandCount;
+
+    public LasmParser() {
+        this(Optimizer.forLevel(0));
+    }
+
+    public LasmParser(Optimizer optimizer) {
+        this.optimizer = optimizer;
+    }
 
     public Program fromAsmFile(String filename) {
-        try (FileReader reader = new FileReader(filename); Scanner scanner = new Scanner(reader)) {
-            while (scanner.hasNextLine()) {
-                lines.add(scanner.nextLine());
-            }
+        ByteBuffer source;
+        try (FileChannel channel = FileChannel.open(Path.of(filename), StandardOpenOption.READ)) {
+            source = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
         } catch (IOException ioe) {
             System.err.println("ERROR: Cannot open file " + filename);
             ioe.printStackTrace();
             System.exit(-1);
+            return null;
         }
-        Program program = fromAsmFile(lines, filename);
-        resolveUnknownLabels();
-        return program;
+        return parse(new LasmLexer(source), filename);
     }
 
     private void resolveUnknownLabels() {
         for (ResolvableLabel toResolve: instrWithUnknownLabels) {
-            Instruction instruction = toResolve.instruction;
-            instruction.operand = new Word(labels.get(toResolve.label));
-        }
-        // check if some labels are still unknown
-        for (ResolvableLabel resolved: instrWithUnknownLabels) {
-            if (resolved.instruction.operand.word() == null) {
-                throw new RuntimeException("ERROR: unknown label " + resolved.label + " at libne " + resolved.line);
+            Integer addr = labels.get(toResolve.label);
+            if (addr == null) {
+                throw new RuntimeException("ERROR: unknown label " + toResolve.label + " at libne " + toResolve.line);
             }
+            // instructions are immutable, the resolved one replaces the placeholder
+            instrs.set(toResolve.address, new Instruction(toResolve.instruction.type, new Word(addr)));
         }
     }
 
-    private Program fromAsmFile(List<String> lines, String fileName) {
-        for (String line : lines) {
-            if (line.startsWith(COMMENTS)) {
-                lineNum++;
+    private Program parse(LasmLexer lexer, String fileName) {
+        for (int token = lexer.next(); token != LasmLexer.EOF; token = lexer.next()) {
+            if (token == LasmLexer.EOL) {
                 continue;
             }
-            line = line.trim();
-
-            // split by space, but not in string litterals
-            // @Improvement there might be a better way than regexp...
-            Pattern pattern = Pattern.compile("[^\\s\"']+|\"([^\"]*)\"|'([^']*)'");
-            Matcher matcher = pattern.matcher(line);
-            String[] splits = matcher.results().map(MatchResult::group).toList().toArray(new String[0]);
-            if (splits.length == 0) {
+            int line = lexer.line();
+            if (token == LasmLexer.WORD && lexer.startsWith('.')) {
+                label(lexer, fileName);
                 continue;
             }
-
-            // comments
-            // @Improvement wont work if ; is not at the start of the word
-            for (int i = 0; i < splits.length; i++) {
-                if (splits[i].trim().startsWith(";")) {
-                    String[] newSplits = new String[i];
-                    System.arraycopy(splits, 0, newSplits, 0, i);
-                    splits = newSplits;
-                    break;
-                }
+            if (token != LasmLexer.WORD) {
+                throw new RuntimeException("ERROR: " + lexer.text() + " not supported (" + fileName + ":" + line + ")");
             }
-            if (splits.length == 0) {
-                continue;
-            }
-
-            // labels with nothing ewlse on the line, ie:
-            //    .code:
-            if (splits.length == 1 && splits[0].startsWith(".")) {
-                String label = splits[0];
-                if (label.endsWith(":")) {
-                    label = label.substring(0, label.length() - 1);
+            int code = mnemonic(lexer);
+            int mnemonicStart = lexer.start();
+            int mnemonicEnd = lexer.end();
+            readOperands(lexer);
+            if (code < 0) {
+                String mnemonic = lexer.text(mnemonicStart, mnemonicEnd).toUpperCase();
+                if (code == STR_DIRECTIVE) {
+                    throw new RuntimeException("TODO: STR without label");
                 }
-                labels.putIfAbsent(label, instrs.size());
+                throw new RuntimeException("ERROR: " + mnemonic + " not supported (" + fileName + ":" + line + ")");
             }
+            instruction(Instruction.Type.fromOpcode(code), lexer, fileName, line);
+        }
+        // trim data section
+        ByteBuffer trimmed = ByteBuffer.allocate(dataSection.position());
+        trimmed.put(0, dataSection, 0, dataSection.position());
+        trimmed.position(trimmed.capacity());
+        // labels must be resolved before the program decodes the instructions
+        resolveUnknownLabels();
+        return new Program(optimizer.optimize(instrs), trimmed);
+    }
 
-            // labels withinstruction on the line, ie:
-            //    .data: mem 0xCA 0xFE
-            if (splits.length > 1 && splits[0].startsWith(".")) {
-                String label = splits[0];
-                if (label.endsWith(":")) {
-                    label = label.substring(0, label.length() - 1);
-                }
-                String instr = splits[1];
-                switch (instr.toUpperCase()) {
-                    case "STR" -> {
-                        String data = splits[2];
-                        if (!data.startsWith("\"") && !data.endsWith("\"")) {
-                            System.err.println("ERROR: String litterals must be surrounded with double quotes: [" + line + "]");
-                        }
-                        data = data.substring(1, data.length() - 1);
-                        int addr = putDataSection(data.getBytes());
-                        labels.put(label, addr);
-                    }
-                    case "MEM" -> {
-                        throw new RuntimeException("TODO");
-                    }
-                    default ->
-                            throw new RuntimeException("ERROR: " +
-                                    instr.toUpperCase() + " not supported after label " + label + " [" + line + "]");
+    private void instruction(Instruction.Type type, LasmLexer lexer, String fileName, int line) {
+        switch (type) {
+            // instructions taking an address, given as a number or a label
+            case PUSH, JMP, JNZ, CALL, JEQ, TAILCALL, LOAD, SPAWN -> {
+                assertArgSize(type.asm, 1, fileName, line);
+                if (lexer.byteAt(operandStarts[0]) == '.') {
+                    instWithtLabeledOperand(lexer.text(operandStarts[0], operandEnds[0]), type, line);
+                } else {
+                    instrs.add(new Instruction(type, new Word(operand(lexer, 0))));
                 }
             }
-            switch (splits[0].toUpperCase()) {
-                case "" -> {}
-                case "NOP" -> {
-                    assertArgSize("NOP", 0, splits, fileName, lineNum);
-                    instrs.add(INSTR_NOP);
-                }
-                case "PUSH" -> {
-                    assertArgSize("PUSH", 1, splits, fileName, lineNum);
-                    if (splits[1].startsWith(".")) {
-                        instWithtLabeledOperand(splits[1], Instruction::INSTR_PUSH_INT);
-                    } else {
-                        String litteral = splits[1].replace("_", "");
-                        int value = litteral.startsWith("0x")
-                                ? Integer.parseInt(litteral.substring(2), 16)
-                                : Integer.parseInt(litteral);
-                        instrs.add(INSTR_PUSH_INT(new Word(value)));
-                    }
-                }
-
-                case "ADD" -> {
-                    assertArgSize("ADD", 0, splits, fileName, lineNum);
-                    instrs.add(INSTR_ADD);
-                }
-
-                case "SUB" -> {
-                    assertArgSize("SUB", 0, splits, fileName, lineNum);
-                    instrs.add(INSTR_SUB);
-                }
-
-                case "DIV" -> {
-                    assertArgSize("DIV", 0, splits, fileName, lineNum);
-                    instrs.add(INSTR_DIV);
-                }
-
-                case "MUL" -> {
-                    assertArgSize("MULT", 0, splits, fileName, lineNum);
-                    instrs.add(INSTR_ADD);
-                }
-
-                case "EQ" -> {
-                    assertArgSize("EQ", 0, splits, fileName, lineNum);
-                    instrs.add(INSTR_EQ);
-                }
-
-                case "DUP" -> {
-                    if (splits.length == 1) {
-                        instrs.add(INSTR_DUP(Word.WORD_0));
-                    } else {
-                        assertArgSize("DUP", 1, splits, fileName, lineNum);
-                        instrs.add(INSTR_DUP(new Word(Integer.parseInt(splits[1]))));
-                    }
-                }
-
-                case "JMP" -> {
-                    assertArgSize("JMP", 1, splits, fileName, lineNum);
-                    if (splits[1].startsWith(".")) {
-                        instWithtLabeledOperand(splits[1], Instruction::INSTR_JMP);
-                    } else {
-                        instrs.add(INSTR_JMP(new Word(Integer.parseInt(splits[1]))));
-                    }
+            case DUP -> {
+                if (operandCount == 0) {
+                    instrs.add(INSTR_DUP(Word.WORD_0));
+                } else {
+                    assertArgSize(type.asm, 1, fileName, line);
+                    instrs.add(INSTR_DUP(new Word(operand(lexer, 0))));
                 }
-
-                case "JNZ" -> {
-                    assertArgSize("JNZ", 1, splits, fileName, lineNum);
-                    if (splits[1].startsWith(".")) {
-                        instWithtLabeledOperand(splits[1], Instruction::INSTR_JNZ);
-                    } else {
-                        instrs.add(INSTR_JNZ(new Word(Integer.parseInt(splits[1]))));
-                    }
-                }
-
-                case "CALL" -> {
-                    assertArgSize("CALL", 1, splits, fileName, lineNum);
-                    if (splits[1].startsWith(".")) {
-                        instWithtLabeledOperand(splits[1], Instruction::INSTR_CALL);
-                    } else {
-                        instrs.add(INSTR_CALL(new Word(Integer.parseInt(splits[1]))));
-                    }
-                }
-
-                case "RET" -> {
-                    assertArgSize("RET", 0, splits, fileName, lineNum);
-                    instrs.add(INSTR_RET);
-                }
-
-                case "PRINT" -> {
-                    assertArgSize("PRINT", 0, splits, fileName, lineNum);
-                    instrs.add(INSTR_PRINT);
-                }
-
-                case "DUMP" -> {
-                    assertArgSize("DUMP", 0, splits, fileName, lineNum);
-                    instrs.add(INSTR_DUMP);
-                }
-
-                case "HALT" -> {
-                    assertArgSize("HALT", 0, splits, fileName, lineNum);
-                    instrs.add(INSTR_HALT);
-                }
-
-                case "LOAD" -> {
-                    if (splits[1].startsWith(".")) {
-                        instWithtLabeledOperand(splits[1], Instruction::INSTR_LOAD);
-                    } else {
-                        instrs.add(INSTR_LOAD(new Word(Integer.parseInt(splits[1]))));
-                    }
-                }
-
-                case "MOV" -> {
-                    if (splits[1].startsWith(".")) {
-                        throw new RuntimeException("TODO: MOV with label operand");
-                    }
-                    assertArgSize("MOV", 1, splits, fileName, lineNum);
-                    instrs.add(INSTR_MOV(new Word(Integer.parseInt(splits[1]))));
+            }
+            case MOV -> {
+                if (operandCount > 0 && lexer.byteAt(operandStarts[0]) == '.') {
+                    throw new RuntimeException("TODO: MOV with label operand");
                 }
+                assertArgSize(type.asm, 1, fileName, line);
+                instrs.add(INSTR_MOV(new Word(operand(lexer, 0))));
+            }
+            default -> {
+                assertArgSize(type.asm, type.operandCount(), fileName, line);
+                instrs.add(type.operandCount() == 0
+                        ? new Instruction(type)
+                        : new Instruction(type, new Word(operand(lexer, 0))));
+            }
+        }
+    }
 
-                case "STR" -> {
-                    throw new RuntimeException("TODO: STR without label");
-                }
+    // labels with nothing else on the line, ie:
+    //    .code:
+    // or defining a string litteral in the data section, ie:
+    //    .hello: str "Hello"
+    private void label(LasmLexer lexer, String fileName) {
+        int line = lexer.line();
+        String label = lexer.endsWith(':') ? lexer.text(lexer.start(), lexer.end() - 1) : lexer.text();
+        int token = lexer.next();
+        if (token == LasmLexer.EOL || token == LasmLexer.EOF) {
+            labels.putIfAbsent(label, instrs.size());
+            return;
+        }
+        int code = mnemonic(lexer);
+        String instr = lexer.text().toUpperCase();
+        readOperands(lexer);
+        if (code == STR_DIRECTIVE) {
+            if (operandCount == 0 || operandKinds[0] != LasmLexer.STRING) {
+                throw new RuntimeException("ERROR: " + fileName + ":" + line + " - str requires a string litteral");
+            }
+            if (lexer.byteAt(operandStarts[0]) != '"') {
+                System.err.println("ERROR: String litterals must be surrounded with double quotes: [" + fileName + ":" + line + "]");
+            }
+            // without the quotes
+            labels.put(label, putDataSection(lexer.bytes(operandStarts[0] + 1, operandEnds[0] - 1)));
+        } else if (code == Opcodes.MEM) {
+            throw new RuntimeException("TODO");
+        } else {
+            throw new RuntimeException("ERROR: " + instr + " not supported after label " + label
+                    + " (" + fileName + ":" + line + ")");
+        }
+    }
 
-                case "MEM" -> {
-                    assertArgSize("MEM", 1, splits, fileName, lineNum);
-                    instrs.add(INSTR_MEM(new Word(Integer.parseInt(splits[1]))));
-                }
+    // reads the operands until the end of the line, the lexer is left on the EOL
+    private void readOperands(LasmLexer lexer) {
+        operandCount = 0;
+        for (int token = lexer.next(); token != LasmLexer.EOL && token != LasmLexer.EOF; token = lexer.next()) {
+            if (operandCount < MAX_OPERANDS) {
+                operandStarts[operandCount] = lexer.start();
+                operandEnds[operandCount] = lexer.end();
+                operandKinds[operandCount] = token;
+            }
+            operandCount++;
+        }
+    }
 
-                case "READ" -> {
-                    assertArgSize("READ", 0, splits, fileName, lineNum);
-                    instrs.add(INSTR_READ);
-                }
+    private int operand(LasmLexer lexer, int index) {
+        return lexer.intValue(operandStarts[index], operandEnds[index]);
+    }
 
-                default -> {
-                    if (!splits[0].startsWith(".")) {
-                        throw new RuntimeException("ERROR: " +
-                                splits[0].toUpperCase() + " not supported (" + line + ")");
-                    }
-                }
+    // opcode of the mnemonic of the current token, STR_DIRECTIVE or UNKNOWN
+    private static int mnemonic(LasmLexer lexer) {
+        int length = lexer.end() - lexer.start();
+        if (length > Long.BYTES) {
+            return UNKNOWN;
+        }
+        long key = 0;
+        for (int i = lexer.start(); i < lexer.end(); i++) {
+            byte b = lexer.byteAt(i);
+            key = key << 8 | (b >= 'a' && b <= 'z' ? b - ('a' - 'A') : b & 0xFF);
+        }
+        int index = Arrays.binarySearch(MNEMONIC_KEYS, key);
+        return index < 0 ? UNKNOWN : MNEMONIC_CODES[index];
+    }
 
-            }
-            lineNum++;
+    private static long pack(String mnemonic) {
+        long key = 0;
+        for (int i = 0; i < mnemonic.length(); i++) {
+            key = key << 8 | Character.toUpperCase(mnemonic.charAt(i));
         }
-        // trim data section
-        ByteBuffer trimmed = ByteBuffer.allocate(dataSection.position());
-        trimmed.put(0, dataSection, 0, dataSection.position());
-        trimmed.position(trimmed.capacity());
-        return new Program(instrs, trimmed);
+        return key;
     }
 
-    private void instWithtLabeledOperand(String label, Function<Word, Instruction> instrFun) {
+    private void instWithtLabeledOperand(String label, Instruction.Type type, int line) {
         Integer foundLabel = labels.get(label);
-        Instruction instr = instrFun.apply(new Word(foundLabel));
+        Instruction instr = new Instruction(type, new Word(foundLabel));
         if (foundLabel == null) {
-            instrWithUnknownLabels.add(new ResolvableLabel(instr, label, lineNum));
+            instrWithUnknownLabels.add(new ResolvableLabel(instrs.size(), instr, label, line));
         }
         instrs.add(instr);
     }
@@ -280,9 +245,8 @@ public class LasmParser {
     private int putDataSection(byte[] bytes) {
         // get the soze of the memory to add
         int addr = dataSection.position();
-        if (dataSection.remaining() < bytes.length + 4) {
-            growDataSectionSize();
-            return putDataSection(bytes);
+        if (dataSection.remaining() < bytes.length + 4 + 3) {
+            growDataSectionSize(bytes.length + 4 + 3);
         }
         int byteOffset = bytes.length % 4;
         int bytesToAdd = byteOffset == 0 ? 0 : 4 - byteOffset;
@@ -295,18 +259,21 @@ public class LasmParser {
         return addr;
     }
 
-    private void growDataSectionSize() {
-        int capacity = dataSection.capacity();
-        // todo better grow algorithm
-        ByteBuffer newBb = ByteBuffer.allocate((int)(capacity*1.5));
-        dataSection.position(0);
-        newBb.put(dataSection);
+    private void growDataSectionSize(int needed) {
+        long capacity = dataSection.capacity();
+        while (capacity - dataSection.position() < needed) {
+            capacity *= 2;
+        }
+        ByteBuffer newBb = ByteBuffer.allocate((int) Math.min(capacity, Integer.MAX_VALUE));
+        newBb.put(0, dataSection, 0, dataSection.position());
+        newBb.position(dataSection.position());
+        dataSection = newBb;
     }
 
-    private static void assertArgSize(String instr, int required, String[] actuall, String filename, int line) {
-        if (required != actuall.length - 1) {
+    private void assertArgSize(String instr, int required, String filename, int line) {
+        if (required != operandCount) {
             System.err.printf("ERROR: %s:%d - '%s' requires %d arguments but got %d ()\n",
-                    filename, line, instr, required, actuall.length - 1);
+                    filename, line, instr, required, operandCount);
             System.exit(-1);
         }
     }
@@ -0,0 +1,377 @@
+package ca.applin.livm.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Reads and writes the *.li files, in both versions of the format described in {@code docs/livm-file-format.md}.
+ * <p>
+ * Version 2 starts like version 1 with the magic bytes, followed by {@code 0xFFFFFFFF} where version 1 has the size
+ * of its instructions, which is never negative. Then come the version, and the directory of the sections: the
+ * code, the data section and the optional label table are found without decoding anything else. Operands are
+ * zig-zag varints, branch targets relative to the branch, so most operands take a single byte.
+ */
+final class LiFile {
+    static final int VERSIONED = 0xFFFFFFFF;
+    static final int VERSION_2 = 2;
+
+    // section kinds
+    static final int CODE = 1,
+                     DATA = 2,
+                     LABELS = 3;
+    // section encodings
+    static final int STORED = 0,
+                     DEFLATE = 1;
+
+    // u1 kind, u1 encoding, u4 offset, u4 length, u4 raw length, u4 count
+    static final int SECTION_ENTRY_SIZE = 18;
+    // u2 magic, u4 versioned, u2 version, u2 section count
+    static final int HEADER_SIZE = 10;
+
+    // label table entry kinds
+    static final int JUMP_TARGET = 0,
+                     PROCEDURE = 1;
+
+    private record Section(int kind, int encoding, byte[] content, int rawLength, int count) { }
+
+    private LiFile() { }
+
+    static void write(Program program, LiOptions options, OutputStream out) throws IOException {
+        DataOutputStream dos = new DataOutputStream(out);
+        if (options.version() == 1) {
+            writeV1(program, dos);
+        } else {
+            writeV2(program, options, dos);
+        }
+        dos.flush();
+    }
+
+    private static void writeV1(Program program, DataOutputStream out) throws IOException {
+        int[] opcodes = program.opcodes();
+        int[] operands = program.operands();
+        int size = 0;
+        for (int opcode : opcodes) {
+            size += hasOperand(opcode) ? 5 : 1;
+        }
+        out.writeShort(Program.MAGIC_BYTES);
+        out.writeInt(size);
+        for (int i = 0; i < opcodes.length; i++) {
+            out.writeByte(opcodes[i]);
+            if (hasOperand(opcodes[i])) {
+                out.writeInt(operands[i]);
+            }
+        }
+        out.writeInt(program.dataSection().capacity());
+        out.write(program.getDataSectionBytes());
+    }
+
+    private static void writeV2(Program program, LiOptions options, DataOutputStream out) throws IOException {
+        List<Section> sections = new ArrayList<>(3);
+        byte[] code = encodeCode(program);
+        sections.add(options.compressCode()
+                ? new Section(CODE, DEFLATE, deflate(code), code.length, program.size())
+                : new Section(CODE, STORED, code, code.length, program.size()));
+        byte[] data = program.getDataSectionBytes();
+        sections.add(new Section(DATA, STORED, data, data.length, 0));
+        if (options.labels()) {
+            BitSet procedures = new BitSet();
+            BitSet targets = branchTargets(program, procedures);
+            byte[] labels = encodeLabels(targets, procedures);
+            sections.add(new Section(LABELS, STORED, labels, labels.length, targets.cardinality()));
+        }
+
+        out.writeShort(Program.MAGIC_BYTES);
+        out.writeInt(VERSIONED);
+        out.writeShort(VERSION_2);
+        out.writeShort(sections.size());
+        long offset = HEADER_SIZE + (long) SECTION_ENTRY_SIZE * sections.size();
+        for (Section section : sections) {
+            out.writeByte(section.kind);
+            out.writeByte(section.encoding);
+            out.writeInt((int) offset);
+            out.writeInt(section.content.length);
+            out.writeInt(section.rawLength);
+            out.writeInt(section.count);
+            offset += section.content.length;
+        }
+        for (Section section : sections) {
+            out.write(section.content);
+        }
+    }
+
+    // opcode then the zig-zag varint of the operand, or of target - address for the branches
+    private static byte[] encodeCode(Program program) {
+        int[] opcodes = program.opcodes();
+        int[] operands = program.operands();
+        ByteArrayOutputStream code = new ByteArrayOutputStream(opcodes.length * 2);
+        for (int i = 0; i < opcodes.length; i++) {
+            code.write(opcodes[i]);
+            if (hasOperand(opcodes[i])) {
+                int operand = isBranch(opcodes[i]) ? operands[i] - i : operands[i];
+                writeVarint(code, zigZag(operand));
+            }
+        }
+        return code.toByteArray();
+    }
+
+    // ascending addresses, each as the varint of its distance to the previous one, followed by its kind
+    private static byte[] encodeLabels(BitSet targets, BitSet procedures) {
+        ByteArrayOutputStream labels = new ByteArrayOutputStream();
+        int previous = 0;
+        for (int address = targets.nextSetBit(0); address >= 0; address = targets.nextSetBit(address + 1)) {
+            writeVarint(labels, address - previous);
+            labels.write(procedures.get(address) ? PROCEDURE : JUMP_TARGET);
+            previous = address;
+        }
+        return labels.toByteArray();
+    }
+
+    // addresses targeted by a branch in the code, the ones called are also set in procedures
+    private static BitSet branchTargets(Program program, BitSet procedures) {
+        int[] opcodes = program.opcodes();
+        int[] operands = program.operands();
+        BitSet targets = new BitSet(opcodes.length);
+        for (int i = 0; i < opcodes.length; i++) {
+            int target = operands[i];
+            if (isBranch(opcodes[i]) && target >= 0 && target <= opcodes.length) {
+                targets.set(target);
+                if (opcodes[i] == Opcodes.CALL || opcodes[i] == Opcodes.TAILCALL || opcodes[i] == Opcodes.SPAWN) {
+                    procedures.set(target);
+                }
+            }
+        }
+        return targets;
+    }
+
+    /**
+     * Decodes a programm from the content of a *.li file of any version, starting at its first byte.
+     */
+    static Program read(ByteBuffer content, String name) {
+        ByteBuffer bb = content.slice().order(ByteOrder.BIG_ENDIAN);
+        try {
+            if (bb.getShort(0) != Program.MAGIC_BYTES) {
+                throw new InvalidProgramException("Cannot open file " + name + ", invalid magic bytes");
+            }
+            return bb.getInt(2) == VERSIONED ? readV2(bb, name) : readV1(bb, name);
+        } catch (IndexOutOfBoundsException e) {
+            throw new InvalidProgramException("Unexpected end of file " + name, e);
+        } catch (InvalidProgramException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            // invalid instruction byte
+            throw new InvalidProgramException("Invalid instruction in " + name + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static Program readV1(ByteBuffer bb, String name) {
+        int totalInstructionSize = bb.getInt(2);
+        int codeStart = 6;
+        int codeEnd = codeStart + totalInstructionSize;
+        if (totalInstructionSize < 0 || codeEnd + 4 > bb.limit()) {
+            throw new InvalidProgramException("Invalid instructions size " + totalInstructionSize + " in " + name);
+        }
+
+        // first pass only finds the number of instructions, so the decoded arrays are allocated once
+        int count = 0;
+        for (int pos = codeStart; pos < codeEnd; count++) {
+            pos += Instruction.Type.fromByte(bb.get(pos)).operandCount() == 0 ? 1 : 5;
+        }
+        int[] opcodes = new int[count];
+        int[] operands = new int[count];
+        for (int pos = codeStart, i = 0; i < count; i++) {
+            int opcode = bb.get(pos) & 0xFF;
+            opcodes[i] = opcode;
+            if (Instruction.Type.fromOpcode(opcode).operandCount() == 0) {
+                pos += 1;
+            } else {
+                operands[i] = bb.getInt(pos + 1);
+                pos += 5;
+            }
+        }
+
+        int dataSectionSize = bb.getInt(codeEnd);
+        int dataStart = codeEnd + 4;
+        if (dataSectionSize < 0 || dataStart + dataSectionSize > bb.limit()) {
+            throw new InvalidProgramException("Invalid data section size " + dataSectionSize + " in " + name);
+        }
+        ByteBuffer dataSection = bb.slice(dataStart, dataSectionSize).asReadOnlyBuffer();
+        return new Program(opcodes, operands, dataSection);
+    }
+
+    private static Program readV2(ByteBuffer bb, String name) {
+        int version = bb.getShort(6) & 0xFFFF;
+        if (version != VERSION_2) {
+            throw new InvalidProgramException("Unsupported *.li version " + version + " in " + name);
+        }
+        ByteBuffer code = null;
+        int count = 0;
+        ByteBuffer dataSection = ByteBuffer.allocate(0).asReadOnlyBuffer();
+        int sections = bb.getShort(8) & 0xFFFF;
+        for (int i = 0, entry = HEADER_SIZE; i < sections; i++, entry += SECTION_ENTRY_SIZE) {
+            switch (bb.get(entry)) {
+                case CODE -> {
+                    code = section(bb, entry, name);
+                    count = bb.getInt(entry + 14);
+                }
+                case DATA -> dataSection = section(bb, entry, name).asReadOnlyBuffer();
+                // other sections, like the label table, are not needed to run the programm
+                default -> { }
+            }
+        }
+        if (code == null) {
+            throw new InvalidProgramException("Missing code section in " + name);
+        }
+        if (count < 0 || count > code.limit()) {
+            throw new InvalidProgramException("Invalid instruction count " + count + " in " + name);
+        }
+        int[] opcodes = new int[count];
+        int[] operands = new int[count];
+        int pos = 0;
+        for (int i = 0; i < count; i++) {
+            int opcode = code.get(pos++) & 0xFF;
+            opcodes[i] = opcode;
+            if (Instruction.Type.fromOpcode(opcode).operandCount() != 0) {
+                // inlined readVarint, this loop is the whole load time of large programms
+                int zigZag = 0;
+                for (int shift = 0; ; shift += 7) {
+                    byte b = code.get(pos++);
+                    zigZag |= (b & 0x7F) << shift;
+                    if (b >= 0) {
+                        break;
+                    }
+                    if (shift == 28) {
+                        throw new InvalidProgramException("Invalid operand at instruction " + i + " in " + name);
+                    }
+                }
+                int operand = (zigZag >>> 1) ^ -(zigZag & 1);
+                operands[i] = isBranch(opcode) ? operand + i : operand;
+            }
+        }
+        return new Program(opcodes, operands, dataSection);
+    }
+
+    /**
+     * @return the label table of a *.li file, empty for a version 1 file or a file written without it.
+     */
+    static List<Program.Label> readLabels(ByteBuffer content, String name) {
+        ByteBuffer bb = content.slice().order(ByteOrder.BIG_ENDIAN);
+        List<Program.Label> labels = new ArrayList<>();
+        try {
+            if (bb.getShort(0) != Program.MAGIC_BYTES) {
+                throw new InvalidProgramException("Cannot open file " + name + ", invalid magic bytes");
+            }
+            if (bb.getInt(2) != VERSIONED) {
+                return labels;
+            }
+            int sections = bb.getShort(8) & 0xFFFF;
+            for (int i = 0, entry = HEADER_SIZE; i < sections; i++, entry += SECTION_ENTRY_SIZE) {
+                if (bb.get(entry) != LABELS) {
+                    continue;
+                }
+                ByteBuffer table = section(bb, entry, name);
+                int count = bb.getInt(entry + 14);
+                int[] position = {0};
+                int address = 0;
+                for (int l = 0; l < count; l++) {
+                    address += readVarint(table, position);
+                    labels.add(new Program.Label(address, table.get(position[0]++) == PROCEDURE));
+                }
+            }
+            return labels;
+        } catch (IndexOutOfBoundsException e) {
+            throw new InvalidProgramException("Unexpected end of file " + name, e);
+        }
+    }
+
+    // content of the section described by the directory entry at entry, inflated if needed
+    private static ByteBuffer section(ByteBuffer bb, int entry, String name) {
+        int encoding = bb.get(entry + 1);
+        int offset = bb.getInt(entry + 2);
+        int length = bb.getInt(entry + 6);
+        int rawLength = bb.getInt(entry + 10);
+        if (offset < 0 || length < 0 || rawLength < 0 || (long) offset + length > bb.limit()) {
+            throw new InvalidProgramException("Invalid section at " + offset + " in " + name);
+        }
+        ByteBuffer stored = bb.slice(offset, length);
+        return switch (encoding) {
+            case STORED -> stored;
+            case DEFLATE -> inflate(stored, rawLength, name);
+            default -> throw new InvalidProgramException("Unknown section encoding " + encoding + " in " + name);
+        };
+    }
+
+    private static byte[] deflate(byte[] raw) {
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        deflater.setInput(raw);
+        deflater.finish();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2 + 64);
+        byte[] buffer = new byte[64 * 1024];
+        while (!deflater.finished()) {
+            out.write(buffer, 0, deflater.deflate(buffer));
+        }
+        deflater.end();
+        return out.toByteArray();
+    }
+
+    private static ByteBuffer inflate(ByteBuffer stored, int rawLength, String name) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(stored);
+            ByteBuffer raw = ByteBuffer.allocate(rawLength);
+            inflater.inflate(raw);
+            if (!inflater.finished() || raw.hasRemaining()) {
+                throw new InvalidProgramException("Invalid compressed section in " + name);
+            }
+            return raw.flip();
+        } catch (DataFormatException e) {
+            throw new InvalidProgramException("Invalid compressed section in " + name, e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static int zigZag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarint(ByteBuffer in, int[] position) {
+        int value = 0;
+        for (int shift = 0; shift <= 28; shift += 7) {
+            byte b = in.get(position[0]++);
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new InvalidProgramException("Invalid varint");
+    }
+
+    private static boolean hasOperand(int opcode) {
+        return Instruction.Type.fromOpcode(opcode).operandCount() != 0;
+    }
+
+    private static boolean isBranch(int opcode) {
+        return switch (opcode) {
+            case Opcodes.JMP, Opcodes.JNZ, Opcodes.CALL, Opcodes.JEQ, Opcodes.TAILCALL, Opcodes.SPAWN -> true;
+            default -> false;
+        };
+    }
+}
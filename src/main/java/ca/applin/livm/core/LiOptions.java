@@ -0,0 +1,21 @@
+package ca.applin.livm.core;
+
+/**
+ * How a programm is written as a *.li file, see {@code docs/livm-file-format.md}.
+ * @param version 1 for the original format, 2 for the sectioned format with varint operands
+ * @param compressCode deflate the code section, version 2 only
+ * @param labels write the table of jump targets and procedures, version 2 only
+ */
+public record LiOptions(int version, boolean compressCode, boolean labels) {
+    public static final LiOptions V1 = new LiOptions(1, false, false);
+    public static final LiOptions DEFAULT = new LiOptions(2, false, false);
+
+    public LiOptions {
+        if (version != 1 && version != 2) {
+            throw new IllegalArgumentException("Unknown *.li version " + version);
+        }
+        if (version == 1 && (compressCode || labels)) {
+            throw new IllegalArgumentException("Compression and labels need the *.li version 2");
+        }
+    }
+}
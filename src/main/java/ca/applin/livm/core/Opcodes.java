@@ -0,0 +1,72 @@
+package ca.applin.livm.core;
+
+/**
+ * Integer opcodes used by the decoded program representation. They are the ordinals of {@link Instruction.Type},
+ * which are also the bytes used in *.li files, but as compile time constants they can be used directly in a switch
+ * over the decoded {@code int[]} code of a {@link Program}.
+ */
+public final class Opcodes {
+    public static final int NOP   = 0x00;
+    public static final int HALT  = 0x01;
+    public static final int PUSH  = 0x02;
+    public static final int MEM   = 0x03;
+    public static final int STR   = 0x04;
+    public static final int LOAD  = 0x05;
+    public static final int MOV   = 0x06;
+    public static final int READ  = 0x07;
+    public static final int ADD   = 0x08;
+    public static final int SUB   = 0x09;
+    public static final int MUL   = 0x0A;
+    public static final int DIV   = 0x0B;
+    public static final int DUP   = 0x0C;
+    public static final int EQ    = 0x0D;
+    public static final int JMP   = 0x0E;
+    public static final int JNZ   = 0x0F;
+    public static final int CALL  = 0x10;
+    public static final int RET   = 0x11;
+    public static final int DUMP  = 0x12;
+    public static final int PRINT = 0x13;
+
+    // superinstructions
+    public static final int JEQ      = 0x14;
+    public static final int ADDI     = 0x15;
+    public static final int DUP2     = 0x16;
+    public static final int TAILCALL = 0x17;
+
+    public static final int FREE  = 0x18;
+    public static final int NEW   = 0x19;
+    public static final int STORE = 0x1A;
+
+    // tagged values
+    public static final int NIL   = 0x1B;
+    public static final int SYM   = 0x1C;
+    public static final int TAG   = 0x1D;
+
+    // debugging
+    public static final int BREAK = 0x1E;
+
+    // call frames
+    public static final int ENTER       = 0x1F;
+    public static final int LOAD_LOCAL  = 0x20;
+    public static final int STORE_LOCAL = 0x21;
+
+    // images
+    public static final int SNAPSHOT = 0x22;
+
+    // tasks
+    public static final int SPAWN = 0x23;
+    public static final int YIELD = 0x24;
+
+    // channels
+    public static final int CHAN    = 0x25;
+    public static final int SEND    = 0x26;
+    public static final int RECV    = 0x27;
+    public static final int TRYRECV = 0x28;
+
+    // bulk memory
+    public static final int MEMCPY = 0x29;
+    public static final int MEMSET = 0x2A;
+    public static final int MEMCMP = 0x2B;
+
+    private Opcodes() { }
+}
@@ -0,0 +1,212 @@
+package ca.applin.livm.core;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Destination of the values printed with {@code print}.
+ * <p>
+ * Machines do not write to the stream themselves: each machine formats its output in a buffer of its own (see
+ * {@link OutputBuffer}) and hands full buffers to the output, which queues them in a bounded ring buffer written by a
+ * dedicated writer thread. A machine only waits for the writer when the ring is full, or when it flushes its output,
+ * which it does when it halts or raises a trap.
+ * <p>
+ * An output can be shared by several machines running concurrently, the lines printed by a machine stay in order
+ * but the buffers of different machines are interleaved.
+ */
+public final class Output {
+    static final int BUFFER_SIZE = 8 * 1024;
+    static final int RING_SIZE = 16;
+
+    private static Output stdout;
+
+    // null when the output is discarded
+    private final OutputStream out;
+    // buffers waiting to be written, in order
+    private final ArrayBlockingQueue<Chunk> ring;
+    // written buffers, given back to the machines
+    private final ArrayBlockingQueue<byte[]> free;
+    private final Thread writer;
+    private volatile IOException error;
+
+    private record Chunk(byte[] buffer, int length, CountDownLatch written) { }
+
+    private Output(OutputStream out, String name) {
+        this.out = out;
+        this.free = new ArrayBlockingQueue<>(RING_SIZE);
+        if (out == null) {
+            this.ring = null;
+            this.writer = null;
+            return;
+        }
+        this.ring = new ArrayBlockingQueue<>(RING_SIZE);
+        this.writer = new Thread(this::write, name);
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * @return the output writing to {@link System#out}, shared by all the machines. The stream is looked up for every
+     * buffer written, so the output follows {@link System#setOut}. The output is flushed when the JVM exits.
+     */
+    public static synchronized Output stdout() {
+        if (stdout == null) {
+            stdout = new Output(new OutputStream() {
+                @Override
+                public void write(int b) {
+                    System.out.write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    System.out.write(b, off, len);
+                }
+
+                @Override
+                public void flush() {
+                    System.out.flush();
+                }
+            }, "livm-stdout");
+            Runtime.getRuntime().addShutdownHook(new Thread(stdout::flush, "livm-stdout-flush"));
+        }
+        return stdout;
+    }
+
+    /**
+     * @return an output writing to the file at path, replacing its content.
+     */
+    public static Output toFile(String path) {
+        try {
+            return new Output(new FileOutputStream(path), "livm-output-" + path);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open output file " + path, e);
+        }
+    }
+
+    /**
+     * @return an output dropping everything printed. The values are still formatted, only the writes are skipped,
+     * to benchmark the machine without its output.
+     */
+    public static Output discard() {
+        return new Output(null, "livm-discard");
+    }
+
+    /**
+     * @return an empty buffer of at least {@link #BUFFER_SIZE} bytes, reusing the written ones when possible.
+     */
+    byte[] takeBuffer() {
+        byte[] buffer = free.poll();
+        return buffer != null ? buffer : new byte[BUFFER_SIZE];
+    }
+
+    /**
+     * Queues the first length bytes of buffer to be written, waiting while the ring is full. The buffer belongs
+     * to the output afterwards.
+     */
+    void submit(byte[] buffer, int length) {
+        submit(new Chunk(buffer, length, null));
+    }
+
+    /**
+     * Queues the first length bytes of buffer and waits until they, and every buffer queued before them, are
+     * written and the stream is flushed.
+     */
+    void submitAndFlush(byte[] buffer, int length) {
+        CountDownLatch written = new CountDownLatch(1);
+        submit(new Chunk(buffer, length, written));
+        awaitUninterruptibly(written);
+        if (error != null) {
+            throw new UncheckedIOException("Cannot write output", error);
+        }
+    }
+
+    /**
+     * Waits until every buffer queued so far is written and the stream is flushed.
+     */
+    public void flush() {
+        submitAndFlush(takeBuffer(), 0);
+    }
+
+    /**
+     * Flushes the output and closes its stream, except for the standard output which stays open.
+     */
+    public void close() {
+        flush();
+        if (out != null && this != stdout) {
+            writer.interrupt();
+            try {
+                out.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot close output", e);
+            }
+        }
+    }
+
+    private void submit(Chunk chunk) {
+        if (ring == null) {
+            recycle(chunk);
+            return;
+        }
+        boolean interrupted = false;
+        while (true) {
+            try {
+                ring.put(chunk);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // body of the writer thread
+    private void write() {
+        try {
+            while (true) {
+                Chunk chunk = ring.take();
+                if (error == null) {
+                    try {
+                        out.write(chunk.buffer, 0, chunk.length);
+                        if (chunk.written != null) {
+                            out.flush();
+                        }
+                    } catch (IOException e) {
+                        // reported to the machines on their next flush
+                        error = e;
+                    }
+                }
+                recycle(chunk);
+            }
+        } catch (InterruptedException e) {
+            // closed
+        }
+    }
+
+    private void recycle(Chunk chunk) {
+        free.offer(chunk.buffer);
+        if (chunk.written != null) {
+            chunk.written.countDown();
+        }
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package ca.applin.livm.core;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The output of a single machine: printed values are formatted into a reusable byte buffer, which is handed to the
+ * {@link Output} when it is full or flushed. Ints are formatted digit by digit, printing does not allocate.
+ */
+final class OutputBuffer {
+    private static final byte[] PREFIX = ">>>>> ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+    // longest line formatted without going through Value.toString: the prefix, an int and the line separator
+    private static final int MAX_INT_LINE = PREFIX.length + 11 + LINE_SEPARATOR.length;
+
+    private final Output output;
+    // taken from the output on the first print
+    private byte[] buffer;
+    private int position;
+
+    OutputBuffer(Output output) {
+        this.output = output;
+    }
+
+    void print(long value) {
+        if (Value.isInt(value)) {
+            ensureCapacity(MAX_INT_LINE);
+            put(PREFIX);
+            putInt(Value.toInt(value));
+            put(LINE_SEPARATOR);
+        } else {
+            byte[] text = Value.toString(value).getBytes(StandardCharsets.US_ASCII);
+            ensureCapacity(PREFIX.length + text.length + LINE_SEPARATOR.length);
+            put(PREFIX);
+            put(text);
+            put(LINE_SEPARATOR);
+        }
+    }
+
+    /**
+     * Hands the buffered output to the output and waits until it is written.
+     */
+    void flush() {
+        if (buffer == null) {
+            return;
+        }
+        output.submitAndFlush(buffer, position);
+        buffer = null;
+        position = 0;
+    }
+
+    private void ensureCapacity(int length) {
+        if (buffer == null) {
+            buffer = output.takeBuffer();
+        } else if (position + length > buffer.length) {
+            output.submit(buffer, position);
+            buffer = output.takeBuffer();
+            position = 0;
+        }
+    }
+
+    private void put(byte[] bytes) {
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+    }
+
+    private void putInt(int value) {
+        // work on the negative value so Integer.MIN_VALUE needs no special case
+        int n = value < 0 ? value : -value;
+        if (value < 0) {
+            buffer[position++] = '-';
+        }
+        int end = position + digits(n);
+        for (int i = end - 1; i >= position; i--) {
+            buffer[i] = (byte) ('0' - n % 10);
+            n /= 10;
+        }
+        position = end;
+    }
+
+    // number of digits of a negative or zero value
+    private static int digits(int n) {
+        int digits = 1;
+        for (int limit = -10; digits < 10 && n <= limit; limit *= 10) {
+            digits++;
+        }
+        return digits;
+    }
+}
@@ -1,9 +1,167 @@
 package ca.applin.livm.core;
 
+import java.nio.file.Path;
+
 public class Parameters {
+    public static final int DEFAULT_MAX_STACK_SIZE = 1024 * 1024;
+    public static final int DEFAULT_MAX_RETURN_STACK_SIZE = 64 * 1024;
+    public static final int DEFAULT_JIT_THRESHOLD = 1000;
+    public static final int DEFAULT_MAX_HEAP_SIZE = 256 * 1024 * 1024;
+    public static final int DEFAULT_TASK_SLICE = 10_000;
+
     public final boolean debug;
 
+    // maximum number of values in the operand stack before raising a STACK_OVERFLOW trap
+    public final int maxStackSize;
+
+    // maximum number of nested procedure calls before raising a STACK_OVERFLOW trap
+    public final int maxReturnStackSize;
+
+    // compile hot regions to JVM bytecode
+    public final boolean jit;
+
+    // number of times a call target or backward jump target must be reached before being compiled
+    public final int jitThreshold;
+
+    // record an exact execution profile, see Profiler. Disables the jit
+    public final boolean profile;
+
+    // maximum size in bytes of the memory allocated with MEM before raising an OUT_OF_MEMORY trap
+    public final int maxHeapSize;
+
+    // destination of print, null for the standard output
+    public final Output output;
+
+    // keep the run time checks even for programms proven safe by the Verifier
+    public final boolean checked;
+
+    // run the programms proven safe by the Verifier on their register translation, see RegisterCode
+    public final boolean registers;
+
+    // image written by snapshot before halting, null to run snapshot as a nop
+    public final Path snapshot;
+
+    // number of carrier threads running the tasks of the programm, see Scheduler
+    public final int carriers;
+
+    // maximum number of instructions a task runs before the next task gets its turn
+    public final int taskSlice;
+
+    /**
+     * @return a builder of parameters, every parameter not set keeps its default value
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * The default parameters, in debug mode or not.
+     */
     public Parameters(boolean debug) {
-        this.debug = debug;
+        this(builder().debug(debug));
+    }
+
+    private Parameters(Builder builder) {
+        this.debug = builder.debug;
+        this.maxStackSize = builder.maxStackSize;
+        this.maxReturnStackSize = builder.maxReturnStackSize;
+        this.jit = builder.jit;
+        this.jitThreshold = builder.jitThreshold;
+        this.profile = builder.profile;
+        this.maxHeapSize = builder.maxHeapSize;
+        this.output = builder.output;
+        this.checked = builder.checked;
+        this.registers = builder.registers;
+        this.snapshot = builder.snapshot;
+        this.carriers = builder.carriers;
+        this.taskSlice = builder.taskSlice;
+    }
+
+    public static final class Builder {
+        private boolean debug;
+        private int maxStackSize = DEFAULT_MAX_STACK_SIZE;
+        private int maxReturnStackSize = DEFAULT_MAX_RETURN_STACK_SIZE;
+        private boolean jit;
+        private int jitThreshold = DEFAULT_JIT_THRESHOLD;
+        private boolean profile;
+        private int maxHeapSize = DEFAULT_MAX_HEAP_SIZE;
+        private Output output;
+        private boolean checked;
+        private boolean registers;
+        private Path snapshot;
+        private int carriers = Runtime.getRuntime().availableProcessors();
+        private int taskSlice = DEFAULT_TASK_SLICE;
+
+        private Builder() {
+        }
+
+        public Builder debug(boolean debug) {
+            this.debug = debug;
+            return this;
+        }
+
+        public Builder maxStackSize(int maxStackSize) {
+            this.maxStackSize = maxStackSize;
+            return this;
+        }
+
+        public Builder maxReturnStackSize(int maxReturnStackSize) {
+            this.maxReturnStackSize = maxReturnStackSize;
+            return this;
+        }
+
+        public Builder jit(boolean jit) {
+            this.jit = jit;
+            return this;
+        }
+
+        public Builder jitThreshold(int jitThreshold) {
+            this.jitThreshold = jitThreshold;
+            return this;
+        }
+
+        public Builder profile(boolean profile) {
+            this.profile = profile;
+            return this;
+        }
+
+        public Builder maxHeapSize(int maxHeapSize) {
+            this.maxHeapSize = maxHeapSize;
+            return this;
+        }
+
+        public Builder output(Output output) {
+            this.output = output;
+            return this;
+        }
+
+        public Builder checked(boolean checked) {
+            this.checked = checked;
+            return this;
+        }
+
+        public Builder registers(boolean registers) {
+            this.registers = registers;
+            return this;
+        }
+
+        public Builder snapshot(Path snapshot) {
+            this.snapshot = snapshot;
+            return this;
+        }
+
+        public Builder carriers(int carriers) {
+            this.carriers = carriers;
+            return this;
+        }
+
+        public Builder taskSlice(int taskSlice) {
+            this.taskSlice = taskSlice;
+            return this;
+        }
+
+        public Parameters build() {
+            return new Parameters(this);
+        }
     }
 }
@@ -0,0 +1,276 @@
+package ca.applin.livm.core;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+
+/**
+ * Exact execution profile of a run, recorded by the interpreter before each instruction when the machine runs
+ * with {@link Parameters#profile}. The jit is disabled while profiling, and the machine is stepped one instruction
+ * at a time, so every instruction is counted without slowing down the runs that are not profiled.
+ * <p>
+ * Recorded:
+ * <ul>
+ *     <li>retired instructions per {@link Instruction.Type}</li>
+ *     <li>hits per instruction pointer</li>
+ *     <li>calls and inclusive steps per call target. The inclusive steps of a procedure are the instructions
+ *     executed while it is on the call stack, from its first instruction to its ret. Recursive calls are only
+ *     counted once, by the outermost call.</li>
+ *     <li>taken and not taken counts of each jnz and jeq</li>
+ * </ul>
+ * A tailcall ends the current procedure and calls the next one.
+ */
+public final class Profiler {
+    private static final int INITIAL_FRAMES = 64;
+
+    private final Program program;
+    private final long[] opcodeCounts = new long[Instruction.Type.values().length];
+    private final long[] hits;
+    private final long[] calls;
+    private final long[] inclusiveSteps;
+    private final long[] taken;
+    private final long[] notTaken;
+    private long steps;
+
+    // procedures currently on the call stack: their address and the step they were entered at
+    private int[] frameTargets = new int[INITIAL_FRAMES];
+    private long[] frameStarts = new long[INITIAL_FRAMES];
+    private int depth;
+    // number of frames of each procedure on the call stack, to count recursive calls once
+    private final int[] active;
+
+    Profiler(Program program) {
+        this.program = program;
+        int size = program.size();
+        this.hits = new long[size];
+        this.calls = new long[size + 1];
+        this.inclusiveSteps = new long[size + 1];
+        this.active = new int[size + 1];
+        this.taken = new long[size];
+        this.notTaken = new long[size];
+    }
+
+    /**
+     * Runs the machine until it halts or raises a trap, one instruction at a time to record each of them.
+     */
+    Trap run(VirtualMachine vm) {
+        Trap trap = Trap.OK;
+        while (trap == Trap.OK && !vm.isHalted()) {
+            record(vm);
+            trap = vm.run(1);
+        }
+        return trap;
+    }
+
+    /**
+     * Records the instruction the machine is about to execute.
+     */
+    void record(VirtualMachine vm) {
+        int ip = vm.ip;
+        if (ip >= 0 && ip < program.size()) {
+            step(ip, program.opcodes()[ip], program.operands()[ip], vm.stack, vm.sp);
+        }
+    }
+
+    /**
+     * Records the instruction at ip, before it is executed.
+     */
+    void step(int ip, int opcode, int operand, long[] stack, int sp) {
+        steps++;
+        opcodeCounts[opcode]++;
+        hits[ip]++;
+        switch (opcode) {
+            case Opcodes.JNZ -> {
+                if (sp >= 1) {
+                    branch(ip, Value.isTrue(stack[sp - 1]));
+                }
+            }
+            case Opcodes.JEQ -> {
+                if (sp >= 2) {
+                    branch(ip, stack[sp - 1] == stack[sp - 2]);
+                }
+            }
+            case Opcodes.CALL -> {
+                // call x; ret runs as tailcall x, the ret is not executed
+                int[] opcodes = program.opcodes();
+                if (ip + 1 < opcodes.length && opcodes[ip + 1] == Opcodes.RET) {
+                    leave();
+                }
+                enter(operand);
+            }
+            case Opcodes.TAILCALL -> {
+                leave();
+                enter(operand);
+            }
+            case Opcodes.RET -> leave();
+            default -> { }
+        }
+    }
+
+    private void branch(int ip, boolean isTaken) {
+        if (isTaken) {
+            taken[ip]++;
+        } else {
+            notTaken[ip]++;
+        }
+    }
+
+    private void enter(int target) {
+        if (target < 0 || target >= calls.length) {
+            // raises ILLEGAL_INSTR_ACCESS
+            return;
+        }
+        if (depth == frameTargets.length) {
+            frameTargets = Arrays.copyOf(frameTargets, depth * 2);
+            frameStarts = Arrays.copyOf(frameStarts, depth * 2);
+        }
+        frameTargets[depth] = target;
+        frameStarts[depth] = steps;
+        depth++;
+        calls[target]++;
+        active[target]++;
+    }
+
+    private void leave() {
+        if (depth == 0) {
+            return;
+        }
+        depth--;
+        int target = frameTargets[depth];
+        if (--active[target] == 0) {
+            inclusiveSteps[target] += steps - frameStarts[depth];
+        }
+    }
+
+    public long getSteps() {
+        return steps;
+    }
+
+    public long getOpcodeCount(Instruction.Type type) {
+        return opcodeCounts[type.opcode()];
+    }
+
+    public long getHits(int ip) {
+        return hits[ip];
+    }
+
+    public long getCalls(int target) {
+        return calls[target];
+    }
+
+    /**
+     * @return the inclusive steps of the procedure at target, procedures still running counting until now.
+     */
+    public long getInclusiveSteps(int target) {
+        long total = inclusiveSteps[target];
+        for (int i = 0; i < depth; i++) {
+            if (frameTargets[i] == target) {
+                // outermost frame of a procedure still on the call stack
+                total += steps - frameStarts[i];
+                break;
+            }
+        }
+        return total;
+    }
+
+    public long getTaken(int ip) {
+        return taken[ip];
+    }
+
+    public long getNotTaken(int ip) {
+        return notTaken[ip];
+    }
+
+    /**
+     * Prints the disassembly of the programm, each instruction annotated with its hits, and the call and branch
+     * counts on the procedures and conditional jumps.
+     */
+    public void printAnnotatedDisassembly(PrintStream out) {
+        out.printf(";; profile: %d instructions retired%n", steps);
+        out.println(";; opcode         count        %");
+        for (Instruction.Type type : Instruction.Type.values()) {
+            long count = opcodeCounts[type.opcode()];
+            if (count != 0) {
+                out.printf(";; %-10s %10d  %6.2f%%%n", type.asm, count, percent(count, steps));
+            }
+        }
+        out.println(";;");
+        out.println(";;       hits        %     ip  instruction");
+        for (int ip = 0; ip < program.size(); ip++) {
+            if (calls[ip] != 0) {
+                long inclusive = getInclusiveSteps(ip);
+                out.printf("%27s.proc_%d:  ; %d calls, %d steps inclusive (%.1f per call, %.2f%%)%n",
+                        "", ip, calls[ip], inclusive, (double) inclusive / calls[ip], percent(inclusive, steps));
+            }
+            String asm = program.getInstruction(ip).toAsm();
+            String line = String.format("%12d  %6.2f%%  %5d  %-16s", hits[ip], percent(hits[ip], steps), ip, asm);
+            long branches = taken[ip] + notTaken[ip];
+            if (branches != 0) {
+                line += String.format("; taken %d, not taken %d (%.1f%% taken)", taken[ip], notTaken[ip],
+                        percent(taken[ip], branches));
+            }
+            out.println(line.stripTrailing());
+        }
+    }
+
+    /**
+     * Prints the profile as a JSON object, only listing the opcodes, instructions, procedures and branches that
+     * were executed.
+     */
+    public void printJson(PrintStream out) {
+        out.println("{");
+        out.printf("  \"retired\": %d,%n", steps);
+
+        out.println("  \"opcodes\": {");
+        String separator = "";
+        for (Instruction.Type type : Instruction.Type.values()) {
+            long count = opcodeCounts[type.opcode()];
+            if (count != 0) {
+                out.printf("%s    \"%s\": %d", separator, type.asm, count);
+                separator = ",\n";
+            }
+        }
+        out.println();
+        out.println("  },");
+
+        out.println("  \"instructions\": [");
+        separator = "";
+        for (int ip = 0; ip < program.size(); ip++) {
+            if (hits[ip] != 0) {
+                out.printf("%s    {\"ip\": %d, \"asm\": \"%s\", \"hits\": %d}",
+                        separator, ip, program.getInstruction(ip).toAsm(), hits[ip]);
+                separator = ",\n";
+            }
+        }
+        out.println();
+        out.println("  ],");
+
+        out.println("  \"calls\": [");
+        separator = "";
+        for (int target = 0; target < calls.length; target++) {
+            if (calls[target] != 0) {
+                out.printf("%s    {\"target\": %d, \"calls\": %d, \"inclusiveSteps\": %d}",
+                        separator, target, calls[target], getInclusiveSteps(target));
+                separator = ",\n";
+            }
+        }
+        out.println();
+        out.println("  ],");
+
+        out.println("  \"branches\": [");
+        separator = "";
+        for (int ip = 0; ip < program.size(); ip++) {
+            if (taken[ip] + notTaken[ip] != 0) {
+                out.printf("%s    {\"ip\": %d, \"asm\": \"%s\", \"taken\": %d, \"notTaken\": %d}",
+                        separator, ip, program.getInstruction(ip).toAsm(), taken[ip], notTaken[ip]);
+                separator = ",\n";
+            }
+        }
+        out.println();
+        out.println("  ]");
+        out.println("}");
+    }
+
+    private static double percent(long count, long total) {
+        return total == 0 ? 0 : 100.0 * count / total;
+    }
+}
@@ -1,18 +1,20 @@
 package ca.applin.livm.core;
 
+import ca.applin.livm.optimizer.Optimizer;
+
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 
 /**
- * LIVM File Format:
- * struct LIVM_File {
- *      u2   magic_bytes = OxFAB4;
- *      u4   instructions_size;
- *      u1[] instructions[instructions_size];
- *      u4   data_section_size;
- *      u1[] data_section[data_section_size];
- * }
+ * Programms are saved as *.li files, see {@link LiFile} and docs/livm-file-format.md.
+ * <p>
+ * A programm is immutable once built: the decoded code is never modified and the data section is read only, so a
+ * single instance can be run by any number of {@link VirtualMachine} at the same time, from any thread. Each
+ * machine has its own stacks and memory and reads the code and data of the programm in place.
  */
 public class Program implements Iterable<Instruction>, Serializable {
     @Serial
@@ -21,104 +23,213 @@ public class Program implements Iterable<Instruction>, Serializable {
     public static final short MAGIC_BYTES = (short) 0xFAB4;
     public static final int DEFAULT_DATA_SECTION_SIZE = 1024;
 
-    private int totalInstructionSizeInBytes;
-    private List<Instruction> instructions;
-    private ByteBuffer dataSection;
+    // decoded code: the opcode and operand (0 when the instruction has none) of the instruction at each address
+    private final int[] opcodes;
+    private final int[] operands;
+    // read only, only accessed with absolute gets so it can be shared between threads
+    private final ByteBuffer dataSection;
+    // computed on first use, see verify()
+    private transient volatile Verifier.Result verification;
+    // computed on first use, see registerCode()
+    private transient volatile RegisterCode registerCode;
 
     public Program(List<Instruction> instructions) {
-        this.instructions = instructions;
+        this(instructions, ByteBuffer.allocate(0));
     }
 
-    public Program(List<Instruction> instructions, int totalInstructionSizeInBytes, ByteBuffer dataSection) {
-        this.instructions = instructions;
-        this.dataSection = dataSection;
-        this.totalInstructionSizeInBytes = totalInstructionSizeInBytes;
+    /**
+     * The data section is copied, later changes to the given buffer are not seen by the programm.
+     */
+    public Program(List<Instruction> instructions, ByteBuffer dataSection) {
+        this.opcodes = new int[instructions.size()];
+        this.operands = new int[instructions.size()];
+        for (int i = 0; i < instructions.size(); i++) {
+            Instruction instr = instructions.get(i);
+            opcodes[i] = instr.type.opcode();
+            if (instr.type.operandCount() != 0) {
+                operands[i] = instr.operand == null ? 0 : instr.operand.word();
+            }
+        }
+        byte[] data = new byte[dataSection.capacity()];
+        dataSection.get(0, data);
+        this.dataSection = ByteBuffer.wrap(data).asReadOnlyBuffer();
     }
 
-    public Program(List<Instruction> instructions, ByteBuffer dataSection) {
-        this.instructions = instructions;
+    // the arrays and the read only buffer are owned by the programm
+    Program(int[] opcodes, int[] operands, ByteBuffer dataSection) {
+        this.opcodes = opcodes;
+        this.operands = operands;
         this.dataSection = dataSection;
-        for (Instruction instr : instructions) {
-            totalInstructionSizeInBytes += 1;
-            if (instr.operand != null) {
-                totalInstructionSizeInBytes += 4;
+    }
+
+    /**
+     * @return a programm sharing the operands and data section of this one, with its own copy of the opcodes so
+     * they can be patched by the {@link Debugger}.
+     */
+    Program copyCode() {
+        Program copy = new Program(opcodes.clone(), operands, dataSection);
+        copy.verification = verification;
+        return copy;
+    }
+
+    /**
+     * @return the register translation of the code, built once and shared by the machines running the programm.
+     * @throws IllegalStateException if the programm is not verified
+     */
+    RegisterCode registerCode() {
+        RegisterCode result = registerCode;
+        if (result == null) {
+            if (!verify().safe()) {
+                throw new IllegalStateException("Only verified programms can be translated to registers");
             }
+            result = new RegisterTranslator(this).translate();
+            registerCode = result;
         }
+        return result;
     }
 
+    /**
+     * Runs the {@link Verifier} on the code, once: the result is kept by the programm. Done when the first
+     * {@link VirtualMachine} running the programm is created.
+     */
+    public Verifier.Result verify() {
+        Verifier.Result result = verification;
+        if (result == null) {
+            // concurrent callers may both verify the code, they find the same result
+            result = Verifier.verify(this);
+            verification = result;
+        }
+        return result;
+    }
+
+    /**
+     * @return a new read only view of the data section, with its own position and limit.
+     */
     public ByteBuffer getDataSection() {
-        return this.dataSection;
+        return this.dataSection.asReadOnlyBuffer();
+    }
+
+    // shared buffer, callers must only use absolute gets
+    ByteBuffer dataSection() {
+        return dataSection;
     }
 
     public int size() {
-        return instructions.size();
+        return opcodes.length;
+    }
+
+    public int getOpcode(int i) {
+        return opcodes[i];
+    }
+
+    int[] opcodes() {
+        return opcodes;
+    }
+
+    int[] operands() {
+        return operands;
     }
 
     @Override
     public Iterator<Instruction> iterator() {
-        return instructions.iterator();
+        return new Iterator<>() {
+            private int i = 0;
+
+            @Override
+            public boolean hasNext() {
+                return i < opcodes.length;
+            }
+
+            @Override
+            public Instruction next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return getInstruction(i++);
+            }
+        };
     }
 
+    /**
+     * Builds back the instruction at the given address. Instructions are not kept by the program, a new
+     * instance is created on each call.
+     */
     public Instruction getInstruction(int i) {
-        return instructions.get(i);
+        Instruction.Type type = Instruction.Type.fromOpcode(opcodes[i]);
+        return type.operandCount() == 0
+                ? new Instruction(type)
+                : new Instruction(type, new Word(operands[i]));
     }
 
+    /**
+     * Writes the programm as a version 2 *.li file, without compression nor label table.
+     */
     public void serialize(PrintStream ps) throws IOException {
-        DataOutputStream oos = new DataOutputStream(ps);
-        oos.writeShort(MAGIC_BYTES);
-        oos.writeInt(totalInstructionSizeInBytes);
-        for (Instruction instr: instructions) {
-            byte b = instr.type.asByte();
-            oos.writeByte(b);
-            Word operand = instr.operand;
-            if (operand != null) {
-                oos.writeInt(operand.word());
-            }
-        }
-        oos.writeInt(dataSection.capacity());
-        oos.write(dataSection.array());
-        oos.flush();
+        serialize(ps, LiOptions.DEFAULT);
+    }
+
+    public void serialize(PrintStream ps, LiOptions options) throws IOException {
+        LiFile.write(this, options, ps);
     }
 
+    /**
+     * Loads a *.li file, of any version. The file is memory mapped: the instructions are decoded straight from the
+     * mapping and the data section is a read only view of it, the file content is never copied unless the code
+     * is compressed.
+     * @throws UncheckedIOException if the file cannot be read
+     * @throws InvalidProgramException if the file is not a valid *.li file
+     */
     public static Program deserialize(String in) {
-        List<Instruction> instructions = new ArrayList<>();
-        try (DataInputStream dis = new DataInputStream(new FileInputStream(in))) {
-            short magicBytes = dis.readShort();
-            if (magicBytes != MAGIC_BYTES) {
-                System.err.printf("ERROR: Cannot open file %s, invalid magic bytes", in);
-                System.exit(-1);
-            }
-            int totalInstructionSize = dis.readInt();
-            int totalBytes = 0;
-            while(totalBytes < totalInstructionSize) {
-                byte b = dis.readByte();
-                Instruction.Type type = Instruction.Type.fromByte(b);
-                if (type.operandCount() == 0) {
-                    instructions.add(new Instruction(type));
-                    totalBytes += 1;
-                } else {
-                    int operand = dis.readInt();
-                    instructions.add(new Instruction(type, new Word(operand)));
-                    totalBytes += 5;
-                }
-            }
+        return LiFile.read(map(in), in);
+    }
 
-            int dataSectionSize = dis.readInt();
-            ByteBuffer dataSection = ByteBuffer.allocate(dataSectionSize);
-            while (dis.available() > 0) {
-                dataSection.put(dis.readByte());
-            }
-            return new Program(instructions, totalInstructionSize, dataSection);
+    /**
+     * Decodes a programm from the content of a *.li file, positioned at its first byte.
+     */
+    public static Program deserialize(ByteBuffer content, String name) {
+        return LiFile.read(content, name);
+    }
+
+    /**
+     * An address targeted by a branch, found in the label table of version 2 *.li files.
+     * @param procedure true if the address is the target of a call or a tailcall
+     */
+    public record Label(int address, boolean procedure) {
+        public String name() {
+            return (procedure ? ".proc_" : ".label_") + address;
+        }
+    }
+
+    /**
+     * @return the label table of a *.li file in ascending addresses, empty if the file has none.
+     */
+    public static List<Label> readLabels(String in) {
+        return LiFile.readLabels(map(in), in);
+    }
+
+    private static ByteBuffer map(String in) {
+        try (FileChannel channel = FileChannel.open(Path.of(in), StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
         } catch (IOException ioe) {
-            System.err.printf("ERROR: could not load *.li file %s. Cause: %s\n", in, ioe.getMessage());
-            ioe.printStackTrace();
-            System.exit(-1);
-            throw new RuntimeException(ioe);
+            throw new UncheckedIOException("could not load *.li file " + in + ". Cause: " + ioe.getMessage(), ioe);
         }
     }
 
+    /**
+     * @return a copy of the content of the data section.
+     */
+    public byte[] getDataSectionBytes() {
+        byte[] bytes = new byte[dataSection.capacity()];
+        dataSection.get(0, bytes);
+        return bytes;
+    }
+
     public static Program fromAsmFile(String filename) {
-        LasmParser parser = new LasmParser();
+        return fromAsmFile(filename, 0);
+    }
+
+    public static Program fromAsmFile(String filename, int optimizationLevel) {
+        LasmParser parser = new LasmParser(Optimizer.forLevel(optimizationLevel));
         return parser.fromAsmFile(filename);
     }
 }
@@ -0,0 +1,397 @@
+package ca.applin.livm.core;
+
+/**
+ * Register based translation of the code of a verified {@link Program}, built by the {@link RegisterTranslator} and
+ * run by {@link #execute(VirtualMachine, long)}.
+ * <p>
+ * The registers of a basic block are the slots of the operand stack, relative to the stack pointer at the entry of
+ * the block: register {@code -1} is the value on top of the stack when the block is entered, register {@code 0} the
+ * first slot above it. Values are not moved to the top of the stack to be used, each instruction names the
+ * registers it reads and the one it writes, and the stack pointer is only updated when the block is left.
+ * <p>
+ * The code is an array of instructions of {@link #STRIDE} ints: {@code op, dst, a, b, c}. {@code dst} is the
+ * register written, {@code a} and {@code b} the registers read, or for {@code *K} instructions {@code b} is an index
+ * in the constants. Branches use {@code dst} for the change of the stack pointer, {@code c} for the index of the
+ * target block, the next block being the fallthrough. Instructions that may trap use {@code c} for the index of
+ * their deoptimization record.
+ * <p>
+ * Traps are raised by the stack interpreter: when an instruction would trap, the stack is rebuilt as the stack
+ * interpreter would have it before the original instruction, from the deoptimization record of the instruction, and
+ * the machine goes back to the stack interpreter at that instruction, which raises the trap. The same is done for
+ * the instructions that are not translated, like {@code dump}.
+ */
+final class RegisterCode {
+    static final int STRIDE = 5;
+    static final int BLOCK_STRIDE = 4,
+                     BLOCK_START = 0,
+                     BLOCK_IP = 1,
+                     BLOCK_WEIGHT = 2,
+                     BLOCK_DEPTH = 3;
+
+    static final int MOVE     = 0,  // dst = a
+                     CONST    = 1,  // dst = constants[b]
+                     ADD      = 2,  // dst = a + b, a being the top of the stack in the original code
+                     ADDK     = 3,  // dst = a + constants[b]
+                     SUB      = 4,  // dst = a - b
+                     MUL      = 5,
+                     MULK     = 6,
+                     DIV      = 7,  // dst = a / b
+                     EQ       = 8,
+                     EQK      = 9,
+                     READ     = 10, // dst = mem[a]
+                     MOV      = 11, // mem[a] = b, b being an int
+                     STORE    = 12, // mem[a] = b
+                     FREE     = 13, // free a
+                     MEM      = 14, // dst = mem b
+                     NEW      = 15, // dst = new b
+                     TAG      = 16, // dst = tag a
+                     PRINT    = 17, // print a
+                     PRINTK   = 18, // print constants[b]
+                     ENTER    = 19, // enters a frame of b locals, the local 0 being the register dst
+                     LOCAL    = 20, // dst = local b
+                     SETLOCAL = 21, // local b = a
+
+                     // block terminators
+                     JMP      = 22,
+                     JNZ      = 23, // jump if a
+                     JEQ      = 24, // jump if a == b
+                     JEQK     = 25, // jump if a == constants[b]
+                     CALL     = 26, // pushes the return address a
+                     TAILCALL = 27, // leaves the frames of the procedure, a being the address of the call
+                     RET      = 28, // leaves the frames of the procedure and returns
+                     HALT     = 29, // halts at the address a
+                     EXIT     = 30; // goes back to the stack interpreter at the address a
+
+    private final int[] code;
+    private final long[] constants;
+    // deoptimization records: ip, depth, instructions retired in the block before ip, then the count and the
+    // (register, kind, value) of the slots that are not in their own register
+    private final int[] deopt;
+
+    // blocks of BLOCK_STRIDE ints, blocks are designated by their index in this array:
+    // BLOCK_START: index in code of the first instruction
+    // BLOCK_IP: address of the first instruction in the stack code
+    // BLOCK_WEIGHT: number of instructions of the stack code executed by the block
+    // BLOCK_DEPTH: number of stack slots used by the block above the stack pointer at its entry
+    private final int[] blocks;
+    // block starting at each address, -1 for addresses in the middle of a block. The last entry is the block of the
+    // end of the code
+    private final int[] blockAt;
+
+    RegisterCode(int[] code, long[] constants, int[] deopt, int[] blocks, int[] blockAt) {
+        this.code = code;
+        this.constants = constants;
+        this.deopt = deopt;
+        this.blocks = blocks;
+        this.blockAt = blockAt;
+    }
+
+    boolean isBlockStart(int ip) {
+        return blockAt[ip] >= 0;
+    }
+
+    /**
+     * Runs the machine from its instruction pointer, which must be the start of a block, until the machine halts,
+     * the code goes back to the stack interpreter, or the next block would go past the limit of retired
+     * instructions. The registers of the machine are up to date when it returns.
+     */
+    void execute(VirtualMachine vm, long limit) {
+        final int[] code = this.code;
+        final long[] constants = this.constants;
+        final int[] blocks = this.blocks;
+        long[] stack = vm.stack;
+        int[] returnStack = vm.returnStack;
+        int rsp = vm.rsp;
+        int bp = vm.sp;
+        // the frame pointer of the machine is kept up to date, it is only changed by enter and when leaving frames
+        int fp = vm.fp;
+        long retired = vm.retired;
+        int block = blockAt[vm.ip];
+
+        blocks: while (true) {
+            if (retired + blocks[block + BLOCK_WEIGHT] > limit) {
+                exit(vm, blocks[block + BLOCK_IP], bp, rsp, retired);
+                return;
+            }
+            while (bp + blocks[block + BLOCK_DEPTH] > stack.length) {
+                if (!vm.growStack()) {
+                    // the stack interpreter raises the overflow at the right instruction
+                    exit(vm, blocks[block + BLOCK_IP], bp, rsp, retired);
+                    return;
+                }
+                stack = vm.stack;
+            }
+            final long entryRetired = retired;
+            retired += blocks[block + BLOCK_WEIGHT];
+            int pc = blocks[block + BLOCK_START];
+
+            while (true) {
+                switch (code[pc]) {
+                    case MOVE -> stack[bp + code[pc + 1]] = stack[bp + code[pc + 2]];
+
+                    case CONST -> stack[bp + code[pc + 1]] = constants[code[pc + 3]];
+
+                    case ADD -> {
+                        long fst = stack[bp + code[pc + 2]];
+                        long snd = stack[bp + code[pc + 3]];
+                        long res;
+                        if (Value.areInts(fst, snd)) {
+                            res = fst + snd;
+                            if (Value.isOverflow(res)) {
+                                deoptimize(vm, stack, bp, rsp, code[pc + 4], entryRetired);
+                                return;
+                            }
+                        } else if (Value.isPointer(fst) && Value.isInt(snd)) {
+                            res = Value.pointer(Value.address(fst) + Value.toInt(snd));
+                        } else if (Value.isInt(fst) && Value.isPointer(snd)) {
+                            res = Value.pointer(Value.address(snd) + Value.toInt(fst));
+                        } else {
+                            deoptimize(vm, stack, bp, rsp, code[pc + 4], entryRetired);
+                            return;
+                        }
+                        stack[bp + code[pc + 1]] = res;
+                    }
+
+                    case ADDK -> {
+                        long fst = stack[bp + code[pc + 2]];
+                        long snd = constants[code[pc + 3]];
+                        long res;
+                        if (Value.areInts(fst, snd)) {
+                            res = fst + snd;
+                            if (Value.isOverflow(res)) {
+                                deoptimize(vm, stack, bp, rsp, code[pc + 4], entryRetired);
+                                return;
+                            }
+                        } else if (Value.isPointer(fst) && Value.isInt(snd)) {
+                            res = Value.pointer(Value.address(fst) + Value.toInt(snd));
+                        } else if (Value.isInt(fst) && Value.isPointer(snd)) {
+                            res = Value.pointer(Value.address(snd) + Value.toInt(fst));
+                        } else {
+                            deoptimize(vm, stack, bp, rsp, code[pc + 4], entryRetired);
+                            return;
+                        }
+                        stack[bp + code[pc + 1]] = res;
+                    }
+
+                    case SUB -> {
+                        long fst = stack[bp + code[pc + 2]];
+                        long snd = stack[bp + code[pc + 3]];
+                        if (Value.areInts(fst, snd)) {
+                            stack[bp + code[pc + 1]] = Value.fromInt(Value.toInt(fst) - Value.toInt(snd));
+                        } else if (Value.isPointer(fst) && Value.isInt(snd)) {
+                            stack[bp + code[pc + 1]] = Value.pointer(Value.address(fst) - Value.toInt(snd));
+                        } else {
+                            deoptimize(vm, stack, bp, rsp, code[pc + 4], entryRetired);
+                            return;
+                        }
+                    }
+
+                    case MUL -> {
+                        long fst = stack[bp + code[pc + 2]];
+                        long snd = stack[bp + code[pc + 3]];
+                        if (!Value.areInts(fst, snd)) {
+                            deoptimize(vm, stack, bp, rsp, code[pc + 4], entryRetired);
+                            return;
+                        }
+                        stack[bp + code[pc + 1]] = Value.fromInt(Value.toInt(fst) * Value.toInt(snd));
+                    }
+
+                    case MULK -> {
+                        long fst = stack[bp + code[pc + 2]];
+                        long snd = constants[code[pc + 3]];
+                        if (!Value.areInts(fst, snd)) {
+                            deoptimize(vm, stack, bp, rsp, code[pc + 4], entryRetired);
+                            return;
+                        }
+                        stack[bp + code[pc + 1]] = Value.fromInt(Value.toInt(fst) * Value.toInt(snd));
+                    }
+
+                    case DIV -> {
+                        long fst = stack[bp + code[pc + 2]];
+                        long snd = stack[bp + code[pc + 3]];
+                        if (!Value.areInts(fst, snd) || snd == Value.FALSE) {
+                            deoptimize(vm, stack, bp, rsp, code[pc + 4], entryRetired);
+                            return;
+                        }
+                        stack[bp + code[pc + 1]] = Value.fromInt(Value.toInt(fst) / Value.toInt(snd));
+                    }
+
+                    case EQ -> stack[bp + code[pc + 1]] =
+                            stack[bp + code[pc + 2]] == stack[bp + code[pc + 3]] ? Value.TRUE : Value.FALSE;
+
+                    case EQK -> stack[bp + code[pc + 1]] =
+                            stack[bp + code[pc + 2]] == constants[code[pc + 3]] ? Value.TRUE : Value.FALSE;
+
+                    case READ -> {
+                        long pointer = stack[bp + code[pc + 2]];
+                        Heap heap = vm.heap();
+                        if (!Value.isPointer(pointer) || !heap.isValidWord(Value.address(pointer))) {
+                            deoptimize(vm, stack, bp, rsp, code[pc + 4], entryRetired);
+                            return;
+                        }
+                        stack[bp + code[pc + 1]] = heap.getWord(Value.address(pointer));
+                    }
+
+                    case MOV, STORE -> {
+                        long pointer = stack[bp + code[pc + 2]];
+                        Heap heap = vm.heap();
+                        if (!Value.isPointer(pointer) || !heap.isValidWord(Value.address(pointer))) {
+                            deoptimize(vm, stack, bp, rsp, code[pc + 4], entryRetired);
+                            return;
+                        }
+                        heap.putWord(Value.address(pointer),
+                                code[pc] == MOV ? Value.fromInt(code[pc + 3]) : stack[bp + code[pc + 3]]);
+                    }
+
+                    case FREE -> {
+                        long pointer = stack[bp + code[pc + 2]];
+                        if (!Value.isPointer(pointer) || !vm.heap().free(Value.address(pointer))) {
+                            deoptimize(vm, stack, bp, rsp, code[pc + 4], entryRetired);
+                            return;
+                        }
+                    }
+
+                    case MEM, NEW -> {
+                        // the stack holds every live value here, the collector finds its roots below the result
+                        int addr = code[pc] == MEM
+                                ? vm.heap().allocate(code[pc + 3])
+                                : vm.heap().allocateObject(code[pc + 3], stack, bp + code[pc + 1]);
+                        if (addr == 0) {
+                            deoptimize(vm, stack, bp, rsp, code[pc + 4], entryRetired);
+                            return;
+                        }
+                        stack[bp + code[pc + 1]] = Value.pointer(addr);
+                    }
+
+                    case TAG -> stack[bp + code[pc + 1]] = Value.fromInt(Value.typeOf(stack[bp + code[pc + 2]]));
+
+                    case PRINT -> vm.print(stack[bp + code[pc + 2]]);
+
+                    case PRINTK -> vm.print(constants[code[pc + 3]]);
+
+                    case ENTER -> {
+                        if (rsp + 2 > returnStack.length) {
+                            vm.rsp = rsp;
+                            if (!vm.growReturnStack()) {
+                                deoptimize(vm, stack, bp, rsp, code[pc + 4], entryRetired);
+                                return;
+                            }
+                            returnStack = vm.returnStack;
+                        }
+                        returnStack[rsp++] = fp;
+                        returnStack[rsp++] = ~code[pc + 2];
+                        fp = bp + code[pc + 1];
+                        vm.fp = fp;
+                    }
+
+                    case LOCAL -> stack[bp + code[pc + 1]] = stack[fp + code[pc + 3]];
+
+                    case SETLOCAL -> stack[fp + code[pc + 3]] = stack[bp + code[pc + 2]];
+
+                    case JMP -> {
+                        bp += code[pc + 1];
+                        block = code[pc + 4];
+                        continue blocks;
+                    }
+
+                    case TAILCALL -> {
+                        bp += code[pc + 1];
+                        if (rsp == 0) {
+                            // call x; ret in the main code, a plain call for the stack interpreter
+                            exit(vm, code[pc + 2], bp, rsp, retired - 1);
+                            return;
+                        }
+                        if (returnStack[rsp - 1] < 0) {
+                            vm.sp = bp;
+                            vm.rsp = rsp;
+                            vm.leaveFrames();
+                            bp = vm.sp;
+                            rsp = vm.rsp;
+                            fp = vm.fp;
+                        }
+                        block = code[pc + 4];
+                        continue blocks;
+                    }
+
+                    case JNZ -> {
+                        boolean taken = Value.isTrue(stack[bp + code[pc + 2]]);
+                        bp += code[pc + 1];
+                        block = taken ? code[pc + 4] : block + BLOCK_STRIDE;
+                        continue blocks;
+                    }
+
+                    case JEQ, JEQK -> {
+                        long snd = code[pc] == JEQ ? stack[bp + code[pc + 3]] : constants[code[pc + 3]];
+                        boolean taken = stack[bp + code[pc + 2]] == snd;
+                        bp += code[pc + 1];
+                        block = taken ? code[pc + 4] : block + BLOCK_STRIDE;
+                        continue blocks;
+                    }
+
+                    case CALL -> {
+                        if (rsp == returnStack.length) {
+                            vm.rsp = rsp;
+                            if (!vm.growReturnStack()) {
+                                exit(vm, code[pc + 2], bp + code[pc + 1], rsp, retired - 1);
+                                return;
+                            }
+                            returnStack = vm.returnStack;
+                        }
+                        returnStack[rsp++] = code[pc + 2];
+                        bp += code[pc + 1];
+                        block = code[pc + 4];
+                        continue blocks;
+                    }
+
+                    case RET -> {
+                        bp += code[pc + 1];
+                        if (returnStack[rsp - 1] < 0) {
+                            vm.sp = bp;
+                            vm.rsp = rsp;
+                            vm.leaveFrames();
+                            bp = vm.sp;
+                            rsp = vm.rsp;
+                            fp = vm.fp;
+                        }
+                        block = blockAt[returnStack[--rsp] + 1];
+                        continue blocks;
+                    }
+
+                    case HALT -> {
+                        vm.halt = true;
+                        exit(vm, code[pc + 2], bp + code[pc + 1], rsp, retired);
+                        return;
+                    }
+
+                    case EXIT -> {
+                        exit(vm, code[pc + 2], bp + code[pc + 1], rsp, retired);
+                        return;
+                    }
+
+                    default -> throw new IllegalStateException("Unknown register instruction " + code[pc]);
+                }
+                pc += STRIDE;
+            }
+        }
+    }
+
+    private static void exit(VirtualMachine vm, int ip, int sp, int rsp, long retired) {
+        vm.ip = ip;
+        vm.sp = sp;
+        vm.rsp = rsp;
+        vm.retired = retired;
+    }
+
+    // rebuilds the stack as it is before the instruction of the record in the stack interpreter. The slots that are
+    // not in their own register are copies of registers nothing writes to before them, so the order does not matter
+    private void deoptimize(VirtualMachine vm, long[] stack, int bp, int rsp, int record, long entryRetired) {
+        int count = deopt[record + 3];
+        for (int i = 0; i < count; i++) {
+            int at = record + 4 + 3 * i;
+            stack[bp + deopt[at]] = deopt[at + 1] == RegisterTranslator.REG
+                    ? stack[bp + deopt[at + 2]]
+                    : constants[deopt[at + 2]];
+        }
+        exit(vm, deopt[record], bp + deopt[record + 1], rsp, entryRetired + deopt[record + 2]);
+    }
+}
@@ -0,0 +1,491 @@
+package ca.applin.livm.core;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static ca.applin.livm.core.RegisterCode.*;
+
+/**
+ * Translates the stack code of a verified {@link Program} to {@link RegisterCode}, one basic block at a time.
+ * <p>
+ * The translator runs each block on an abstract stack, where each slot is either in its own register (the slot of
+ * the stack at the same position), a copy of another register, or a constant. {@code push}, {@code nil},
+ * {@code sym} and {@code load} push constants and {@code dup} pushes copies, without emitting any instruction: the
+ * instructions using those slots read the copied register or the constant directly (copy propagation). The result
+ * of an instruction is written in the register of the slot it is pushed to.
+ * <p>
+ * A slot is only a copy of a register below it, and that register is not written while the copy is on the stack, so
+ * the copies and constants can be written to their own register in any order. This is done when leaving the block,
+ * so the blocks are entered with every slot in its own register, and before {@code mem} and {@code new}, so the
+ * collector finds every root on the stack.
+ * <p>
+ * The code must be verified: the registers below the entry of a block are read without checking the depth of the
+ * stack.
+ */
+final class RegisterTranslator {
+    // kinds of the slots of the abstract stack
+    static final int SELF = 0,
+                     REG = 1,
+                     CONST_KIND = 2;
+
+    private final int[] opcodes;
+    private final int[] operands;
+    private final int size;
+    private final ByteBuffer data;
+
+    private int[] code = new int[64 * STRIDE];
+    private int pc;
+    // pc of the first instruction of the current block
+    private int blockPc;
+    private long[] constants = new long[16];
+    private int constantCount;
+    private final Map<Long, Integer> constantIndex = new HashMap<>();
+    private int[] deopt = new int[64];
+    private int deoptSize;
+
+    // abstract stack of the current block, the slot at position p is at index p + base
+    private int[] kinds;
+    private int[] values;
+    private int base;
+    private int depth;
+    // lowest position popped by the block, the slots below are all in their own register
+    private int floor;
+    private int maxDepth;
+    // instructions of the original code executed so far by the block
+    private int weight;
+
+    RegisterTranslator(Program program) {
+        this.opcodes = program.opcodes();
+        this.operands = program.operands();
+        this.size = opcodes.length;
+        this.data = program.dataSection();
+    }
+
+    RegisterCode translate() {
+        boolean[] leaders = findLeaders();
+        int[] blockAt = new int[size + 1];
+        int blocks = 0;
+        int longest = 0;
+        int previous = 0;
+        for (int ip = 0; ip <= size; ip++) {
+            if (leaders[ip]) {
+                longest = Math.max(longest, ip - previous);
+                previous = ip;
+                blockAt[ip] = BLOCK_STRIDE * blocks++;
+            } else {
+                blockAt[ip] = -1;
+            }
+        }
+        // a block pops at most two values per instruction and pushes at most two
+        base = 2 * longest + 2;
+        kinds = new int[2 * base + 2];
+        values = new int[2 * base + 2];
+        int[] blockTable = new int[BLOCK_STRIDE * blocks];
+        for (int ip = 0; ip <= size; ip++) {
+            int block = blockAt[ip];
+            if (block < 0) {
+                continue;
+            }
+            blockTable[block + BLOCK_START] = pc * STRIDE;
+            blockTable[block + BLOCK_IP] = ip;
+            if (ip == size) {
+                // the end of the code halts the machine, done by the stack interpreter
+                weight = 0;
+                maxDepth = 0;
+                emit(EXIT, 0, size, 0, 0);
+            } else {
+                translateBlock(ip, leaders, blockAt);
+            }
+            blockTable[block + BLOCK_WEIGHT] = weight;
+            blockTable[block + BLOCK_DEPTH] = maxDepth;
+        }
+        return new RegisterCode(Arrays.copyOf(code, pc * STRIDE), Arrays.copyOf(constants, constantCount),
+                Arrays.copyOf(deopt, deoptSize), blockTable, blockAt);
+    }
+
+    private boolean[] findLeaders() {
+        boolean[] leaders = new boolean[size + 1];
+        leaders[0] = true;
+        leaders[size] = true;
+        for (int ip = 0; ip < size; ip++) {
+            switch (opcodes[ip]) {
+                // the target of a spawn is where a task starts, its first block
+                case Opcodes.JMP, Opcodes.JNZ, Opcodes.JEQ, Opcodes.CALL, Opcodes.TAILCALL, Opcodes.SPAWN -> {
+                    int target = operands[ip];
+                    if (target >= 0 && target <= size) {
+                        leaders[target] = true;
+                    }
+                    leaders[ip + 1] = true;
+                }
+                case Opcodes.RET, Opcodes.HALT -> leaders[ip + 1] = true;
+                default -> {
+                    if (!isTranslated(ip)) {
+                        leaders[ip + 1] = true;
+                    }
+                }
+            }
+        }
+        return leaders;
+    }
+
+    // instructions left to the stack interpreter, which ends the block
+    private boolean isTranslated(int ip) {
+        return switch (opcodes[ip]) {
+            case Opcodes.NOP, Opcodes.PUSH, Opcodes.NIL, Opcodes.SYM, Opcodes.ADD, Opcodes.SUB, Opcodes.MUL,
+                    Opcodes.DIV, Opcodes.EQ, Opcodes.ADDI, Opcodes.DUP2, Opcodes.READ, Opcodes.MOV, Opcodes.STORE,
+                    Opcodes.FREE, Opcodes.MEM, Opcodes.NEW, Opcodes.TAG, Opcodes.PRINT, Opcodes.ENTER,
+                    Opcodes.LOAD_LOCAL, Opcodes.STORE_LOCAL -> true;
+            case Opcodes.LOAD -> operands[ip] >= 0 && operands[ip] <= data.capacity() - Integer.BYTES;
+            case Opcodes.DUP -> operands[ip] >= 0;
+            default -> false;
+        };
+    }
+
+    private void translateBlock(int start, boolean[] leaders, int[] blockAt) {
+        // only the slots used by the previous block need to be reset
+        for (int position = floor; position < maxDepth; position++) {
+            kinds[position + base] = SELF;
+        }
+        depth = 0;
+        floor = 0;
+        maxDepth = 0;
+        weight = 0;
+        blockPc = pc;
+        for (int ip = start; ip < size; ip++) {
+            if (ip > start && leaders[ip]) {
+                // falls through to the next block
+                materialize();
+                emit(JMP, depth, 0, 0, blockAt[ip]);
+                return;
+            }
+            int operand = operands[ip];
+            if (isBranch(opcodes[ip]) && (operand < 0 || operand > size)) {
+                // never executed by a verified programm, the stack interpreter raises the trap
+                exit(ip);
+                return;
+            }
+            switch (opcodes[ip]) {
+                case Opcodes.NOP -> { }
+                case Opcodes.PUSH -> pushConstant(Value.fromInt(operand));
+                case Opcodes.NIL -> pushConstant(Value.NIL);
+                case Opcodes.SYM -> pushConstant(Value.symbol(operand));
+                // the data section is read only
+                case Opcodes.LOAD -> {
+                    if (!isTranslated(ip)) {
+                        exit(ip);
+                        return;
+                    }
+                    pushConstant(Value.fromInt(data.getInt(operand)));
+                }
+                case Opcodes.DUP -> {
+                    if (!isTranslated(ip)) {
+                        exit(ip);
+                        return;
+                    }
+                    pushCopy(depth - 1 - operand);
+                }
+                case Opcodes.DUP2 -> {
+                    int below = depth - 2;
+                    pushCopy(below);
+                    pushCopy(below + 1);
+                }
+                case Opcodes.ADD -> commutative(ip, ADD, ADDK);
+                case Opcodes.MUL -> commutative(ip, MUL, MULK);
+                case Opcodes.EQ -> commutative(ip, EQ, EQK);
+                case Opcodes.SUB, Opcodes.DIV -> {
+                    int record = record(ip);
+                    int fst = register(depth - 1);
+                    int snd = register(depth - 2);
+                    depth -= 2;
+                    emit(opcodes[ip] == Opcodes.SUB ? SUB : DIV, depth, fst, snd, record);
+                    pushResult();
+                }
+                case Opcodes.ADDI -> {
+                    int record = record(ip);
+                    int value = register(depth - 1);
+                    depth--;
+                    emit(ADDK, depth, value, constant(Value.fromInt(operand)), record);
+                    pushResult();
+                }
+                case Opcodes.READ, Opcodes.TAG -> {
+                    int record = opcodes[ip] == Opcodes.READ ? record(ip) : 0;
+                    int value = register(depth - 1);
+                    depth--;
+                    emit(opcodes[ip] == Opcodes.READ ? READ : TAG, depth, value, 0, record);
+                    pushResult();
+                }
+                case Opcodes.MOV, Opcodes.FREE -> {
+                    int record = record(ip);
+                    int pointer = register(depth - 1);
+                    depth--;
+                    emit(opcodes[ip] == Opcodes.MOV ? MOV : FREE, 0, pointer, operand, record);
+                }
+                case Opcodes.STORE -> {
+                    int record = record(ip);
+                    int pointer = register(depth - 1);
+                    int value = register(depth - 2);
+                    depth -= 2;
+                    emit(STORE, 0, pointer, value, record);
+                }
+                case Opcodes.MEM, Opcodes.NEW -> {
+                    materialize();
+                    int record = record(ip);
+                    emit(opcodes[ip] == Opcodes.MEM ? MEM : NEW, depth, 0, operand, record);
+                    pushResult();
+                }
+                // the locals are never copies: the frame is entered with every slot in its own register, and the code
+                // is verified, it does not dup or pop the locals
+                case Opcodes.ENTER -> {
+                    materialize();
+                    int record = record(ip);
+                    emit(ENTER, depth - operand, operand, 0, record);
+                }
+                case Opcodes.LOAD_LOCAL -> {
+                    emit(LOCAL, depth, 0, operand, 0);
+                    pushResult();
+                }
+                case Opcodes.STORE_LOCAL -> {
+                    int value = register(depth - 1);
+                    depth--;
+                    emit(SETLOCAL, 0, value, operand, 0);
+                }
+                case Opcodes.PRINT -> {
+                    depth--;
+                    if (kindOf(depth) == CONST_KIND) {
+                        emit(PRINTK, 0, 0, valueOf(depth), 0);
+                    } else {
+                        emit(PRINT, 0, sourceRegister(depth), 0, 0);
+                    }
+                }
+                case Opcodes.JMP -> {
+                    weight++;
+                    branch(JMP, 0, 0, operand, blockAt);
+                    return;
+                }
+                case Opcodes.JNZ -> {
+                    weight++;
+                    depth--;
+                    if (kindOf(depth) == CONST_KIND) {
+                        // known condition
+                        boolean taken = Value.isTrue(constants[valueOf(depth)]);
+                        branch(JMP, 0, 0, taken ? operand : ip + 1, blockAt);
+                    } else if (kindOf(depth) == SELF && pc > blockPc && (lastOp() == EQ || lastOp() == EQK)
+                            && code[(pc - 1) * STRIDE + 1] == depth) {
+                        // eq; jnz: the result of eq is only used by the branch, compared and branched at once
+                        pc--;
+                        int at = pc * STRIDE;
+                        branch(code[at] == EQ ? JEQ : JEQK, code[at + 2], code[at + 3], operand, blockAt);
+                    } else {
+                        branch(JNZ, sourceRegister(depth), 0, operand, blockAt);
+                    }
+                    return;
+                }
+                case Opcodes.JEQ -> {
+                    weight++;
+                    depth -= 2;
+                    int fst = depth + 1;
+                    int snd = depth;
+                    if (kindOf(fst) == CONST_KIND && kindOf(snd) == CONST_KIND) {
+                        boolean taken = constants[valueOf(fst)] == constants[valueOf(snd)];
+                        branch(JMP, 0, 0, taken ? operand : ip + 1, blockAt);
+                    } else if (kindOf(fst) == CONST_KIND) {
+                        branch(JEQK, sourceRegister(snd), valueOf(fst), operand, blockAt);
+                    } else if (kindOf(snd) == CONST_KIND) {
+                        branch(JEQK, sourceRegister(fst), valueOf(snd), operand, blockAt);
+                    } else {
+                        branch(JEQ, sourceRegister(fst), sourceRegister(snd), operand, blockAt);
+                    }
+                    return;
+                }
+                case Opcodes.CALL, Opcodes.TAILCALL -> {
+                    weight++;
+                    // call x; ret runs as tailcall x, as on the stack interpreter
+                    boolean tail = opcodes[ip] == Opcodes.TAILCALL || ip + 1 < size && opcodes[ip + 1] == Opcodes.RET;
+                    branch(tail ? TAILCALL : CALL, ip, 0, operand, blockAt);
+                    return;
+                }
+                case Opcodes.RET -> {
+                    weight++;
+                    materialize();
+                    emit(RET, depth, 0, 0, 0);
+                    return;
+                }
+                case Opcodes.HALT -> {
+                    weight++;
+                    materialize();
+                    emit(HALT, depth, ip, 0, 0);
+                    return;
+                }
+                default -> {
+                    exit(ip);
+                    return;
+                }
+            }
+            weight++;
+        }
+        // last block of the code, falls through to its end
+        materialize();
+        emit(JMP, depth, 0, 0, blockAt[size]);
+    }
+
+    // add, mul and eq give the same result with their operands swapped, a constant operand is read in place
+    private void commutative(int ip, int op, int opWithConstant) {
+        int record = record(ip);
+        int fst = depth - 1;
+        int snd = depth - 2;
+        if (kindOf(fst) == CONST_KIND && kindOf(snd) != CONST_KIND) {
+            depth -= 2;
+            emit(opWithConstant, depth, sourceRegister(snd), valueOf(fst), record);
+        } else if (kindOf(snd) == CONST_KIND && kindOf(fst) != CONST_KIND) {
+            depth -= 2;
+            emit(opWithConstant, depth, sourceRegister(fst), valueOf(snd), record);
+        } else {
+            int a = register(fst);
+            int b = register(snd);
+            depth -= 2;
+            emit(op, depth, a, b, record);
+        }
+        pushResult();
+    }
+
+    private static boolean isBranch(int opcode) {
+        return opcode == Opcodes.JMP || opcode == Opcodes.JNZ || opcode == Opcodes.JEQ
+                || opcode == Opcodes.CALL || opcode == Opcodes.TAILCALL;
+    }
+
+    // ends the block with a branch, the registers of the condition are read after the slots are materialized
+    private void branch(int op, int a, int b, int target, int[] blockAt) {
+        materialize();
+        emit(op, depth, a, b, blockAt[target]);
+    }
+
+    // leaves the instruction at ip to the stack interpreter
+    private void exit(int ip) {
+        materialize();
+        emit(EXIT, depth, ip, 0, 0);
+    }
+
+    private void pushConstant(long value) {
+        set(depth, CONST_KIND, constant(value));
+        push();
+    }
+
+    private void pushCopy(int position) {
+        if (kindOf(position) == SELF) {
+            set(depth, REG, position);
+        } else {
+            set(depth, kindOf(position), valueOf(position));
+        }
+        push();
+    }
+
+    private void pushResult() {
+        set(depth, SELF, 0);
+        push();
+    }
+
+    private void push() {
+        depth++;
+        maxDepth = Math.max(maxDepth, depth);
+    }
+
+    // register holding the slot at position, constants are first written to the register of their slot
+    private int register(int position) {
+        if (kindOf(position) == CONST_KIND) {
+            emit(CONST, position, 0, valueOf(position), 0);
+            set(position, SELF, 0);
+        }
+        return sourceRegister(position);
+    }
+
+    private int sourceRegister(int position) {
+        return kindOf(position) == SELF ? position : valueOf(position);
+    }
+
+    private void materialize() {
+        for (int position = floor; position < depth; position++) {
+            switch (kindOf(position)) {
+                case REG -> emit(MOVE, position, valueOf(position), 0, 0);
+                case CONST_KIND -> emit(CONST, position, 0, valueOf(position), 0);
+                default -> { }
+            }
+            set(position, SELF, 0);
+        }
+    }
+
+    // records the stack of the stack interpreter before the instruction at ip, in case it traps
+    private int record(int ip) {
+        int record = deoptSize;
+        int count = 0;
+        ensureDeopt(4 + 3 * Math.max(0, depth - floor));
+        deopt[deoptSize++] = ip;
+        deopt[deoptSize++] = depth;
+        deopt[deoptSize++] = weight;
+        int countAt = deoptSize++;
+        for (int position = floor; position < depth; position++) {
+            if (kindOf(position) != SELF) {
+                deopt[deoptSize++] = position;
+                deopt[deoptSize++] = kindOf(position);
+                deopt[deoptSize++] = valueOf(position);
+                count++;
+            }
+        }
+        deopt[countAt] = count;
+        return record;
+    }
+
+    private void ensureDeopt(int more) {
+        if (deoptSize + more > deopt.length) {
+            deopt = Arrays.copyOf(deopt, Math.max(deopt.length * 2, deoptSize + more));
+        }
+    }
+
+    // positions below the floor were not touched by the block, they are in their own register
+    private int kindOf(int position) {
+        return position < floor ? SELF : kinds[position + base];
+    }
+
+    private int valueOf(int position) {
+        return values[position + base];
+    }
+
+    private void set(int position, int kind, int value) {
+        if (position < floor) {
+            floor = position;
+        }
+        kinds[position + base] = kind;
+        values[position + base] = value;
+    }
+
+    private int constant(long value) {
+        Integer index = constantIndex.get(value);
+        if (index != null) {
+            return index;
+        }
+        if (constantCount == constants.length) {
+            constants = Arrays.copyOf(constants, constantCount * 2);
+        }
+        constants[constantCount] = value;
+        constantIndex.put(value, constantCount);
+        return constantCount++;
+    }
+
+    private int lastOp() {
+        return code[(pc - 1) * STRIDE];
+    }
+
+    private void emit(int op, int dst, int a, int b, int c) {
+        if ((pc + 1) * STRIDE > code.length) {
+            code = Arrays.copyOf(code, code.length * 2);
+        }
+        int at = pc * STRIDE;
+        code[at] = op;
+        code[at + 1] = dst;
+        code[at + 2] = a;
+        code[at + 3] = b;
+        code[at + 4] = c;
+        pc++;
+    }
+}
@@ -0,0 +1,308 @@
+package ca.applin.livm.core;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs the tasks of a programm, the machines started by {@code spawn}, M:N on a {@link ForkJoinPool} of carrier
+ * threads.
+ * <p>
+ * A task is a {@link VirtualMachine} of its own, with its ip, its stacks and its heap, sharing the programm, the jit
+ * and the output of the machine which spawned it. Values are moved between tasks, never shared: {@code spawn}
+ * refuses pointers, so no heap is ever used by two threads.
+ * <p>
+ * Tasks run in slices of at most {@link Parameters#taskSlice} instructions, a slice ends early on {@code yield}.
+ * The next slice of a task is forked to the queue of the carrier running it, queues are FIFO so the tasks of a
+ * carrier take turns, and idle carriers steal the slices queued by the busy ones. A task spawned runs on the
+ * carrier of its parent until it is stolen.
+ * <p>
+ * A task blocked by a send to a full {@link Channel} or a receive from an empty one is parked: its slice ends on the
+ * instruction, it is queued in the waiters of the channel, and its carrier goes on with the other tasks. The next
+ * task receiving from or sending to the channel wakes it, and it runs the instruction again.
+ * <p>
+ * The programm ends once every task halted, or as soon as one raises a trap: the other tasks stop at the end of
+ * their slice. Once every task left is parked, none of them can ever be woken, it ends with a {@code TASK_ERROR}.
+ */
+final class Scheduler {
+    // one live task in the count of tasks
+    private static final long LIVE = 1L << 32;
+
+    private final ForkJoinPool pool;
+    private final int slice;
+    private final AtomicInteger ids = new AtomicInteger();
+    // the tasks spawned and not halted yet in the high 32 bits, the tasks parked on a channel in the low 32 bits, in
+    // a single word so that "every task left is parked" is tested on one snapshot of both, see Waiter
+    private final AtomicLong tasks = new AtomicLong();
+    private final CountDownLatch done = new CountDownLatch(1);
+    // first task which raised a trap or threw, with its trap or its exception
+    private final AtomicReference<VirtualMachine> failed = new AtomicReference<>();
+    private volatile Trap trap = Trap.OK;
+    private volatile Throwable error;
+    private Channels channels;
+
+    Scheduler(int carriers, int slice) {
+        // asyncMode: the queues of the carriers are FIFO
+        this.pool = new ForkJoinPool(Math.max(1, carriers), ForkJoinPool.defaultForkJoinWorkerThreadFactory, null,
+                true);
+        this.slice = Math.max(1, slice);
+    }
+
+    /**
+     * Runs main and every task it spawns, until they all halt or one raises a trap.
+     * @return the trap raised, see {@link #failed()} for the task which raised it
+     */
+    Trap run(VirtualMachine main) {
+        main.scheduler = this;
+        channels = main.channels();
+        tasks.addAndGet(LIVE);
+        pool.execute(ForkJoinTask.adapt(() -> runSlice(main)));
+        awaitUninterruptibly(done);
+        // the slices still queued see the failure, flush their task and stop
+        pool.shutdown();
+        boolean interrupted = false;
+        while (!pool.isTerminated()) {
+            try {
+                pool.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (failed.get() != null) {
+            flushParked();
+        }
+        if (error instanceof RuntimeException e) {
+            throw e;
+        }
+        if (error instanceof Error e) {
+            throw e;
+        }
+        return trap;
+    }
+
+    /**
+     * @return the task which raised the trap returned by {@link #run(VirtualMachine)}, null if none did.
+     */
+    VirtualMachine failed() {
+        return failed.get();
+    }
+
+    int liveTasks() {
+        return live(tasks.get());
+    }
+
+    int nextTaskId() {
+        return ids.incrementAndGet();
+    }
+
+    /**
+     * Schedules a new task, called by its parent while it runs on a carrier.
+     */
+    void spawn(VirtualMachine task) {
+        tasks.addAndGet(LIVE);
+        schedule(task);
+    }
+
+    /**
+     * Wakes the first task parked in the waiters of a channel, called by a task which just sent to the channel or
+     * received from it. Waiters already woken are dropped.
+     */
+    void wake(Queue<Waiter> waiters) {
+        Waiter waiter;
+        while ((waiter = waiters.poll()) != null) {
+            for (int state = waiter.state(); state != Waiter.WOKEN; state = waiter.state()) {
+                if (waiter.transition(state, Waiter.WOKEN)) {
+                    if (state == Waiter.PARKED) {
+                        tasks.decrementAndGet();
+                    }
+                    schedule(waiter.task);
+                    return;
+                }
+            }
+        }
+    }
+
+    private void schedule(VirtualMachine task) {
+        ForkJoinTask<?> next = ForkJoinTask.adapt(() -> runSlice(task));
+        try {
+            if (Thread.currentThread() instanceof ForkJoinWorkerThread carrier && carrier.getPool() == pool) {
+                next.fork();
+            } else {
+                pool.execute(next);
+            }
+        } catch (RejectedExecutionException e) {
+            // the programm already stopped
+            task.flushOutput();
+        }
+    }
+
+    private void runSlice(VirtualMachine task) {
+        if (failed.get() != null) {
+            task.flushOutput();
+            return;
+        }
+        Trap result;
+        try {
+            result = task.run(slice);
+        } catch (RuntimeException | Error e) {
+            fail(task, Trap.OK, e);
+            return;
+        }
+        if (result != Trap.OK) {
+            fail(task, result, null);
+        } else if (task.isHalted()) {
+            long remaining = tasks.addAndGet(-LIVE);
+            if (live(remaining) == 0) {
+                done.countDown();
+            } else if (parked(remaining) == live(remaining)) {
+                deadlock(null);
+            }
+        } else if (failed.get() != null) {
+            task.flushOutput();
+        } else if (task.blockedOn != null) {
+            park(task);
+        } else {
+            // the slice is over or the task yielded
+            schedule(task);
+        }
+    }
+
+    private void park(VirtualMachine task) {
+        Channel channel = task.blockedOn;
+        boolean sending = task.blockedSending;
+        task.blockedOn = null;
+        Waiter waiter = new Waiter(task);
+        (sending ? channel.senders : channel.receivers).offer(waiter);
+        // the send or the receive which would have woken the task may have happened before it was queued
+        if (sending ? !channel.isFull() : !channel.isEmpty()) {
+            if (waiter.transition(Waiter.QUEUED, Waiter.WOKEN)) {
+                schedule(task);
+            }
+            return;
+        }
+        if (waiter.transition(Waiter.QUEUED, Waiter.PARKED)) {
+            long now = tasks.incrementAndGet();
+            if (parked(now) == live(now)) {
+                deadlock(waiter);
+            }
+        }
+    }
+
+    // every task left is parked, the error is reported on a parked task, the waiter given or any other
+    private void deadlock(Waiter waiter) {
+        if (waiter == null) {
+            for (Channel channel : channels.all()) {
+                for (Waiter receiver : channel.receivers) {
+                    waiter = receiver.state() == Waiter.PARKED ? receiver : waiter;
+                }
+                for (Waiter sender : channel.senders) {
+                    waiter = sender.state() == Waiter.PARKED ? sender : waiter;
+                }
+            }
+        }
+        // a task still parked once the count said so stays parked, none is left to wake it
+        if (waiter != null && waiter.state() == Waiter.PARKED) {
+            fail(waiter.task, Trap.TASK_ERROR, null);
+        }
+    }
+
+    // the output of the tasks parked when the programm stopped, no slice of theirs will flush it
+    private void flushParked() {
+        for (Channel channel : channels.all()) {
+            for (Waiter waiter : channel.receivers) {
+                if (waiter.state() != Waiter.WOKEN) {
+                    waiter.task.flushOutput();
+                }
+            }
+            for (Waiter waiter : channel.senders) {
+                if (waiter.state() != Waiter.WOKEN) {
+                    waiter.task.flushOutput();
+                }
+            }
+        }
+    }
+
+    private void fail(VirtualMachine task, Trap trap, Throwable error) {
+        if (failed.compareAndSet(null, task)) {
+            this.trap = trap;
+            this.error = error;
+        }
+        done.countDown();
+    }
+
+    private static int live(long tasks) {
+        // the parked tasks are decremented by wake before they were counted by park at times, borrowing from the
+        // live tasks: the low half is signed
+        return (int) ((tasks - parked(tasks)) >> 32);
+    }
+
+    private static int parked(long tasks) {
+        return (int) tasks;
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A task in the waiters of a channel, a new one each time the task parks. It is {@code QUEUED} until the task
+     * checked the channel once more, then {@code PARKED} and counted as such, and {@code WOKEN} by the first task
+     * which takes it from the waiters, or by the task itself if the channel was ready when checked.
+     * <p>
+     * A task is counted after it became {@code PARKED}, and uncounted after it was {@code WOKEN}, by a task still
+     * running: the count of parked tasks only reaches the count of live tasks once no task runs or can be run.
+     */
+    static final class Waiter {
+        static final int QUEUED = 0,
+                         PARKED = 1,
+                         WOKEN = 2;
+
+        private static final VarHandle STATE;
+
+        static {
+            try {
+                STATE = MethodHandles.lookup().findVarHandle(Waiter.class, "state", int.class);
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        final VirtualMachine task;
+        private volatile int state = QUEUED;
+
+        Waiter(VirtualMachine task) {
+            this.task = task;
+        }
+
+        int state() {
+            return state;
+        }
+
+        boolean transition(int from, int to) {
+            return STATE.compareAndSet(this, from, to);
+        }
+    }
+}
@@ -8,5 +8,12 @@ public enum Trap {
     ARITHMETIC_OVERFLOW,
     ILLEGAL_INSTR_ACCESS,
     ILLEGAL_MEMORY_ACCESS,
-    OUT_OF_MEMORY
+    OUT_OF_MEMORY,
+    // an instruction got a value of the wrong type, ie a pointer to mul or an int to read
+    TYPE_ERROR,
+    // a break instruction was reached, the instruction pointer is left on it
+    BREAKPOINT,
+    // a spawn on a machine not run by a Scheduler (debugger, profiler), a snapshot while other tasks run or channels
+    // exist, a send or a recv blocking outside of a Scheduler, or every task left parked on a channel
+    TASK_ERROR
 }
@@ -0,0 +1,98 @@
+package ca.applin.livm.core;
+
+/**
+ * The tagged 64 bits values held by the operand stack and the words of the heap. The low bits of a value tell its
+ * type, so values never need to be boxed:
+ * <pre>
+ *     ...xxxxxxxx0  int      the 32 bits int is stored shifted left by 1
+ *     ...xxxxx001  pointer  address in the heap, shifted left by 3
+ *     ...xxxxx011  symbol   symbol id, shifted left by 3
+ *     ...00000101  nil
+ *     ...xxxxx111  channel  channel id, shifted left by 3
+ * </pre>
+ * Ints having a 0 tag, the sum of two ints is the tagged sum of their values and no untagging is needed.
+ * {@code 0} is the int 0, which with nil is false for the conditional jumps.
+ */
+public final class Value {
+    // types, as returned by typeOf and the TAG instruction
+    public static final int INT = 0,
+                            POINTER = 1,
+                            SYMBOL = 3,
+                            SPECIAL = 5,
+                            CHANNEL = 7;
+
+    static final long TAG_MASK = 0b111;
+    static final int TAG_BITS = 3;
+
+    public static final long NIL = SPECIAL;
+    public static final long FALSE = 0,
+                             TRUE = 1L << 1;
+
+    private Value() { }
+
+    public static long fromInt(int value) {
+        return (long) value << 1;
+    }
+
+    public static long pointer(int addr) {
+        return ((long) addr << TAG_BITS) | POINTER;
+    }
+
+    public static long symbol(int id) {
+        return ((long) id << TAG_BITS) | SYMBOL;
+    }
+
+    public static long channel(int id) {
+        return ((long) id << TAG_BITS) | CHANNEL;
+    }
+
+    public static boolean isInt(long value) {
+        return (value & 1) == 0;
+    }
+
+    // true when both values are ints, with a single test
+    public static boolean areInts(long fst, long snd) {
+        return ((fst | snd) & 1) == 0;
+    }
+
+    public static boolean isPointer(long value) {
+        return (value & TAG_MASK) == POINTER;
+    }
+
+    public static boolean isChannel(long value) {
+        return (value & TAG_MASK) == CHANNEL;
+    }
+
+    public static int toInt(long value) {
+        return (int) (value >> 1);
+    }
+
+    public static int address(long value) {
+        return (int) (value >>> TAG_BITS);
+    }
+
+    /**
+     * @return true if the tagged result of an operation on ints is out of the 32 bits int range.
+     */
+    public static boolean isOverflow(long result) {
+        return (result >> 32) != (result >> 63);
+    }
+
+    public static boolean isTrue(long value) {
+        return value != FALSE && value != NIL;
+    }
+
+    public static int typeOf(long value) {
+        return isInt(value) ? INT : (int) (value & TAG_MASK);
+    }
+
+    public static String toString(long value) {
+        return switch (typeOf(value)) {
+            case INT -> String.valueOf(toInt(value));
+            case POINTER -> String.format("#<0x%08X>", address(value));
+            case SYMBOL -> "#sym" + (value >>> TAG_BITS);
+            case CHANNEL -> "#chan" + (value >>> TAG_BITS);
+            default -> value == NIL ? "nil" : String.format("#<special %d>", value >>> TAG_BITS);
+        };
+    }
+}
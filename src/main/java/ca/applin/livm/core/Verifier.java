@@ -0,0 +1,438 @@
+package ca.applin.livm.core;
+
+import java.util.Arrays;
+
+/**
+ * Load time verifier of the code of a {@link Program}. A programm it accepts cannot raise a STACK_UNDERFLOW or
+ * ILLEGAL_INSTR_ACCESS trap, nor read out of its data section, so the {@link VirtualMachine} runs it without those
+ * checks, see {@link VirtualMachine#run(long)}.
+ * <p>
+ * The verifier is an abstract interpretation of the depth of the operand stack: for each instruction it computes a
+ * lower bound of the depth, the minimum over all the paths reaching it, and checks it holds the values the
+ * instruction pops. Depths are tracked separately for each context: the main code, entered at address 0 with an
+ * empty stack, and each procedure, the targets of {@code call} and {@code tailcall}. In a procedure, depths are
+ * relative to the depth at the call, and the verifier computes a summary of each procedure:
+ * <ul>
+ *     <li>the number of values it needs on the stack when called, checked at each call</li>
+ *     <li>a lower bound of the change of depth between the call and the {@code ret}, which gives the depth after the
+ *     call. The code following a call to a procedure that never returns is not reached.</li>
+ * </ul>
+ * Summaries of recursive procedures are computed to a fixpoint, the call sites being verified again each time the
+ * summary of their callee changes.
+ * <p>
+ * Return addresses are balanced as long as each instruction belongs to a single context: a procedure only returns
+ * with {@code ret} to its caller, so the verifier rejects programms where a procedure jumps into the code of another
+ * one or into the main code, and {@code ret} or {@code tailcall} in the main code.
+ * <p>
+ * The targets of {@code spawn} are the entries of tasks, verified like the main code: a task starts with the value
+ * moved by {@code spawn} as its only value, and cannot return. A procedure cannot be both called and spawned.
+ * <p>
+ * The frame entered by {@code enter} is also tracked: every path reaching an instruction must have entered the same
+ * frame, or none, and in a frame the depth is the number of values above its locals, which are never popped. The
+ * locals read and written must be in the frame, and a procedure enters at most one frame.
+ * <p>
+ * The verifier is conservative: programms it rejects still run, with all the run time checks.
+ */
+public final class Verifier {
+
+    /**
+     * @param safe true if the programm was proven safe
+     * @param address of the instruction that could not be verified, -1 when safe
+     * @param reason why the instruction could not be verified, null when safe
+     */
+    public record Result(boolean safe, int address, String reason) {
+        public static final Result SAFE = new Result(true, -1, null);
+
+        @Override
+        public String toString() {
+            return safe ? "verified" : "not verified: " + reason + " at ip=" + address;
+        }
+    }
+
+    // a procedure needing more values than that is considered to have an unbounded stack use: its bounds would
+    // decrease forever
+    static final int MAX_ARGUMENTS = 1024;
+
+    private static final int UNREACHED = Integer.MAX_VALUE;
+    // a procedure without any reachable ret
+    private static final int NO_RETURN = Integer.MAX_VALUE;
+    private static final int MAIN = 0;
+    private static final int NO_FRAME = -1;
+
+    private final int[] opcodes;
+    private final int[] operands;
+    private final int size;
+    private final int dataSize;
+
+    // lower bound of the depth of the operand stack before each instruction, relative to the entry of its context,
+    // or in a frame, of the number of values above the locals
+    private final int[] low;
+    // number of locals of the frame of each instruction, or NO_FRAME
+    private final int[] frames;
+    // in a frame, lower bound of the depth of the stack below the locals, relative to the entry of the context
+    private final int[] bases;
+    // frame of the instruction being verified, and of the instructions it flows to
+    private int frame;
+    private int frameBase;
+    // context of each instruction: MAIN or the index of its procedure, -1 when not reached
+    private final int[] owner;
+
+    // procedures, indexed from 1: entries, number of values needed and lower bound of the change of depth at ret
+    private final int[] procedureOf;
+    // the procedures which are the entries of tasks
+    private boolean[] tasks;
+    private int[] entries;
+    private int[] needed;
+    private int[] returned;
+    // call sites of each procedure, the calls of procedure p are callSites[firstCallSite[p]..firstCallSite[p + 1]]
+    private int[] firstCallSite;
+    private int[] callSites;
+
+    private int[] worklist;
+    private int worklistSize;
+    private final boolean[] queued;
+
+    private Verifier(Program program) {
+        this.opcodes = program.opcodes();
+        this.operands = program.operands();
+        this.size = opcodes.length;
+        this.dataSize = program.dataSection().capacity();
+        this.low = new int[size];
+        this.frames = new int[size];
+        this.bases = new int[size];
+        this.owner = new int[size];
+        this.procedureOf = new int[size];
+        this.queued = new boolean[size];
+        this.worklist = new int[Math.max(16, size)];
+    }
+
+    /**
+     * Verifies the code of a programm, this is linear in its size for code without recursion.
+     */
+    public static Result verify(Program program) {
+        if (program.size() == 0) {
+            return Result.SAFE;
+        }
+        Verifier verifier = new Verifier(program);
+        try {
+            verifier.run();
+            return Result.SAFE;
+        } catch (Rejected rejected) {
+            return new Result(false, rejected.address, rejected.getMessage());
+        }
+    }
+
+    // stops the verification at the first instruction that cannot be proven safe
+    private static final class Rejected extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        final int address;
+
+        Rejected(int address, String reason) {
+            super(reason, null, false, false);
+            this.address = address;
+        }
+    }
+
+    private void run() {
+        findProcedures();
+        Arrays.fill(low, UNREACHED);
+        Arrays.fill(owner, -1);
+        frame = NO_FRAME;
+        frameBase = 0;
+        enter(0, MAIN, 0, 0);
+        for (int p = 1; p < entries.length; p++) {
+            // a task starts with the value given to spawn
+            enter(entries[p], p, tasks[p] ? 1 : 0, entries[p]);
+        }
+        while (worklistSize > 0) {
+            int ip = worklist[--worklistSize];
+            queued[ip] = false;
+            verify(ip);
+        }
+    }
+
+    // numbers the procedures and indexes their call sites, all the branch targets are checked here
+    private void findProcedures() {
+        int[] calls = new int[size];
+        // 1 for the procedures called, 2 for the ones spawned
+        byte[] kinds = new byte[size];
+        int procedures = 1;
+        for (int ip = 0; ip < size; ip++) {
+            int opcode = opcodes[ip];
+            if (isBranch(opcode)) {
+                int target = operands[ip];
+                if (target < 0 || target > size) {
+                    throw new Rejected(ip, "branch to " + target + " outside of the code");
+                }
+                if ((opcode == Opcodes.CALL || opcode == Opcodes.TAILCALL || opcode == Opcodes.SPAWN) && target < size) {
+                    if (target == 0) {
+                        throw new Rejected(ip, (opcode == Opcodes.SPAWN ? "spawn" : "call") + " of the entry point");
+                    }
+                    byte kind = opcode == Opcodes.SPAWN ? (byte) 2 : (byte) 1;
+                    if (kinds[target] != 0 && kinds[target] != kind) {
+                        throw new Rejected(ip, "the procedure at " + target + " is both called and spawned");
+                    }
+                    kinds[target] = kind;
+                    if (procedureOf[target] == 0) {
+                        procedureOf[target] = procedures++;
+                    }
+                    if (kind == 1) {
+                        calls[procedureOf[target]]++;
+                    }
+                }
+            }
+        }
+        tasks = new boolean[procedures];
+        entries = new int[procedures];
+        needed = new int[procedures];
+        returned = new int[procedures];
+        Arrays.fill(returned, NO_RETURN);
+        firstCallSite = new int[procedures + 1];
+        for (int p = 1; p < procedures; p++) {
+            firstCallSite[p + 1] = firstCallSite[p] + calls[p];
+        }
+        callSites = new int[firstCallSite[procedures]];
+        int[] next = Arrays.copyOf(firstCallSite, procedures);
+        for (int ip = 0; ip < size; ip++) {
+            if (procedureOf[ip] != 0) {
+                entries[procedureOf[ip]] = ip;
+                tasks[procedureOf[ip]] = kinds[ip] == 2;
+            }
+            int opcode = opcodes[ip];
+            if ((opcode == Opcodes.CALL || opcode == Opcodes.TAILCALL) && operands[ip] < size) {
+                callSites[next[procedureOf[operands[ip]]]++] = ip;
+            }
+        }
+    }
+
+    private static boolean isBranch(int opcode) {
+        return opcode == Opcodes.JMP || opcode == Opcodes.JNZ || opcode == Opcodes.JEQ
+                || opcode == Opcodes.CALL || opcode == Opcodes.TAILCALL || opcode == Opcodes.SPAWN;
+    }
+
+    private void verify(int ip) {
+        int context = owner[ip];
+        int depth = low[ip];
+        int operand = operands[ip];
+        frame = frames[ip];
+        frameBase = bases[ip];
+        switch (opcodes[ip]) {
+            case Opcodes.NOP, Opcodes.DUMP, Opcodes.BREAK, Opcodes.SNAPSHOT, Opcodes.YIELD -> next(ip, context, depth);
+            case Opcodes.HALT -> { }
+            case Opcodes.PUSH, Opcodes.MEM, Opcodes.NEW, Opcodes.NIL, Opcodes.SYM, Opcodes.CHAN ->
+                    next(ip, context, depth + 1);
+            case Opcodes.LOAD -> {
+                if (operand < 0 || operand > dataSize - Integer.BYTES) {
+                    throw new Rejected(ip, "load of " + operand + " outside of the data section of " + dataSize + " bytes");
+                }
+                next(ip, context, depth + 1);
+            }
+            case Opcodes.READ, Opcodes.ADDI, Opcodes.TAG, Opcodes.RECV -> {
+                pop(ip, context, depth, 1);
+                next(ip, context, depth);
+            }
+            case Opcodes.MOV, Opcodes.FREE, Opcodes.PRINT, Opcodes.SPAWN -> {
+                pop(ip, context, depth, 1);
+                next(ip, context, depth - 1);
+            }
+            case Opcodes.ADD, Opcodes.SUB, Opcodes.MUL, Opcodes.DIV, Opcodes.EQ -> {
+                pop(ip, context, depth, 2);
+                next(ip, context, depth - 1);
+            }
+            case Opcodes.STORE, Opcodes.SEND -> {
+                pop(ip, context, depth, 2);
+                next(ip, context, depth - 2);
+            }
+            case Opcodes.DUP -> {
+                if (operand < 0) {
+                    throw new Rejected(ip, "dup of a negative offset");
+                }
+                // rejected by pop anyway, without operand + 1 overflowing
+                if (operand - depth >= MAX_ARGUMENTS) {
+                    throw new Rejected(ip, "dup of " + operand + " values below the top, deeper than the stack");
+                }
+                pop(ip, context, depth, operand + 1);
+                next(ip, context, depth + 1);
+            }
+            case Opcodes.DUP2 -> {
+                pop(ip, context, depth, 2);
+                next(ip, context, depth + 2);
+            }
+            case Opcodes.MEMCPY, Opcodes.MEMSET -> {
+                pop(ip, context, depth, 3);
+                next(ip, context, depth - 3);
+            }
+            case Opcodes.MEMCMP -> {
+                pop(ip, context, depth, 3);
+                next(ip, context, depth - 2);
+            }
+            case Opcodes.TRYRECV -> {
+                pop(ip, context, depth, 1);
+                next(ip, context, depth + 1);
+            }
+            case Opcodes.JMP -> flow(ip, operand, context, depth);
+            case Opcodes.JNZ -> {
+                pop(ip, context, depth, 1);
+                flow(ip, operand, context, depth - 1);
+                next(ip, context, depth - 1);
+            }
+            case Opcodes.JEQ -> {
+                pop(ip, context, depth, 2);
+                flow(ip, operand, context, depth - 2);
+                next(ip, context, depth - 2);
+            }
+            case Opcodes.CALL -> {
+                // a call to the end of the code halts
+                if (operand < size) {
+                    int callee = procedureOf[operand];
+                    pop(ip, context, depth, needed[callee]);
+                    if (returned[callee] != NO_RETURN) {
+                        next(ip, context, depth + returned[callee]);
+                    }
+                }
+            }
+            case Opcodes.TAILCALL -> {
+                if (context == MAIN || tasks[context]) {
+                    throw new Rejected(ip, "tailcall outside of a procedure");
+                }
+                // the frame is left before the call, the arguments above the locals are kept
+                if (frame != NO_FRAME) {
+                    depth += frameBase;
+                    frame = NO_FRAME;
+                }
+                if (operand < size) {
+                    int callee = procedureOf[operand];
+                    pop(ip, context, depth, needed[callee]);
+                    if (returned[callee] != NO_RETURN) {
+                        returns(context, depth + returned[callee]);
+                    }
+                }
+            }
+            case Opcodes.RET -> {
+                if (context == MAIN || tasks[context]) {
+                    throw new Rejected(ip, "ret outside of a procedure");
+                }
+                returns(context, frame == NO_FRAME ? depth : frameBase + depth);
+            }
+            case Opcodes.ENTER -> {
+                if (frame != NO_FRAME) {
+                    throw new Rejected(ip, "enter in a frame");
+                }
+                if (operand < 0) {
+                    throw new Rejected(ip, "enter of a negative number of locals");
+                }
+                pop(ip, context, depth, operand);
+                frame = operand;
+                frameBase = depth - operand;
+                next(ip, context, 0);
+            }
+            case Opcodes.LOAD_LOCAL -> {
+                local(ip, operand);
+                next(ip, context, depth + 1);
+            }
+            case Opcodes.STORE_LOCAL -> {
+                local(ip, operand);
+                pop(ip, context, depth, 1);
+                next(ip, context, depth - 1);
+            }
+            default -> throw new Rejected(ip, Instruction.Type.fromOpcode(opcodes[ip]) + " cannot be executed");
+        }
+    }
+
+    // checks the stack holds count values, procedures needing more values than known so far get a new summary
+    private void pop(int ip, int context, int depth, int count) {
+        if (depth >= count) {
+            return;
+        }
+        if (frame != NO_FRAME) {
+            throw new Rejected(ip, "pop of the locals, " + count + " values needed but " + depth + " above them");
+        }
+        if (context == MAIN || tasks[context]) {
+            throw new Rejected(ip, "stack underflow, " + count + " values needed but " + depth + " on the stack");
+        }
+        if (count - depth > needed[context]) {
+            if (count - depth > MAX_ARGUMENTS) {
+                throw new Rejected(ip, "unbounded stack use of the procedure at " + entries[context]);
+            }
+            needed[context] = count - depth;
+            requeueCallSites(context);
+        }
+    }
+
+    private void local(int ip, int local) {
+        if (frame == NO_FRAME) {
+            throw new Rejected(ip, "local " + local + " outside of a frame");
+        }
+        if (local < 0 || local >= frame) {
+            throw new Rejected(ip, "local " + local + " outside of the frame of " + frame + " locals");
+        }
+    }
+
+    private void returns(int context, int depth) {
+        if (depth < returned[context]) {
+            returned[context] = depth;
+            requeueCallSites(context);
+        }
+    }
+
+    private void requeueCallSites(int procedure) {
+        for (int i = firstCallSite[procedure]; i < firstCallSite[procedure + 1]; i++) {
+            int site = callSites[i];
+            if (owner[site] != -1) {
+                push(site);
+            }
+        }
+    }
+
+    private void next(int ip, int context, int depth) {
+        flow(ip, ip + 1, context, depth);
+    }
+
+    private void flow(int from, int to, int context, int depth) {
+        // the end of the code halts the machine
+        if (to == size) {
+            return;
+        }
+        if (owner[to] != -1 && owner[to] != context) {
+            throw new Rejected(from, "branch from " + contextName(context) + " into " + contextName(owner[to]));
+        }
+        enter(to, context, depth, from);
+    }
+
+    private void enter(int ip, int context, int depth, int from) {
+        if (owner[ip] == -1) {
+            owner[ip] = context;
+            frames[ip] = frame;
+            bases[ip] = frameBase;
+        } else if (owner[ip] != context) {
+            throw new Rejected(from, contextName(owner[ip]) + " also reached from " + contextName(context));
+        } else if (frames[ip] != frame) {
+            throw new Rejected(from, "ip=" + ip + " also reached " + (frame == NO_FRAME ? "without a frame"
+                    : "with a frame of " + frame + " locals"));
+        } else if (frameBase < bases[ip]) {
+            bases[ip] = frameBase;
+            push(ip);
+        }
+        if (depth < low[ip]) {
+            low[ip] = depth;
+            push(ip);
+        }
+    }
+
+    private void push(int ip) {
+        if (queued[ip]) {
+            return;
+        }
+        if (worklistSize == worklist.length) {
+            worklist = Arrays.copyOf(worklist, worklistSize * 2);
+        }
+        queued[ip] = true;
+        worklist[worklistSize++] = ip;
+    }
+
+    private String contextName(int context) {
+        return context == MAIN ? "the main code"
+                : (tasks[context] ? "the task at " : "the procedure at ") + entries[context];
+    }
+}
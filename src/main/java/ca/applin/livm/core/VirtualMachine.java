@@ -1,55 +1,148 @@
 package ca.applin.livm.core;
 
 
-import ca.applin.livm.utils.ByteUtils;
-
-import java.nio.ByteBuffer;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.HexFormat;
-import java.util.LinkedList;
-import java.util.function.BinaryOperator;
-
-import static ca.applin.livm.core.Word.WORD_0;
-import static ca.applin.livm.core.Word.WORD_1;
 
 public class VirtualMachine {
-    private static final int DEFAULT_MEMORY_SEGMENT_SIZE = 1024 * 1024; // 1 MB
+    private static final int INITIAL_STACK_CAPACITY = 1024;
+    private static final int INITIAL_RETURN_STACK_CAPACITY = 256;
     private static final HexFormat DATA_SECTION_HEX_FORMAT = HexFormat.ofDelimiter(" ");
-    private static final Word FALSE = WORD_0,
-                              TRUE  = WORD_1;
 
     public int ip;
     private final Program programm;
-    private final LinkedList<Word> stack;
 
-    // @Improvement used to implements procedure call quicly, there might be a better solution
-    private final LinkedList<Word> returnStack;
+    // The registers and stacks are package private as they are also used by the code compiled by the jit.
+    // operand stack of tagged values (see Value), sp points to the next free slot. The top of the stack is
+    // stack[sp - 1]
+    long[] stack;
+    int sp;
+
+    // return addresses of procedure calls, rsp points to the next free slot. A frame entered with ENTER takes two
+    // slots above the return address of its procedure: the frame pointer of the previous frame, then the complement
+    // of its number of locals, negative so frames are told apart from return addresses
+    int[] returnStack;
+    int rsp;
+
+    // frame pointer, index in stack of the local 0 of the current frame
+    int fp;
+
+    // Memery segement, allocated on first use so machines not using it stay small
+    private Heap heap;
 
-    // Memery segement
-    private ByteBuffer memory;
+    // number of instructions executed so far
+    long retired;
+
+    // printed values waiting to be written, allocated on first use
+    private OutputBuffer output;
 
     // flags
-    private boolean halt;
+    boolean halt;
     private Parameters parameters;
 
+    // null when running in interpreter only mode
+    private final Jit jit;
+
+    // null when not profiling
+    private final Profiler profiler;
+
+    // created on first use, only in debug mode
+    private Debugger debugger;
+
+    // the programm was proven safe by the Verifier, run without the stack underflow and jump target checks
+    private final boolean unchecked;
+
+    // register translation of the programm, null when running on the stack interpreter
+    private final RegisterCode registerCode;
+
+    // tasks: the scheduler running the machine, null outside of one, and the id of the task, 0 for the first one
+    Scheduler scheduler;
+    private final int task;
+    // a yield ended the current run
+    private boolean yielded;
+    // channels created by the machine and its tasks, shared with the tasks it spawns, created on first use
+    private Channels channels;
+    // the channel a send or a receive of the task is blocked on, until the scheduler parks it, see Scheduler#park
+    Channel blockedOn;
+    boolean blockedSending;
+
+    // JVM frames of compiled procedures running, counted by the code compiled ahead of time, see AotCode
+    int compiledDepth;
+
     public VirtualMachine(Program programm, Parameters parameters) {
-        this.programm = programm;
-        this.stack = new LinkedList<>();
-        this.returnStack = new LinkedList<>();
+        this(programm, parameters, null);
+    }
+
+    // with the code of the programm compiled ahead of time, see AotCode
+    VirtualMachine(Program programm, Parameters parameters, AotCode aot) {
+        // the debugger patches breakpoints in the code, it gets a copy of its own
+        this.programm = parameters.debug ? programm.copyCode() : programm;
+        this.stack = new long[Math.min(INITIAL_STACK_CAPACITY, parameters.maxStackSize)];
+        this.returnStack = new int[Math.min(INITIAL_RETURN_STACK_CAPACITY, parameters.maxReturnStackSize)];
+        this.sp = 0;
+        this.rsp = 0;
         this.ip = 0;
         this.halt = false;
         this.parameters = parameters;
-        this.memory = ByteBuffer.allocate(DEFAULT_MEMORY_SEGMENT_SIZE);
+        // every instruction must go through the interpreter to be traced in debug mode or profiled
+        this.jit = parameters.debug || parameters.profile ? null
+                : aot != null ? new Jit(programm, aot)
+                : parameters.jit ? new Jit(programm, parameters.jitThreshold)
+                : null;
+        this.profiler = parameters.profile ? new Profiler(this.programm) : null;
+        // the debugger shows the traps of the programm as they are, every check is kept
+        this.unchecked = !parameters.debug && !parameters.checked && programm.verify().safe();
+        // the jit and the profiler work on the stack interpreter
+        this.registerCode = unchecked && parameters.registers && jit == null && profiler == null
+                ? programm.registerCode()
+                : null;
+        this.task = 0;
+    }
+
+    // a task started by spawn, at entry with the argument as its only value
+    private VirtualMachine(VirtualMachine parent, int task, int entry, long argument) {
+        this.programm = parent.programm;
+        this.parameters = parent.parameters;
+        this.stack = new long[Math.min(INITIAL_STACK_CAPACITY, parameters.maxStackSize)];
+        this.returnStack = new int[Math.min(INITIAL_RETURN_STACK_CAPACITY, parameters.maxReturnStackSize)];
+        this.stack[0] = argument;
+        this.sp = 1;
+        this.ip = entry;
+        // the jit is shared by the tasks, see Jit
+        this.jit = parent.jit;
+        this.profiler = null;
+        this.unchecked = parent.unchecked;
+        this.registerCode = parent.registerCode;
+        this.scheduler = parent.scheduler;
+        this.channels = parent.channels();
+        this.task = task;
     }
 
     public void runOrFail() {
         if (parameters.debug) {
             debugPrintDataSection();
         }
-        Trap trap = this.run();
+        // instrumented runs go through the debugger or the profiler, which step the machine one instruction at a time,
+        // so run has no tracing or profiling code of its own
+        // programms spawning tasks run on a scheduler, the others on the thread calling run
+        Scheduler scheduler = parameters.debug || profiler != null || !spawnsTasks(programm) ? null
+                : new Scheduler(parameters.carriers, parameters.taskSlice);
+        Trap trap = parameters.debug ? debugger().trace(System.out)
+                : profiler != null ? profiler.run(this)
+                : scheduler != null ? scheduler.run(this)
+                : this.run();
         if (trap != Trap.OK) {
-            System.err.printf("Error: %s - %s ip=%d\n", trap.name(), programm.getInstruction(ip), ip);
             if (parameters.debug) {
+                System.err.printf("Error: %s - %s ip=%d\n", trap.name(), debugger().instructionAt(ip), ip);
                 dump();
+            } else if (scheduler != null && scheduler.failed() != this) {
+                VirtualMachine failed = scheduler.failed();
+                System.err.printf("Error: %s - %s ip=%d task=%d\n", trap.name(), programm.getInstruction(failed.ip),
+                        failed.ip, failed.task);
+            } else {
+                System.err.printf("Error: %s - %s ip=%d\n", trap.name(), programm.getInstruction(ip), ip);
             }
             return;
         }
@@ -58,216 +151,1114 @@ public class VirtualMachine {
         }
     }
 
+    /**
+     * Runs the programm from the current instruction pointer until it halts or a trap is raised.
+     * Dispatch is done over the decoded opcodes and operands arrays of the programm, the registers (ip, sp, rsp)
+     * are kept in locals and written back to the machine when the loop exits.
+     * <p>
+     * With the jit enabled, call targets and backward jump targets are counted, and execution is transferred to
+     * the compiled code once they are hot. The compiled code returns to the interpreter when it reaches an
+     * instruction it cannot execute.
+     * <p>
+     * The loop has no debugging or profiling hooks: traces, breakpoints and profiles are done by the
+     * {@link Debugger} and the {@link Profiler}, which call {@link #run(long)} for one instruction at a time.
+     * <p>
+     * Programms accepted by the {@link Verifier} run the loop without the checks of the depth of the stacks and of
+     * the jump targets, unless {@link Parameters#checked} is set. Overflows, types and memory accesses are always
+     * checked.
+     */
     public Trap run() {
-        loop: while (!halt) {
-            Instruction instr = programm.getInstruction(ip);
-            if (parameters.debug) {
-                System.out.println(instr.type.name()
-                        + (instr.operand == null ? "" : " " + instr.operand));
-            }
-            switch (instr.type) {
+        return run(Long.MAX_VALUE);
+    }
 
-                case NOP -> { /* do nothing*/ }
+    /**
+     * Runs at most maxInstructions instructions, the machine can be resumed with another call to run.
+     * @see #isHalted()
+     */
+    public Trap run(long maxInstructions) {
+        yielded = false;
+        if (registerCode != null) {
+            return runRegisters(maxInstructions);
+        }
+        return interpret(maxInstructions, !unchecked);
+    }
 
-                case PUSH -> stack.push(instr.operand);
+    /**
+     * Runs the machine as the first task of a {@link Scheduler}, with the tasks it spawns, until they all halt or one
+     * of them raises a trap.
+     */
+    public Trap runTasks() {
+        return new Scheduler(parameters.carriers, parameters.taskSlice).run(this);
+    }
 
-                // static programm memory access
-                case LOAD -> {
-                    int addr = instr.operand.word();
-                    stack.push(new Word(programm.getDataSection().getInt(addr)));
+    /**
+     * Runs the {@link RegisterCode} of the programm from the start of each block. What the register code leaves to
+     * the stack interpreter (traps, instructions it does not translate, the last instructions before the limit) is
+     * run by the stack interpreter up to the start of the next block, so traps and retired instructions are the
+     * same as on the stack interpreter.
+     */
+    private Trap runRegisters(long maxInstructions) {
+        final int size = programm.size();
+        final long limit = maxInstructions > Long.MAX_VALUE - retired ? Long.MAX_VALUE : retired + maxInstructions;
+        Trap trap = Trap.OK;
+        while (!halt && ip < size && retired < limit && !yielded) {
+            if (registerCode.isBlockStart(ip)) {
+                registerCode.execute(this, limit);
+                if (halt || ip >= size || retired >= limit) {
+                    break;
                 }
+            }
+            do {
+                trap = interpret(1, false);
+            } while (trap == Trap.OK && !halt && ip < size && retired < limit && !yielded
+                    && !registerCode.isBlockStart(ip));
+            if (trap != Trap.OK) {
+                return trap;
+            }
+        }
+        halt = halt || ip >= size;
+        if (halt) {
+            flushOutput();
+        }
+        return trap;
+    }
 
-                // allocate VM memory
-                case MEM -> {
-                    int addr = memory.position();
-                    int size = instr.operand.word();
-                    int newPosition = addr + size;
-                    if (newPosition > memory.limit()) {
-                        // todo grow?
-                        return Trap.OUT_OF_MEMORY;
-                    }
-                    memory.position(newPosition);
-                    stack.push(new Word(addr));
-                }
+    // the checks skipped for verified programms test checked first: the machines of a process usually all run with the
+    // same value, the JVM finds the branches never taken and leaves them out of the compiled loop
+    private Trap interpret(long maxInstructions, boolean checked) {
+        final int[] opcodes = programm.opcodes();
+        final int[] operands = programm.operands();
+        final int size = opcodes.length;
+        final int dataSize = programm.dataSection().capacity();
+        int ip = this.ip;
+        final long limit = maxInstructions > Long.MAX_VALUE - this.retired ? Long.MAX_VALUE
+                : this.retired + maxInstructions;
+        Trap trap = Trap.OK;
 
-                // VM memory random access (write)
-                case MOV -> {
-                    if (stack.isEmpty()) {
-                        return Trap.STACK_UNDERFLOW;
+        // the registers are loaded again from the machine after running compiled code, which updates them
+        resume: while (true) {
+            long[] stack = this.stack;
+            int[] returnStack = this.returnStack;
+            int sp = this.sp;
+            int rsp = this.rsp;
+            long retired = this.retired;
+
+            loop: while (!halt && ip < size && retired < limit) {
+                retired++;
+                switch (opcodes[ip]) {
+
+                    case Opcodes.NOP -> { /* do nothing*/ }
+
+                    case Opcodes.PUSH -> {
+                        if (sp == stack.length) {
+                            if (!growStack()) {
+                                trap = Trap.STACK_OVERFLOW;
+                                break loop;
+                            }
+                            stack = this.stack;
+                        }
+                        stack[sp++] = Value.fromInt(operands[ip]);
                     }
-                    int addr = stack.pop().word();
-                    if (addr < 0 || addr > memory.limit()) {
-                        return Trap.ILLEGAL_INSTR_ACCESS;
+
+                    // static programm memory access
+                    case Opcodes.LOAD -> {
+                        if (sp == stack.length) {
+                            if (!growStack()) {
+                                trap = Trap.STACK_OVERFLOW;
+                                break loop;
+                            }
+                            stack = this.stack;
+                        }
+                        if (checked && (operands[ip] < 0 || operands[ip] > dataSize - Integer.BYTES)) {
+                            trap = Trap.ILLEGAL_MEMORY_ACCESS;
+                            break loop;
+                        }
+                        stack[sp++] = Value.fromInt(load(operands[ip]));
                     }
-                    int value = instr.operand.word();
-                    memory.put(addr, ByteUtils.to_bytes_big(value));
-                }
 
-                // VM memory random access (read)
-                case READ -> {
-                    if (stack.isEmpty()) {
-                        return Trap.STACK_UNDERFLOW;
+                    // allocate VM memory
+                    case Opcodes.MEM -> {
+                        if (sp == stack.length) {
+                            if (!growStack()) {
+                                trap = Trap.STACK_OVERFLOW;
+                                break loop;
+                            }
+                            stack = this.stack;
+                        }
+                        int addr = heap().allocate(operands[ip]);
+                        if (addr == 0) {
+                            trap = Trap.OUT_OF_MEMORY;
+                            break loop;
+                        }
+                        stack[sp++] = Value.pointer(addr);
                     }
-                    int addr = stack.pop().word();
-                    byte[] dataByte = new byte[4];
-                    memory.get(addr, dataByte, 0, 4);
-                    stack.push(new Word(ByteUtils.from_byte_int_big(dataByte)));
-                }
 
-                case DUP -> {
-                    if (stack.isEmpty()) {
-                        return Trap.STACK_UNDERFLOW;
+                    // release VM memory allocated with MEM
+                    case Opcodes.FREE -> {
+                        if (checked && sp == 0) {
+                            trap = Trap.STACK_UNDERFLOW;
+                            break loop;
+                        }
+                        if (!Value.isPointer(stack[sp - 1])) {
+                            trap = Trap.TYPE_ERROR;
+                            break loop;
+                        }
+                        if (!heap().free(Value.address(stack[sp - 1]))) {
+                            trap = Trap.ILLEGAL_MEMORY_ACCESS;
+                            break loop;
+                        }
+                        sp--;
                     }
-                    if (instr.operand == null) {
-                        stack.push(stack.peek());
-                    } else {
-                        int addr = instr.operand.word();
-                        if (addr > stack.size() - 1) {
-                            return Trap.STACK_UNDERFLOW;
+
+                    // allocate an object managed by the garbage collector
+                    case Opcodes.NEW -> {
+                        if (sp == stack.length) {
+                            if (!growStack()) {
+                                trap = Trap.STACK_OVERFLOW;
+                                break loop;
+                            }
+                            stack = this.stack;
+                        }
+                        int addr = heap().allocateObject(operands[ip], stack, sp);
+                        if (addr == 0) {
+                            trap = Trap.OUT_OF_MEMORY;
+                            break loop;
                         }
-                        stack.push(stack.get(addr));
+                        stack[sp++] = Value.pointer(addr);
+                    }
+
+                    // VM memory random access (write of a stack value)
+                    case Opcodes.STORE -> {
+                        if (checked && sp < 2) {
+                            trap = Trap.STACK_UNDERFLOW;
+                            break loop;
+                        }
+                        if (!Value.isPointer(stack[sp - 1])) {
+                            trap = Trap.TYPE_ERROR;
+                            break loop;
+                        }
+                        int addr = Value.address(stack[sp - 1]);
+                        Heap heap = heap();
+                        if (!heap.isValidWord(addr)) {
+                            trap = Trap.ILLEGAL_MEMORY_ACCESS;
+                            break loop;
+                        }
+                        heap.putWord(addr, stack[sp - 2]);
+                        sp -= 2;
                     }
-                }
 
-                case JMP -> {
-                    Trap trap = doJump(instr);
-                    if (trap != Trap.OK) {
-                        return trap;
+                    // VM memory random access (write)
+                    case Opcodes.MOV -> {
+                        if (checked && sp == 0) {
+                            trap = Trap.STACK_UNDERFLOW;
+                            break loop;
+                        }
+                        if (!Value.isPointer(stack[sp - 1])) {
+                            trap = Trap.TYPE_ERROR;
+                            break loop;
+                        }
+                        int addr = Value.address(stack[sp - 1]);
+                        Heap heap = heap();
+                        if (!heap.isValidWord(addr)) {
+                            trap = Trap.ILLEGAL_MEMORY_ACCESS;
+                            break loop;
+                        }
+                        sp--;
+                        heap.putWord(addr, Value.fromInt(operands[ip]));
+                    }
+
+                    // VM memory random access (read)
+                    case Opcodes.READ -> {
+                        if (checked && sp == 0) {
+                            trap = Trap.STACK_UNDERFLOW;
+                            break loop;
+                        }
+                        if (!Value.isPointer(stack[sp - 1])) {
+                            trap = Trap.TYPE_ERROR;
+                            break loop;
+                        }
+                        int addr = Value.address(stack[sp - 1]);
+                        Heap heap = heap();
+                        if (!heap.isValidWord(addr)) {
+                            trap = Trap.ILLEGAL_MEMORY_ACCESS;
+                            break loop;
+                        }
+                        stack[sp - 1] = heap.getWord(addr);
                     }
-                    continue;
-                }
 
-                case JNZ -> {
-                    final int addr = instr.operand.word();
-                    if (addr < 0 || addr > programm.size()) {
-                        return Trap.ILLEGAL_INSTR_ACCESS;
+                    // DUP n pushes a copy of the n-th value from the top of the stack, 0 being the top
+                    case Opcodes.DUP -> {
+                        int offset = operands[ip];
+                        if (checked && (offset < 0 || offset > sp - 1)) {
+                            trap = Trap.STACK_UNDERFLOW;
+                            break loop;
+                        }
+                        if (sp == stack.length) {
+                            if (!growStack()) {
+                                trap = Trap.STACK_OVERFLOW;
+                                break loop;
+                            }
+                            stack = this.stack;
+                        }
+                        stack[sp] = stack[sp - 1 - offset];
+                        sp++;
                     }
-                    if (stack.pop().word() != 0) {
-                        this.ip = addr;
+
+                    case Opcodes.JMP -> {
+                        final int addr = operands[ip];
+                        if (checked && (addr < 0 || addr > size)) {
+                            trap = Trap.ILLEGAL_INSTR_ACCESS;
+                            break loop;
+                        }
+                        if (jit != null && addr <= ip) {
+                            CompiledCode code = jit.enter(addr);
+                            if (code != null) {
+                                ip = runCompiled(code, addr, sp, rsp, retired);
+                                continue resume;
+                            }
+                        }
+                        ip = addr;
                         continue;
                     }
-                }
 
-                case CALL -> {
-                    int retAddr = ip;
-                    returnStack.push(new Word(retAddr));
-                    Trap trap = doJump(instr);
-                    if (trap != Trap.OK) {
-                        return trap;
+                    case Opcodes.JNZ -> {
+                        final int addr = operands[ip];
+                        if (checked && (addr < 0 || addr > size)) {
+                            trap = Trap.ILLEGAL_INSTR_ACCESS;
+                            break loop;
+                        }
+                        if (checked && sp == 0) {
+                            trap = Trap.STACK_UNDERFLOW;
+                            break loop;
+                        }
+                        if (Value.isTrue(stack[--sp])) {
+                            if (jit != null && addr <= ip) {
+                                CompiledCode code = jit.enter(addr);
+                                if (code != null) {
+                                    ip = runCompiled(code, addr, sp, rsp, retired);
+                                    continue resume;
+                                }
+                            }
+                            ip = addr;
+                            continue;
+                        }
                     }
-                    continue;
-                }
 
-                case RET -> {
-                    Word retAddr = returnStack.pop();
-                    ip = retAddr.word();
-                }
+                    case Opcodes.CALL -> {
+                        final int addr = operands[ip];
+                        if (checked && (addr < 0 || addr > size)) {
+                            trap = Trap.ILLEGAL_INSTR_ACCESS;
+                            break loop;
+                        }
+                        // call x; ret is run as tailcall x, the ret is not executed
+                        if (ip + 1 < size && opcodes[ip + 1] == Opcodes.RET && rsp > 0) {
+                            if (returnStack[rsp - 1] < 0) {
+                                this.sp = sp;
+                                this.rsp = rsp;
+                                boolean left = leaveFrames();
+                                sp = this.sp;
+                                rsp = this.rsp;
+                                if (!left) {
+                                    trap = Trap.STACK_UNDERFLOW;
+                                    break loop;
+                                }
+                            }
+                        } else {
+                            if (rsp == returnStack.length) {
+                                if (!growReturnStack()) {
+                                    trap = Trap.STACK_OVERFLOW;
+                                    break loop;
+                                }
+                                returnStack = this.returnStack;
+                            }
+                            returnStack[rsp++] = ip;
+                        }
+                        if (jit != null) {
+                            CompiledCode code = jit.enter(addr);
+                            if (code != null) {
+                                ip = runCompiled(code, addr, sp, rsp, retired);
+                                continue resume;
+                            }
+                        }
+                        ip = addr;
+                        continue;
+                    }
 
-                case EQ -> {
-                    Trap trap = wordBinop((w1, w2) -> w1.word().intValue() == w2.word().intValue() ? TRUE : FALSE);
-                    if (trap != Trap.OK) {
-                        return trap;
+                    case Opcodes.RET -> {
+                        if (rsp > 0 && returnStack[rsp - 1] < 0) {
+                            this.sp = sp;
+                            this.rsp = rsp;
+                            boolean left = leaveFrames();
+                            sp = this.sp;
+                            rsp = this.rsp;
+                            if (!left) {
+                                trap = Trap.STACK_UNDERFLOW;
+                                break loop;
+                            }
+                        }
+                        if (checked && rsp == 0) {
+                            trap = Trap.STACK_UNDERFLOW;
+                            break loop;
+                        }
+                        ip = returnStack[--rsp];
                     }
-                }
 
-                case ADD -> {
-                    Trap trap = wordBinop((w1, w2) ->  new Word(Math.addExact(w1.word(), w2.word())));
-                    if (trap != Trap.OK) {
-                        return trap;
+                    case Opcodes.EQ -> {
+                        if (checked && sp < 2) {
+                            trap = Trap.STACK_UNDERFLOW;
+                            break loop;
+                        }
+                        sp--;
+                        stack[sp - 1] = stack[sp] == stack[sp - 1] ? Value.TRUE : Value.FALSE;
                     }
-                }
 
-                case SUB -> {
-                    Trap trap = wordBinop((w1, w2) -> new Word(w1.word() - w2.word()));
-                    if (trap != Trap.OK) {
-                        return trap;
+                    // ints are added without untagging them. Adding an int to a pointer offsets the pointer
+                    case Opcodes.ADD -> {
+                        if (checked && sp < 2) {
+                            trap = Trap.STACK_UNDERFLOW;
+                            break loop;
+                        }
+                        long fst = stack[sp - 1];
+                        long snd = stack[sp - 2];
+                        long res;
+                        if (Value.areInts(fst, snd)) {
+                            res = fst + snd;
+                            if (Value.isOverflow(res)) {
+                                trap = Trap.ARITHMETIC_OVERFLOW;
+                                break loop;
+                            }
+                        } else if (Value.isPointer(fst) && Value.isInt(snd)) {
+                            res = Value.pointer(Value.address(fst) + Value.toInt(snd));
+                        } else if (Value.isInt(fst) && Value.isPointer(snd)) {
+                            res = Value.pointer(Value.address(snd) + Value.toInt(fst));
+                        } else {
+                            trap = Trap.TYPE_ERROR;
+                            break loop;
+                        }
+                        stack[--sp - 1] = res;
                     }
-                }
 
-                case MUL -> {
-                    Trap trap = wordBinop((w1, w2) ->  new Word(w1.word() * w2.word()));
-                    if (trap != Trap.OK) {
-                        return trap;
+                    case Opcodes.SUB -> {
+                        if (checked && sp < 2) {
+                            trap = Trap.STACK_UNDERFLOW;
+                            break loop;
+                        }
+                        long fst = stack[sp - 1];
+                        long snd = stack[sp - 2];
+                        if (Value.areInts(fst, snd)) {
+                            stack[--sp - 1] = Value.fromInt(Value.toInt(fst) - Value.toInt(snd));
+                        } else if (Value.isPointer(fst) && Value.isInt(snd)) {
+                            stack[--sp - 1] = Value.pointer(Value.address(fst) - Value.toInt(snd));
+                        } else {
+                            trap = Trap.TYPE_ERROR;
+                            break loop;
+                        }
                     }
-                }
 
-                case DIV -> {
-                    if (stack.size() < 2) {
-                        return Trap.STACK_UNDERFLOW;
+                    case Opcodes.MUL -> {
+                        if (checked && sp < 2) {
+                            trap = Trap.STACK_UNDERFLOW;
+                            break loop;
+                        }
+                        long fst = stack[sp - 1];
+                        long snd = stack[sp - 2];
+                        if (!Value.areInts(fst, snd)) {
+                            trap = Trap.TYPE_ERROR;
+                            break loop;
+                        }
+                        stack[--sp - 1] = Value.fromInt(Value.toInt(fst) * Value.toInt(snd));
                     }
-                    Word fst = stack.pop();
-                    Word snd = stack.pop();
-                    if (snd.word() == 0) {
-                        return Trap.DIVISION_BY_ZERO;
+
+                    case Opcodes.DIV -> {
+                        if (checked && sp < 2) {
+                            trap = Trap.STACK_UNDERFLOW;
+                            break loop;
+                        }
+                        long fst = stack[sp - 1];
+                        long snd = stack[sp - 2];
+                        if (!Value.areInts(fst, snd)) {
+                            trap = Trap.TYPE_ERROR;
+                            break loop;
+                        }
+                        if (snd == Value.FALSE) {
+                            trap = Trap.DIVISION_BY_ZERO;
+                            break loop;
+                        }
+                        stack[--sp - 1] = Value.fromInt(Value.toInt(fst) / Value.toInt(snd));
                     }
-                    stack.push(new Word(fst.word() / snd.word()));
-                }
 
-                case PRINT -> {
-                    if (stack.isEmpty()) {
-                        return Trap.STACK_UNDERFLOW;
+                    case Opcodes.PRINT -> {
+                        if (checked && sp == 0) {
+                            trap = Trap.STACK_UNDERFLOW;
+                            break loop;
+                        }
+                        print(stack[--sp]);
+                    }
+
+                    case Opcodes.JEQ -> {
+                        final int addr = operands[ip];
+                        if (checked && (addr < 0 || addr > size)) {
+                            trap = Trap.ILLEGAL_INSTR_ACCESS;
+                            break loop;
+                        }
+                        if (checked && sp < 2) {
+                            trap = Trap.STACK_UNDERFLOW;
+                            break loop;
+                        }
+                        sp -= 2;
+                        if (stack[sp] == stack[sp + 1]) {
+                            if (jit != null && addr <= ip) {
+                                CompiledCode code = jit.enter(addr);
+                                if (code != null) {
+                                    ip = runCompiled(code, addr, sp, rsp, retired);
+                                    continue resume;
+                                }
+                            }
+                            ip = addr;
+                            continue;
+                        }
+                    }
+
+                    case Opcodes.ADDI -> {
+                        if (checked && sp == 0) {
+                            trap = Trap.STACK_UNDERFLOW;
+                            break loop;
+                        }
+                        long value = stack[sp - 1];
+                        if (Value.isInt(value)) {
+                            long res = value + Value.fromInt(operands[ip]);
+                            if (Value.isOverflow(res)) {
+                                trap = Trap.ARITHMETIC_OVERFLOW;
+                                break loop;
+                            }
+                            stack[sp - 1] = res;
+                        } else if (Value.isPointer(value)) {
+                            stack[sp - 1] = Value.pointer(Value.address(value) + operands[ip]);
+                        } else {
+                            trap = Trap.TYPE_ERROR;
+                            break loop;
+                        }
+                    }
+
+                    case Opcodes.NIL -> {
+                        if (sp == stack.length) {
+                            if (!growStack()) {
+                                trap = Trap.STACK_OVERFLOW;
+                                break loop;
+                            }
+                            stack = this.stack;
+                        }
+                        stack[sp++] = Value.NIL;
+                    }
+
+                    case Opcodes.SYM -> {
+                        if (sp == stack.length) {
+                            if (!growStack()) {
+                                trap = Trap.STACK_OVERFLOW;
+                                break loop;
+                            }
+                            stack = this.stack;
+                        }
+                        stack[sp++] = Value.symbol(operands[ip]);
+                    }
+
+                    // replaces the value on top of the stack by its type, see Value
+                    case Opcodes.TAG -> {
+                        if (checked && sp == 0) {
+                            trap = Trap.STACK_UNDERFLOW;
+                            break loop;
+                        }
+                        stack[sp - 1] = Value.fromInt(Value.typeOf(stack[sp - 1]));
+                    }
+
+                    case Opcodes.DUP2 -> {
+                        if (checked && sp < 2) {
+                            trap = Trap.STACK_UNDERFLOW;
+                            break loop;
+                        }
+                        while (sp + 2 > stack.length) {
+                            if (!growStack()) {
+                                trap = Trap.STACK_OVERFLOW;
+                                break loop;
+                            }
+                            stack = this.stack;
+                        }
+                        stack[sp] = stack[sp - 2];
+                        stack[sp + 1] = stack[sp - 1];
+                        sp += 2;
+                    }
+
+                    // the callee returns directly to our caller: no return address is pushed, and the frames of the
+                    // procedure are left, the arguments above their locals are kept
+                    case Opcodes.TAILCALL -> {
+                        final int addr = operands[ip];
+                        if (checked && (addr < 0 || addr > size)) {
+                            trap = Trap.ILLEGAL_INSTR_ACCESS;
+                            break loop;
+                        }
+                        if (rsp > 0 && returnStack[rsp - 1] < 0) {
+                            this.sp = sp;
+                            this.rsp = rsp;
+                            boolean left = leaveFrames();
+                            sp = this.sp;
+                            rsp = this.rsp;
+                            if (!left) {
+                                trap = Trap.STACK_UNDERFLOW;
+                                break loop;
+                            }
+                        }
+                        if (jit != null) {
+                            CompiledCode code = jit.enter(addr);
+                            if (code != null) {
+                                ip = runCompiled(code, addr, sp, rsp, retired);
+                                continue resume;
+                            }
+                        }
+                        ip = addr;
+                        continue;
+                    }
+
+                    case Opcodes.HALT -> {
+                        halt = true;
+                        break loop;
+                    }
+
+                    case Opcodes.DUMP -> {
+                        this.sp = sp;
+                        flushOutput();
+                        dump();
                     }
-                    System.out.println(">>>>> " + stack.pop().word());
-                }
 
-                case HALT -> {
-                    halt = true;
-                    break loop;
+                    case Opcodes.BREAK -> {
+                        trap = Trap.BREAKPOINT;
+                        break loop;
+                    }
+
+                    case Opcodes.SNAPSHOT -> {
+                        if (parameters.snapshot != null) {
+                            // the image would only hold this task
+                            // or the channels the tasks use to communicate
+                            if ((scheduler != null && scheduler.liveTasks() > 1)
+                                    || (channels != null && channels.size() > 0)) {
+                                trap = Trap.TASK_ERROR;
+                                break loop;
+                            }
+                            this.ip = ++ip;
+                            this.sp = sp;
+                            this.rsp = rsp;
+                            this.retired = retired;
+                            snapshot(parameters.snapshot);
+                            halt = true;
+                            break loop;
+                        }
+                    }
+
+                    // starts a task at the address, the value on top of the stack is moved to the stack of the task
+                    case Opcodes.SPAWN -> {
+                        final int addr = operands[ip];
+                        if (checked && sp == 0) {
+                            trap = Trap.STACK_UNDERFLOW;
+                            break loop;
+                        }
+                        if (checked && (addr < 0 || addr > size)) {
+                            trap = Trap.ILLEGAL_INSTR_ACCESS;
+                            break loop;
+                        }
+                        // the heap of a machine is only used by its own task
+                        if (Value.isPointer(stack[sp - 1])) {
+                            trap = Trap.TYPE_ERROR;
+                            break loop;
+                        }
+                        if (scheduler == null) {
+                            trap = Trap.TASK_ERROR;
+                            break loop;
+                        }
+                        spawn(addr, stack[--sp]);
+                    }
+
+                    // ends the slice of the task, the other tasks of its carrier run before it continues
+                    case Opcodes.YIELD -> {
+                        if (scheduler != null) {
+                            yielded = true;
+                            ip++;
+                            break loop;
+                        }
+                    }
+
+                    // creates a channel of the capacity given, see Channel
+                    case Opcodes.CHAN -> {
+                        if (sp == stack.length) {
+                            if (!growStack()) {
+                                trap = Trap.STACK_OVERFLOW;
+                                break loop;
+                            }
+                            stack = this.stack;
+                        }
+                        final long channel = channels().create(operands[ip]);
+                        if (channel == Value.NIL) {
+                            trap = Trap.OUT_OF_MEMORY;
+                            break loop;
+                        }
+                        stack[sp++] = channel;
+                    }
+
+                    // sends the value on top of the stack to the channel under it, the task is parked while it is full
+                    case Opcodes.SEND -> {
+                        if (checked && sp < 2) {
+                            trap = Trap.STACK_UNDERFLOW;
+                            break loop;
+                        }
+                        final Channel channel = channel(stack[sp - 2]);
+                        if (channel == null || Value.isPointer(stack[sp - 1])) {
+                            trap = Trap.TYPE_ERROR;
+                            break loop;
+                        }
+                        if (!channel.offer(stack[sp - 1])) {
+                            if (!block(channel, true)) {
+                                trap = Trap.TASK_ERROR;
+                                break loop;
+                            }
+                            // run again once woken
+                            retired--;
+                            break loop;
+                        }
+                        sp -= 2;
+                        if (!channel.receivers.isEmpty()) {
+                            scheduler.wake(channel.receivers);
+                        }
+                    }
+
+                    // replaces the channel on top of the stack by a value received from it, the task is parked while it
+                    // is empty
+                    case Opcodes.RECV -> {
+                        if (checked && sp == 0) {
+                            trap = Trap.STACK_UNDERFLOW;
+                            break loop;
+                        }
+                        final Channel channel = channel(stack[sp - 1]);
+                        if (channel == null) {
+                            trap = Trap.TYPE_ERROR;
+                            break loop;
+                        }
+                        final long value = channel.poll();
+                        if (value == Channel.EMPTY) {
+                            if (!block(channel, false)) {
+                                trap = Trap.TASK_ERROR;
+                                break loop;
+                            }
+                            retired--;
+                            break loop;
+                        }
+                        stack[sp - 1] = value;
+                        if (!channel.senders.isEmpty()) {
+                            scheduler.wake(channel.senders);
+                        }
+                    }
+
+                    // recv without blocking: the value received and 1, or nil and 0 if the channel is empty
+                    case Opcodes.TRYRECV -> {
+                        if (checked && sp == 0) {
+                            trap = Trap.STACK_UNDERFLOW;
+                            break loop;
+                        }
+                        if (sp == stack.length) {
+                            if (!growStack()) {
+                                trap = Trap.STACK_OVERFLOW;
+                                break loop;
+                            }
+                            stack = this.stack;
+                        }
+                        final Channel channel = channel(stack[sp - 1]);
+                        if (channel == null) {
+                            trap = Trap.TYPE_ERROR;
+                            break loop;
+                        }
+                        final long value = channel.poll();
+                        if (value == Channel.EMPTY) {
+                            stack[sp - 1] = Value.NIL;
+                            stack[sp++] = Value.FALSE;
+                        } else {
+                            stack[sp - 1] = value;
+                            stack[sp++] = Value.TRUE;
+                            if (!channel.senders.isEmpty()) {
+                                scheduler.wake(channel.senders);
+                            }
+                        }
+                    }
+
+                    // copies n words to the memory at dst from the memory at src, or n bytes of the data section at src
+                    // given as an int, each byte becoming an int
+                    case Opcodes.MEMCPY -> {
+                        if (checked && sp < 3) {
+                            trap = Trap.STACK_UNDERFLOW;
+                            break loop;
+                        }
+                        final long dst = stack[sp - 3], src = stack[sp - 2], count = stack[sp - 1];
+                        if (!Value.isPointer(dst) || !(Value.isPointer(src) || Value.isInt(src))
+                                || !Value.isInt(count)) {
+                            trap = Trap.TYPE_ERROR;
+                            break loop;
+                        }
+                        // the bounds of both regions are checked once, before anything is written
+                        if (!isValidRegion(dst, Value.toInt(count)) || !isValidRegion(src, Value.toInt(count))) {
+                            trap = Trap.ILLEGAL_MEMORY_ACCESS;
+                            break loop;
+                        }
+                        memcpy(Value.address(dst), src, Value.toInt(count));
+                        sp -= 3;
+                    }
+
+                    // sets n words of memory from dst to the value
+                    case Opcodes.MEMSET -> {
+                        if (checked && sp < 3) {
+                            trap = Trap.STACK_UNDERFLOW;
+                            break loop;
+                        }
+                        final long dst = stack[sp - 3], count = stack[sp - 1];
+                        if (!Value.isPointer(dst) || !Value.isInt(count)) {
+                            trap = Trap.TYPE_ERROR;
+                            break loop;
+                        }
+                        if (!isValidRegion(dst, Value.toInt(count))) {
+                            trap = Trap.ILLEGAL_MEMORY_ACCESS;
+                            break loop;
+                        }
+                        heap().fillWords(Value.address(dst), stack[sp - 2], Value.toInt(count));
+                        sp -= 3;
+                    }
+
+                    // compares n words of memory at a to n words at b, or to n bytes of the data section like memcpy
+                    case Opcodes.MEMCMP -> {
+                        if (checked && sp < 3) {
+                            trap = Trap.STACK_UNDERFLOW;
+                            break loop;
+                        }
+                        final long a = stack[sp - 3], b = stack[sp - 2], count = stack[sp - 1];
+                        if (!Value.isPointer(a) || !(Value.isPointer(b) || Value.isInt(b)) || !Value.isInt(count)) {
+                            trap = Trap.TYPE_ERROR;
+                            break loop;
+                        }
+                        if (!isValidRegion(a, Value.toInt(count)) || !isValidRegion(b, Value.toInt(count))) {
+                            trap = Trap.ILLEGAL_MEMORY_ACCESS;
+                            break loop;
+                        }
+                        sp -= 2;
+                        stack[sp - 1] = Value.fromInt(memcmp(Value.address(a), b, Value.toInt(count)));
+                    }
+
+                    // the n values on top of the stack become the locals of a new frame
+                    case Opcodes.ENTER -> {
+                        final int locals = operands[ip];
+                        if (checked && (locals < 0 || locals > sp)) {
+                            trap = Trap.STACK_UNDERFLOW;
+                            break loop;
+                        }
+                        while (rsp + 2 > returnStack.length) {
+                            if (!growReturnStack()) {
+                                trap = Trap.STACK_OVERFLOW;
+                                break loop;
+                            }
+                            returnStack = this.returnStack;
+                        }
+                        returnStack[rsp++] = fp;
+                        returnStack[rsp++] = ~locals;
+                        fp = sp - locals;
+                    }
+
+                    // locals are read and written in place, the procedure must have entered a frame
+                    case Opcodes.LOAD_LOCAL -> {
+                        final int local = operands[ip];
+                        if (checked && (rsp == 0 || local < 0 || local >= ~returnStack[rsp - 1] || fp + local >= sp)) {
+                            trap = Trap.ILLEGAL_MEMORY_ACCESS;
+                            break loop;
+                        }
+                        if (sp == stack.length) {
+                            if (!growStack()) {
+                                trap = Trap.STACK_OVERFLOW;
+                                break loop;
+                            }
+                            stack = this.stack;
+                        }
+                        stack[sp] = stack[fp + local];
+                        sp++;
+                    }
+
+                    case Opcodes.STORE_LOCAL -> {
+                        final int local = operands[ip];
+                        if (checked && sp == 0) {
+                            trap = Trap.STACK_UNDERFLOW;
+                            break loop;
+                        }
+                        if (checked && (rsp == 0 || local < 0 || local >= ~returnStack[rsp - 1]
+                                || fp + local >= sp - 1)) {
+                            trap = Trap.ILLEGAL_MEMORY_ACCESS;
+                            break loop;
+                        }
+                        stack[fp + local] = stack[--sp];
+                    }
+
+                    default -> throw new RuntimeException(
+                            Instruction.Type.fromOpcode(opcodes[ip]) + " not yet implemented");
                 }
+                ip++;
+            }
+            this.ip = ip;
+            this.sp = sp;
+            this.rsp = rsp;
+            this.retired = retired;
+            break;
+        }
+        halt = halt || ip >= size;
+        if (halt || trap != Trap.OK) {
+            flushOutput();
+        }
+        return trap;
+    }
+
+    // transfers the execution to the code compiled from addr, which runs on the registers of the machine and returns
+    // the address to resume the interpreter at
+    private int runCompiled(CompiledCode code, int addr, int sp, int rsp, long retired) {
+        this.sp = sp;
+        this.rsp = rsp;
+        this.retired = retired;
+        return code.execute(this, addr);
+    }
 
-                case DUMP -> dump();
-                default -> throw new RuntimeException(instr.type + " not yet implemented");
+    /**
+     * Leaves the frames on top of the return stack, entered by the current procedure: the values above the locals
+     * of a frame are moved down in place of its locals, and the frame pointer of the previous frame is restored.
+     * @return false if a frame lost some of its locals, a STACK_UNDERFLOW
+     */
+    boolean leaveFrames() {
+        while (rsp > 0 && returnStack[rsp - 1] < 0) {
+            int top = fp + ~returnStack[rsp - 1];
+            if (sp < top) {
+                return false;
             }
-            if (parameters.debug) {
-                dump();
+            int kept = sp - top;
+            System.arraycopy(stack, top, stack, fp, kept);
+            sp = fp + kept;
+            fp = returnStack[rsp - 2];
+            rsp -= 2;
+        }
+        return true;
+    }
+
+    Heap heap() {
+        if (heap == null) {
+            heap = new Heap(parameters.maxHeapSize);
+        }
+        return heap;
+    }
+
+    // LOAD
+    int load(int addr) {
+        return programm.dataSection().getInt(addr);
+    }
+
+    // PRINT
+    void print(long value) {
+        if (output == null) {
+            output = new OutputBuffer(parameters.output != null ? parameters.output : Output.stdout());
+        }
+        output.print(value);
+    }
+
+    /**
+     * Waits until everything printed so far is written. Done when the machine halts or raises a trap, a machine
+     * stopped by the instructions limit of {@link #run(long)} keeps its output buffered until then.
+     */
+    public void flushOutput() {
+        if (output != null) {
+            output.flush();
+        }
+    }
+
+    // SPAWN: a machine of its own for the task, started by the scheduler of this one
+    private void spawn(int entry, long argument) {
+        scheduler.spawn(new VirtualMachine(this, scheduler.nextTaskId(), entry, argument));
+    }
+
+    Channels channels() {
+        if (channels == null) {
+            channels = new Channels();
+        }
+        return channels;
+    }
+
+    // MEMCPY, MEMSET, MEMCMP: count words from a pointer in the used part of the heap, or count bytes from an int
+    // address in the data section
+    private boolean isValidRegion(long addr, int count) {
+        if (Value.isPointer(addr)) {
+            return heap().isValidRegion(Value.address(addr), count);
+        }
+        int offset = Value.toInt(addr);
+        return count >= 0 && offset >= 0 && (long) offset + count <= programm.dataSection().capacity();
+    }
+
+    // MEMCPY
+    private void memcpy(int dst, long src, int count) {
+        if (Value.isPointer(src)) {
+            heap().copyWords(dst, Value.address(src), count);
+        } else {
+            heap().copyBytes(dst, programm.dataSection(), Value.toInt(src), count);
+        }
+    }
+
+    // MEMCMP
+    private int memcmp(int a, long b, int count) {
+        return Value.isPointer(b)
+                ? heap().compareWords(a, Value.address(b), count)
+                : heap().compareBytes(a, programm.dataSection(), Value.toInt(b), count);
+    }
+
+    // SEND, RECV: null if the value is not a channel
+    private Channel channel(long value) {
+        return channels == null ? null : channels.get(value);
+    }
+
+    // SEND, RECV: ends the run on the instruction, the scheduler parks the task until the channel wakes it
+    private boolean block(Channel channel, boolean sending) {
+        // outside of a scheduler, no other task could ever wake the machine
+        if (scheduler == null) {
+            return false;
+        }
+        blockedOn = channel;
+        blockedSending = sending;
+        yielded = true;
+        return true;
+    }
+
+    private static boolean spawnsTasks(Program programm) {
+        for (int opcode : programm.opcodes()) {
+            if (opcode == Opcodes.SPAWN) {
+                return true;
             }
-            ip++;
-            halt = ip >= programm.size();
         }
-        return Trap.OK;
+        return false;
+    }
+
+    // SNAPSHOT: saves the state of the machine (registers, stacks and heap) with its programm to an image, which
+    // restore loads to continue after the snapshot. Everything printed so far is written first
+    private void snapshot(Path image) {
+        flushOutput();
+        ImageFile.write(this, image);
+    }
+
+    /**
+     * Loads a machine saved to an image by the snapshot instruction, see {@link Parameters#snapshot}, ready to
+     * continue its execution after the snapshot. The image is memory mapped: the programm is decoded straight from the
+     * mapping as for a *.li file, only the stacks and the heap are copied.
+     * @throws UncheckedIOException if the image cannot be read
+     * @throws InvalidProgramException if the file is not a valid image, or its state does not fit in the limits of
+     * the parameters
+     */
+    public static VirtualMachine restore(String image, Parameters parameters) {
+        return ImageFile.read(image, parameters);
+    }
+
+    // sets the state read from an image by ImageFile, on a machine that did not run yet
+    void restore(int ip, long[] stack, int sp, int[] returnStack, int rsp, int fp, long retired, Heap heap) {
+        this.ip = ip;
+        this.stack = stack;
+        this.sp = sp;
+        this.returnStack = returnStack;
+        this.rsp = rsp;
+        this.fp = fp;
+        this.retired = retired;
+        this.heap = heap;
     }
 
     private void debugPrintDataSection() {
         System.out.println("===== DATA SECTION =====");
-        ByteBuffer dataSection = programm.getDataSection();
-        System.out.println(DATA_SECTION_HEX_FORMAT.formatHex(dataSection.array(), 0, dataSection.capacity()));
-        if (dataSection.remaining() > 0) {
-            System.out.printf("... (%d empty remaining bytes ommited)\n", dataSection.remaining());
-        }
+        System.out.println(DATA_SECTION_HEX_FORMAT.formatHex(programm.getDataSectionBytes()));
         System.out.println("===== END DATA SECTION ===== ");
     }
 
-    private Trap doJump(Instruction instr) {
-        final int addr = instr.operand.word();
-        if (addr < 0 || addr > programm.size()) {
-            return Trap.ILLEGAL_INSTR_ACCESS;
+    boolean growStack() {
+        if (stack.length >= parameters.maxStackSize) {
+            return false;
+        }
+        int newCapacity = (int) Math.min((long) stack.length * 2, parameters.maxStackSize);
+        stack = Arrays.copyOf(stack, Math.max(newCapacity, 1));
+        return true;
+    }
+
+    boolean growReturnStack() {
+        if (returnStack.length >= parameters.maxReturnStackSize) {
+            return false;
         }
-        this.ip = addr;
-        return Trap.OK;
+        int newCapacity = (int) Math.min((long) returnStack.length * 2, parameters.maxReturnStackSize);
+        returnStack = Arrays.copyOf(returnStack, Math.max(newCapacity, 1));
+        return true;
     }
 
-    private Trap wordBinop(BinaryOperator<Word> binop) {
-        if (stack.size() < 2) {
-            return Trap.STACK_UNDERFLOW;
+    /**
+     * @return the profile of the execution so far, or null if the machine is not profiling.
+     */
+    public Profiler getProfiler() {
+        return profiler;
+    }
+
+    /**
+     * @return the debugger of the machine.
+     * @throws IllegalStateException if the machine does not run with {@link Parameters#debug}.
+     */
+    public Debugger debugger() {
+        if (!parameters.debug) {
+            throw new IllegalStateException("The machine must run in debug mode to be debugged");
         }
-        Word fst = stack.pop();
-        Word snd = stack.pop();
-        try {
-            stack.push(binop.apply(fst, snd));
-        } catch (ArithmeticException ae) {
-            return Trap.ARITHMETIC_OVERFLOW;
+        if (debugger == null) {
+            debugger = new Debugger(this);
         }
-        return Trap.OK;
+        return debugger;
+    }
+
+    Program program() {
+        return programm;
+    }
+
+    // null when the programm never allocated memory
+    Heap heapIfAllocated() {
+        return heap;
+    }
+
+    /**
+     * @return the statistics of the garbage collector, all 0 if the programm never allocated memory.
+     */
+    public GcStats getGcStats() {
+        return heap == null ? GcStats.NONE : heap.gc().stats();
     }
 
+    /**
+     * @return true if the machine runs without the checks proven useless by the {@link Verifier}.
+     */
+    public boolean isUnchecked() {
+        return unchecked;
+    }
+
+    /**
+     * @return true if the machine runs the register translation of its programm.
+     */
+    public boolean isRegisterBased() {
+        return registerCode != null;
+    }
+
+    public boolean isHalted() {
+        return halt;
+    }
+
+    public long getRetiredInstructions() {
+        return retired;
+    }
 
     public void dump() {
         System.out.println("Stack:");
-        if (stack.isEmpty()) {
+        if (sp == 0) {
             System.out.println("    [EMPTY]");
         }
-        stack.forEach(word -> {
-            System.out.println("    " + word);
-        });
+        for (int i = sp - 1; i >= 0; i--) {
+            System.out.println("    Word[" + Value.toString(stack[i]) + "]");
+        }
     }
 }
@@ -1,9 +1,12 @@
 package ca.applin.livm.dislasm;
 
+import ca.applin.livm.core.InvalidProgramException;
 import ca.applin.livm.core.Program;
 
 import java.io.*;
+import java.util.HashMap;
 import java.util.HexFormat;
+import java.util.Map;
 
 public class Dilasm {
 
@@ -26,13 +29,29 @@ public class Dilasm {
             System.exit(-1);
         }
         initArgs(args);
-        Program program = Program.deserialize(file);
+        Program program;
+        // labels of the jump targets and procedures, empty when the file has no label table
+        Map<Integer, Program.Label> labels = new HashMap<>();
+        try {
+            program = Program.deserialize(file);
+            Program.readLabels(file).forEach(label -> labels.put(label.address(), label));
+        } catch (InvalidProgramException | UncheckedIOException e) {
+            System.err.println("ERROR: " + e.getMessage());
+            System.exit(-1);
+            return;
+        }
         try (PrintStream ps = outputFile == null
                 ? System.out
                 : new PrintStream(new FileOutputStream(outputFile))) {
-            program.iterator().forEachRemaining(inst ->ps.println(inst.toAsm()));
+            for (int ip = 0; ip < program.size(); ip++) {
+                Program.Label label = labels.get(ip);
+                if (label != null) {
+                    ps.println(label.name() + ":");
+                }
+                ps.println(program.getInstruction(ip).toAsm());
+            }
             ps.println(";; data section");
-            ps.println(HexFormat.ofDelimiter(" ").formatHex(program.getDataSection().array()));
+            ps.println(HexFormat.ofDelimiter(" ").formatHex(program.getDataSectionBytes()));
         } catch (IOException ioe) {
             System.err.println("ERROR: Encountered a problem during dissasembly: " + ioe.getMessage());
             ioe.printStackTrace();
@@ -1,10 +1,18 @@
 package ca.applin.livm.lasm;
 
+import ca.applin.livm.core.Instruction;
+import ca.applin.livm.core.LiOptions;
 import ca.applin.livm.core.Program;
+import ca.applin.livm.optimizer.Optimizer;
+import ca.applin.livm.optimizer.PairProfile;
+import ca.applin.livm.optimizer.Superinstructions;
 
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
 
 public class Lasm {
 
@@ -12,13 +20,25 @@ public class Lasm {
         System.out.println(
                 """
                 usage:
-                lasm <INPUT FILE> [-o <OUTPUT FILE>]
+                lasm <INPUT FILE> [-o <OUTPUT FILE>] [-O <LEVEL>] [--train <MAX STEPS>] [--v1] [--compress] [--labels]
+
+                -O <LEVEL>             optimization level, 0 (default) to 3
+                --train <MAX STEPS>    run the programm for at most MAX STEPS instructions and only use the
+                                       superinstructions of the pairs executed the most
+                --v1                   write the version 1 *.li format
+                --compress             deflate the code section
+                --labels               add the table of jump targets and procedures
                 """
         );
     }
 
     public static String file;
     public static String outputFile;
+    public static int optimizationLevel;
+    public static long trainingSteps;
+    public static int version = 2;
+    public static boolean compress;
+    public static boolean labels;
 
     public static void main(String[] args) {
         if (args.length == 0) {
@@ -27,11 +47,16 @@ public class Lasm {
             System.exit(-1);
         }
         initArgs(args);
-        Program program = Program.fromAsmFile(file);
+        Program program = trainingSteps > 0
+                ? trainedProgram()
+                : Program.fromAsmFile(file, optimizationLevel);
         try (PrintStream ps = outputFile == null
                 ? System.out
                 : new PrintStream(new FileOutputStream(outputFile))) {
-            program.serialize(ps);
+            program.serialize(ps, new LiOptions(version, compress, labels));
+        } catch (IllegalArgumentException e) {
+            System.err.println("ERROR: " + e.getMessage());
+            System.exit(-1);
         } catch (IOException ioe) {
             System.err.printf("ERROR: could not save file %s. Cause: %s\n", file, ioe.getMessage());
             ioe.printStackTrace();
@@ -41,15 +66,71 @@ public class Lasm {
 
     private static void initArgs(String[] args) {
         file = args[0];
-        if (args.length == 1) {
-            return;
-        }
-        if (args.length != 3 || !"-o".equals(args[1])) {
-            System.err.println("ERROR: Incorrect argument");
-            usage();
-            return;
+        for (int i = 1; i < args.length; i += 2) {
+            // flags without a value
+            switch (args[i]) {
+                case "--v1" -> {
+                    version = 1;
+                    i--;
+                    continue;
+                }
+                case "--compress" -> {
+                    compress = true;
+                    i--;
+                    continue;
+                }
+                case "--labels" -> {
+                    labels = true;
+                    i--;
+                    continue;
+                }
+                default -> { }
+            }
+            if (i + 1 >= args.length) {
+                incorrectArguments();
+            }
+            switch (args[i]) {
+                case "-o" -> outputFile = args[i + 1];
+                case "-O" -> {
+                    try {
+                        optimizationLevel = Integer.parseInt(args[i + 1]);
+                    } catch (NumberFormatException nfe) {
+                        incorrectArguments();
+                    }
+                    if (optimizationLevel < 0 || optimizationLevel > Optimizer.MAX_LEVEL) {
+                        incorrectArguments();
+                    }
+                }
+                case "--train" -> {
+                    try {
+                        trainingSteps = Long.parseLong(args[i + 1]);
+                    } catch (NumberFormatException nfe) {
+                        incorrectArguments();
+                    }
+                    if (trainingSteps <= 0) {
+                        incorrectArguments();
+                    }
+                }
+                default -> incorrectArguments();
+            }
         }
-        outputFile = args[2];
+    }
+
+    // the programm is optimized without superinstructions, run, then only the frequent pairs are fused
+    private static Program trainedProgram() {
+        Program program = Program.fromAsmFile(file, Math.min(optimizationLevel, 2));
+        PairProfile profile = PairProfile.train(program, trainingSteps);
+        Set<Superinstructions.Fusion> fusions = profile.select(PairProfile.DEFAULT_MIN_SHARE);
+        System.err.printf("INFO: trained on %d pairs, fusing %s\n", profile.total(), fusions);
+        List<Instruction> instructions = new ArrayList<>(program.size());
+        program.forEach(instructions::add);
+        return new Program(new Superinstructions(fusions).apply(instructions), program.getDataSection());
+    }
+
+    private static void incorrectArguments() {
+        System.err.println("ERROR: Incorrect argument");
+        usage();
+        System.exit(-1);
     }
 
 
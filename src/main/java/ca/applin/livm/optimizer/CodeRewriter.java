@@ -0,0 +1,77 @@
+package ca.applin.livm.optimizer;
+
+import ca.applin.livm.core.Instruction;
+import ca.applin.livm.core.Word;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Helpers shared by the optimization passes to find jump targets and to remove instructions while keeping the
+ * branch targets pointing to the right instructions.
+ */
+final class CodeRewriter {
+
+    private CodeRewriter() { }
+
+    static boolean isBranch(Instruction.Type type) {
+        return switch (type) {
+            case JMP, JNZ, CALL, JEQ, TAILCALL, SPAWN -> true;
+            default -> false;
+        };
+    }
+
+    /**
+     * @return the addresses targeted by a jmp, jnz, jeq, call, tailcall or spawn instruction
+     */
+    static BitSet branchTargets(List<Instruction> instructions) {
+        BitSet targets = new BitSet(instructions.size());
+        for (Instruction instr : instructions) {
+            if (isBranch(instr.type) && instr.operand != null) {
+                int target = instr.operand.word();
+                if (target >= 0) {
+                    targets.set(target);
+                }
+            }
+        }
+        return targets;
+    }
+
+    /**
+     * Removes the instructions at the addresses set in {@code removed}. A branch targeting a removed instruction
+     * now targets the next instruction that is kept.
+     */
+    static List<Instruction> remove(List<Instruction> instructions, BitSet removed) {
+        if (removed.isEmpty()) {
+            return instructions;
+        }
+        int size = instructions.size();
+        // newAddress[i] is the address of the first kept instruction at or after i
+        int[] newAddress = new int[size + 1];
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            newAddress[i] = kept;
+            if (!removed.get(i)) {
+                kept++;
+            }
+        }
+        newAddress[size] = kept;
+
+        List<Instruction> result = new ArrayList<>(kept);
+        for (int i = 0; i < size; i++) {
+            if (removed.get(i)) {
+                continue;
+            }
+            Instruction instr = instructions.get(i);
+            if (isBranch(instr.type) && instr.operand != null) {
+                int target = instr.operand.word();
+                if (target >= 0 && target <= size && newAddress[target] != target) {
+                    instr = new Instruction(instr.type, new Word(newAddress[target]));
+                }
+            }
+            result.add(instr);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,60 @@
+package ca.applin.livm.optimizer;
+
+import ca.applin.livm.core.Instruction;
+import ca.applin.livm.core.Word;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Evaluates arithmetic on constants at assembly time: {@code push a; push b; add|sub|mul|div|eq} is replaced by a
+ * single push of the result. Sequences containing a branch target, or that would raise a trap at runtime (overflow,
+ * division by zero), are left untouched. Longer expressions are folded by the next runs of the pass.
+ */
+public class ConstantFolding implements OptimizationPass {
+
+    @Override
+    public String name() {
+        return "constant-folding";
+    }
+
+    @Override
+    public List<Instruction> apply(List<Instruction> instructions) {
+        BitSet targets = CodeRewriter.branchTargets(instructions);
+        List<Instruction> result = new ArrayList<>(instructions);
+        BitSet removed = new BitSet(instructions.size());
+        for (int i = 0; i + 1 < result.size(); i++) {
+            Instruction fst = result.get(i);
+            if (fst.type != Instruction.Type.PUSH) {
+                continue;
+            }
+            Instruction snd = result.get(i + 1);
+            if (snd.type != Instruction.Type.PUSH || i + 2 >= result.size()
+                    || targets.get(i + 1) || targets.get(i + 2)) {
+                continue;
+            }
+            // the operation pops b first (top of the stack) then a
+            int a = fst.operand.word();
+            int b = snd.operand.word();
+            Integer folded = switch (result.get(i + 2).type) {
+                case ADD -> {
+                    long sum = (long) b + a;
+                    yield sum == (int) sum ? (int) sum : null;
+                }
+                case SUB -> b - a;
+                case MUL -> b * a;
+                case DIV -> a == 0 ? null : b / a;
+                case EQ -> a == b ? 1 : 0;
+                default -> null;
+            };
+            if (folded == null) {
+                continue;
+            }
+            result.set(i, Instruction.INSTR_PUSH_INT(new Word(folded)));
+            removed.set(i + 1, i + 3);
+            i += 2;
+        }
+        return removed.isEmpty() ? instructions : CodeRewriter.remove(result, removed);
+    }
+}
@@ -0,0 +1,69 @@
+package ca.applin.livm.optimizer;
+
+import ca.applin.livm.core.Instruction;
+import ca.applin.livm.core.Word;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Makes branches skip over intermediate jumps:
+ * <ul>
+ *     <li>a branch to a jmp targets the final destination of the jmp chain</li>
+ *     <li>a jmp to a ret or a halt is replaced by that ret or halt</li>
+ *     <li>a jmp to the next instruction is replaced by a nop</li>
+ * </ul>
+ */
+public class JumpThreading implements OptimizationPass {
+
+    @Override
+    public String name() {
+        return "jump-threading";
+    }
+
+    @Override
+    public List<Instruction> apply(List<Instruction> instructions) {
+        List<Instruction> result = null;
+        for (int i = 0; i < instructions.size(); i++) {
+            Instruction instr = instructions.get(i);
+            if (!CodeRewriter.isBranch(instr.type) || instr.operand == null) {
+                continue;
+            }
+            int target = finalTarget(instructions, instr.operand.word());
+            Instruction replacement = instr;
+            if (target != instr.operand.word()) {
+                replacement = new Instruction(instr.type, new Word(target));
+            }
+            if (instr.type == Instruction.Type.JMP) {
+                if (target == i + 1) {
+                    replacement = Instruction.INSTR_NOP;
+                } else if (target >= 0 && target < instructions.size()) {
+                    Instruction.Type targetType = instructions.get(target).type;
+                    if (targetType == Instruction.Type.RET || targetType == Instruction.Type.HALT) {
+                        replacement = instructions.get(target);
+                    }
+                }
+            }
+            if (replacement != instr) {
+                if (result == null) {
+                    result = new ArrayList<>(instructions);
+                }
+                result.set(i, replacement);
+            }
+        }
+        return result == null ? instructions : result;
+    }
+
+    // follows a chain of jmp, stopping on loops
+    private static int finalTarget(List<Instruction> instructions, int target) {
+        int hops = 0;
+        while (target >= 0 && target < instructions.size() && hops++ < instructions.size()) {
+            Instruction next = instructions.get(target);
+            if (next.type != Instruction.Type.JMP || next.operand == null || next.operand.word() == target) {
+                break;
+            }
+            target = next.operand.word();
+        }
+        return target;
+    }
+}
@@ -0,0 +1,28 @@
+package ca.applin.livm.optimizer;
+
+import ca.applin.livm.core.Instruction;
+
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Removes every nop instruction.
+ */
+public class NopElimination implements OptimizationPass {
+
+    @Override
+    public String name() {
+        return "nop-elimination";
+    }
+
+    @Override
+    public List<Instruction> apply(List<Instruction> instructions) {
+        BitSet nops = new BitSet(instructions.size());
+        for (int i = 0; i < instructions.size(); i++) {
+            if (instructions.get(i).type == Instruction.Type.NOP) {
+                nops.set(i);
+            }
+        }
+        return CodeRewriter.remove(instructions, nops);
+    }
+}
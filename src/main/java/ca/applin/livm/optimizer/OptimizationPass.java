@@ -0,0 +1,19 @@
+package ca.applin.livm.optimizer;
+
+import ca.applin.livm.core.Instruction;
+
+import java.util.List;
+
+/**
+ * A transformation of the instructions of a programm, run by the {@link Optimizer} before the programm is built.
+ * Passes must not modify the instructions they receive, as instances can be shared, but return new ones.
+ */
+public interface OptimizationPass {
+
+    String name();
+
+    /**
+     * @return the optimized instructions, or the same list if nothing changed.
+     */
+    List<Instruction> apply(List<Instruction> instructions);
+}
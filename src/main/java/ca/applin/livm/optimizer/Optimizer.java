@@ -0,0 +1,67 @@
+package ca.applin.livm.optimizer;
+
+import ca.applin.livm.core.Instruction;
+
+import java.util.List;
+
+/**
+ * Runs a pipeline of {@link OptimizationPass} on the instructions of a programm, between the parser and the
+ * {@link ca.applin.livm.core.Program}. The passes are run again until none of them changes the code.
+ * <p>
+ * Optimization levels:
+ * <ul>
+ *     <li>0: no optimization</li>
+ *     <li>1: nop elimination, jump threading, tail call elimination, unreachable code elimination</li>
+ *     <li>2: level 1 and constant folding</li>
+ *     <li>3: level 2 and all the {@link Superinstructions}</li>
+ * </ul>
+ */
+public class Optimizer {
+    public static final int MAX_LEVEL = 3;
+
+    // a safety net, every pass only ever shrinks or simplifies the code
+    private static final int MAX_ROUNDS = 16;
+
+    private final List<OptimizationPass> passes;
+
+    public Optimizer(List<OptimizationPass> passes) {
+        this.passes = passes;
+    }
+
+    public static Optimizer forLevel(int level) {
+        if (level < 0 || level > MAX_LEVEL) {
+            throw new IllegalArgumentException("Invalid optimization level " + level + ", must be 0 to " + MAX_LEVEL);
+        }
+        return switch (level) {
+            case 0 -> new Optimizer(List.of());
+            case 1 -> new Optimizer(List.of(
+                    new JumpThreading(), new TailCallElimination(), new UnreachableCodeElimination(),
+                    new NopElimination()));
+            case 2 -> new Optimizer(List.of(
+                    new ConstantFolding(), new JumpThreading(), new TailCallElimination(),
+                    new UnreachableCodeElimination(), new NopElimination()));
+            default -> new Optimizer(List.of(
+                    new ConstantFolding(), new JumpThreading(), new TailCallElimination(),
+                    new UnreachableCodeElimination(), new NopElimination(), new Superinstructions()));
+        };
+    }
+
+    public List<OptimizationPass> getPasses() {
+        return passes;
+    }
+
+    public List<Instruction> optimize(List<Instruction> instructions) {
+        for (int round = 0; round < MAX_ROUNDS; round++) {
+            boolean changed = false;
+            for (OptimizationPass pass : passes) {
+                List<Instruction> optimized = pass.apply(instructions);
+                changed |= optimized != instructions;
+                instructions = optimized;
+            }
+            if (!changed) {
+                break;
+            }
+        }
+        return instructions;
+    }
+}
@@ -0,0 +1,81 @@
+package ca.applin.livm.optimizer;
+
+import ca.applin.livm.core.Instruction;
+import ca.applin.livm.core.Output;
+import ca.applin.livm.core.Parameters;
+import ca.applin.livm.core.Program;
+import ca.applin.livm.core.Trap;
+import ca.applin.livm.core.VirtualMachine;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Counts how often each pair of opcodes is executed one right after the other during a training run of a
+ * programm, to select the {@link Superinstructions.Fusion} worth applying. Only pairs where the second instruction
+ * directly follows the first one in the code are counted, as those are the only ones that can be fused. A
+ * {@code call} followed by a {@code ret} counts as that pair each time it runs, even though the machine leaves the
+ * {@code ret} out.
+ * <p>
+ * The training run executes the programm in the interpreter, with the jit disabled and its output discarded. It
+ * stops after a number of steps, on halt, or on a trap.
+ */
+public class PairProfile {
+    public static final double DEFAULT_MIN_SHARE = 0.01;
+
+    private static final int OPCODES = Instruction.Type.values().length;
+
+    private final long[] counts = new long[OPCODES * OPCODES];
+    private long total;
+
+    public static PairProfile train(Program program, long maxSteps) {
+        PairProfile profile = new PairProfile();
+        VirtualMachine vm = new VirtualMachine(program, Parameters.builder().output(Output.discard()).build());
+        int previous = -1;
+        for (long step = 0; step < maxSteps && !vm.isHalted() && vm.ip >= 0 && vm.ip < program.size(); step++) {
+            int ip = vm.ip;
+            if (previous >= 0 && ip == previous + 1) {
+                profile.record(program.getOpcode(previous), program.getOpcode(ip));
+            }
+            // call x; ret runs as a tailcall, the ret is never executed but the pair is
+            if (program.getOpcode(ip) == Instruction.Type.CALL.opcode() && ip + 1 < program.size()
+                    && program.getOpcode(ip + 1) == Instruction.Type.RET.opcode()) {
+                profile.record(program.getOpcode(ip), program.getOpcode(ip + 1));
+            }
+            if (vm.run(1) != Trap.OK) {
+                break;
+            }
+            previous = ip;
+        }
+        return profile;
+    }
+
+    void record(int first, int second) {
+        counts[first * OPCODES + second]++;
+        total++;
+    }
+
+    public long count(Instruction.Type first, Instruction.Type second) {
+        return counts[first.opcode() * OPCODES + second.opcode()];
+    }
+
+    public long total() {
+        return total;
+    }
+
+    /**
+     * @return the fusions whose pair accounts for at least minShare (0 to 1) of the executed pairs.
+     */
+    public Set<Superinstructions.Fusion> select(double minShare) {
+        Set<Superinstructions.Fusion> selected = EnumSet.noneOf(Superinstructions.Fusion.class);
+        if (total == 0) {
+            return selected;
+        }
+        for (Superinstructions.Fusion fusion : Superinstructions.Fusion.values()) {
+            if ((double) count(fusion.first, fusion.second) / total >= minShare) {
+                selected.add(fusion);
+            }
+        }
+        return selected;
+    }
+}
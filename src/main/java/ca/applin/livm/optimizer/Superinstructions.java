@@ -0,0 +1,109 @@
+package ca.applin.livm.optimizer;
+
+import ca.applin.livm.core.Instruction;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Fuses pairs of instructions executed one after the other into a single superinstruction, saving one dispatch
+ * of the interpreter per pair:
+ * <ul>
+ *     <li>{@code eq; jnz x} becomes {@code jeq x}</li>
+ *     <li>{@code push k; add} becomes {@code addi k}</li>
+ *     <li>{@code dup 1; dup 1} becomes {@code dup2}</li>
+ *     <li>{@code call x; ret} becomes {@code tailcall x}</li>
+ * </ul>
+ * A pair is only fused when no branch targets its second instruction, as that instruction disappears.
+ */
+public class Superinstructions implements OptimizationPass {
+
+    public enum Fusion {
+        EQ_JNZ(Instruction.Type.EQ, Instruction.Type.JNZ),
+        PUSH_ADD(Instruction.Type.PUSH, Instruction.Type.ADD),
+        DUP_DUP(Instruction.Type.DUP, Instruction.Type.DUP),
+        CALL_RET(Instruction.Type.CALL, Instruction.Type.RET);
+
+        public final Instruction.Type first;
+        public final Instruction.Type second;
+
+        Fusion(Instruction.Type first, Instruction.Type second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        /**
+         * @return the superinstruction replacing the pair, or null if this pair cannot be fused.
+         */
+        Instruction fuse(Instruction fst, Instruction snd) {
+            if (fst.type != first || snd.type != second) {
+                return null;
+            }
+            return switch (this) {
+                case EQ_JNZ -> Instruction.INSTR_JEQ(snd.operand);
+                case PUSH_ADD -> Instruction.INSTR_ADDI(fst.operand);
+                case DUP_DUP -> fst.operand.word() == 1 && snd.operand.word() == 1 ? Instruction.INSTR_DUP2 : null;
+                case CALL_RET -> Instruction.INSTR_TAILCALL(fst.operand);
+            };
+        }
+    }
+
+    private final Set<Fusion> fusions;
+
+    public Superinstructions() {
+        this(EnumSet.allOf(Fusion.class));
+    }
+
+    public Superinstructions(Set<Fusion> fusions) {
+        this.fusions = fusions.isEmpty() ? EnumSet.noneOf(Fusion.class) : EnumSet.copyOf(fusions);
+    }
+
+    public Set<Fusion> getFusions() {
+        return fusions;
+    }
+
+    @Override
+    public String name() {
+        return "superinstructions";
+    }
+
+    @Override
+    public List<Instruction> apply(List<Instruction> instructions) {
+        if (fusions.isEmpty()) {
+            return instructions;
+        }
+        BitSet targets = CodeRewriter.branchTargets(instructions);
+        BitSet removed = new BitSet(instructions.size());
+        List<Instruction> result = null;
+        for (int i = 0; i + 1 < instructions.size(); i++) {
+            if (targets.get(i + 1)) {
+                continue;
+            }
+            Instruction fused = fuse(instructions.get(i), instructions.get(i + 1));
+            if (fused == null) {
+                continue;
+            }
+            if (result == null) {
+                result = new ArrayList<>(instructions);
+            }
+            result.set(i, fused);
+            removed.set(i + 1);
+            // the second instruction is gone, it cannot start another pair
+            i++;
+        }
+        return result == null ? instructions : CodeRewriter.remove(result, removed);
+    }
+
+    private Instruction fuse(Instruction fst, Instruction snd) {
+        for (Fusion fusion : fusions) {
+            Instruction fused = fusion.fuse(fst, snd);
+            if (fused != null) {
+                return fused;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,35 @@
+package ca.applin.livm.optimizer;
+
+import ca.applin.livm.core.Instruction;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Replaces {@code call x; ret} by {@code tailcall x; ret}: the callee returns directly to our caller, so a procedure
+ * ending with a call, like a recursive procedure, runs in constant return stack space. The {@code ret} is kept for
+ * the branches targeting it, it is removed by the {@link UnreachableCodeElimination} otherwise.
+ */
+public class TailCallElimination implements OptimizationPass {
+
+    @Override
+    public String name() {
+        return "tail-call-elimination";
+    }
+
+    @Override
+    public List<Instruction> apply(List<Instruction> instructions) {
+        List<Instruction> result = null;
+        for (int i = 0; i + 1 < instructions.size(); i++) {
+            Instruction instr = instructions.get(i);
+            if (instr.type != Instruction.Type.CALL || instructions.get(i + 1).type != Instruction.Type.RET) {
+                continue;
+            }
+            if (result == null) {
+                result = new ArrayList<>(instructions);
+            }
+            result.set(i, Instruction.INSTR_TAILCALL(instr.operand));
+        }
+        return result == null ? instructions : result;
+    }
+}
@@ -0,0 +1,50 @@
+package ca.applin.livm.optimizer;
+
+import ca.applin.livm.core.Instruction;
+
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Removes the instructions that cannot be reached from the first instruction, ie the code following a jmp, a
+ * halt or a ret that no branch targets. The instruction following a call is reachable, as it is where the call
+ * returns, and the target of a spawn is reachable, as the task starts there.
+ */
+public class UnreachableCodeElimination implements OptimizationPass {
+
+    @Override
+    public String name() {
+        return "unreachable-code-elimination";
+    }
+
+    @Override
+    public List<Instruction> apply(List<Instruction> instructions) {
+        int size = instructions.size();
+        BitSet reachable = new BitSet(size);
+        Deque<Integer> work = new ArrayDeque<>();
+        work.push(0);
+        while (!work.isEmpty()) {
+            int ip = work.pop();
+            if (ip < 0 || ip >= size || reachable.get(ip)) {
+                continue;
+            }
+            reachable.set(ip);
+            Instruction instr = instructions.get(ip);
+            switch (instr.type) {
+                case JMP, TAILCALL -> work.push(instr.operand.word());
+                case JNZ, JEQ, CALL, SPAWN -> {
+                    work.push(instr.operand.word());
+                    work.push(ip + 1);
+                }
+                case HALT, RET -> { }
+                default -> work.push(ip + 1);
+            }
+        }
+        BitSet unreachable = new BitSet(size);
+        unreachable.set(0, size);
+        unreachable.andNot(reachable);
+        return CodeRewriter.remove(instructions, unreachable);
+    }
+}